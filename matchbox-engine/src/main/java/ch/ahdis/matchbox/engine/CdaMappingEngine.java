@@ -2,9 +2,15 @@ package ch.ahdis.matchbox.engine;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r5.context.ContextUtilities;
+import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.r5.model.StructureMap;
 import org.hl7.fhir.validation.ValidationEngine;
 
@@ -41,6 +47,10 @@ public class CdaMappingEngine extends MatchboxEngine {
 
 	protected static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CdaMappingEngine.class);
 
+	// engines with the CDA package loaded, by FHIR version and builder configuration; they are built once per
+	// process and never handed out, the engines of the builder are copies of them
+	private static final Map<String, CompletableFuture<CdaMappingEngine>> baseEngines = new ConcurrentHashMap<>();
+
 	/** 
 	 * creates another instance of a mapping engine. use this if you have different versions of packages
 	 * or conformance resources 
@@ -69,46 +79,95 @@ public class CdaMappingEngine extends MatchboxEngine {
 		/**
 		 * Create a CDA mapping engine based on the forked CDA Model (see https://github.com/ahdis/cda-core-2.0/tree/lab)
 		 * 
+		 * The FHIR and CDA packages are loaded once per process into a base engine, the returned engine is a copy
+		 * of it to which maps and other conformance resources can be added without affecting other engines
+		 * 
 		 * @return MappingEngine which allows to convert between CDA and FHIR
 		 * @throws FHIRException FHIR Exception
 		 * @throws IOException IO Exception
 		 * @throws URISyntaxException
 		 */
 		public CdaMappingEngine getCdaEngineR5() throws FHIRException, IOException, URISyntaxException {
-			log.info("Initializing CDA Mapping Engine");
-			log.info(VersionUtil.getPoweredBy());
-			CdaMappingEngine engine = new CdaMappingEngine(this.getEngineR5());
-			// if the version would have been set before (constructor) the package is loaded
-			// from the package cache, we don't want this
-			engine.loadPackage(getClass().getResourceAsStream("/hl7.cda.uv.core#2.0.0-sd-202406-matchbox-patch.tgz"));
-			engine.getContext().setCanRunWithoutTerminology(true);
-			engine.getContext().setNoTerminologyServer(true);
-			engine.getContext().setPackageTracker(engine);
-			return engine;
+			return derive(getBaseEngine("5.0"));
 		}
 		
 		
     /**
      * Create a CDA mapping engine based on the forked CDA Model (see https://github.com/ahdis/cda-core-2.0/tree/lab)
      * 
+     * The FHIR and CDA packages are loaded once per process into a base engine, the returned engine is a copy
+     * of it to which maps and other conformance resources can be added without affecting other engines
+     * 
      * @return MappingEngine which allows to convert between CDA and FHIR R4
      * @throws FHIRException FHIR Exception
      * @throws IOException IO Exception
      * @throws URISyntaxException
      */
     public CdaMappingEngine getCdaEngineR4() throws FHIRException, IOException, URISyntaxException {
-      log.info("Initializing CDA Mapping Engine");
-      log.info(VersionUtil.getPoweredBy());
-      CdaMappingEngine engine = new CdaMappingEngine(this.getEngineR4());
-      // if the version would have been set before (constructor) the package is loaded
-      // from the package cache, we don't want this
-      engine.loadPackage(getClass().getResourceAsStream("/hl7.cda.uv.core#2.0.0-sd-202406-matchbox-patch.tgz"));
-      engine.getContext().setCanRunWithoutTerminology(true);
-      engine.getContext().setNoTerminologyServer(true);
-      engine.getContext().setPackageTracker(engine);
-      return engine;
+      return derive(getBaseEngine("4.0"));
     }
 
+		/**
+		 * the base engine for the FHIR version and the configuration of this builder, concurrent first calls wait
+		 * for the same build
+		 */
+		private CdaMappingEngine getBaseEngine(String version) throws FHIRException, IOException {
+			String key = getEngineKey(version);
+			CompletableFuture<CdaMappingEngine> build = new CompletableFuture<>();
+			CompletableFuture<CdaMappingEngine> existing = baseEngines.putIfAbsent(key, build);
+			if (existing != null) {
+				try {
+					return existing.join();
+				} catch (CompletionException e) {
+					throw new FHIRException("Unable to create CDA Mapping Engine for FHIR version " + version, e.getCause());
+				}
+			}
+			try {
+				CdaMappingEngine engine = buildBaseEngine("5.0".equals(version) ? this.getEngineR5() : this.getEngineR4());
+				build.complete(engine);
+				return engine;
+			} catch (Throwable e) {
+				// a failed build is not kept, the next call tries again; every failure completes the build, the
+				// callers waiting for it would block otherwise
+				baseEngines.remove(key, build);
+				build.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		private CdaMappingEngine buildBaseEngine(MatchboxEngine fhirEngine) throws FHIRException, IOException {
+			log.info("Initializing CDA Mapping Engine");
+			log.info(VersionUtil.getPoweredBy());
+			CdaMappingEngine engine = new CdaMappingEngine(fhirEngine);
+			// if the version would have been set before (constructor) the package is loaded
+			// from the package cache, we don't want this
+			engine.loadPackage(getClass().getResourceAsStream("/hl7.cda.uv.core#2.0.0-sd-202406-matchbox-patch.tgz"));
+			// the copies share the definitions of the base engine, they are completed here so that the copies do
+			// not generate snapshots into them concurrently
+			ContextUtilities cu = new ContextUtilities(engine.getContext());
+			for (StructureDefinition sd : engine.getContext().fetchResourcesByType(StructureDefinition.class)) {
+				synchronized (sd) {
+					if (!sd.hasSnapshot()) {
+						try {
+							cu.generateSnapshot(sd);
+						} catch (Exception e) {
+							log.warn("Unable to generate the snapshot of " + sd.getVersionedUrl() + ": " + e.getMessage());
+						}
+					}
+				}
+			}
+			return engine;
+		}
+
+		private CdaMappingEngine derive(CdaMappingEngine base) throws FHIRException, IOException {
+			CdaMappingEngine engine = new CdaMappingEngine(base);
+			engine.getContext().setCanRunWithoutTerminology(true);
+			engine.getContext().setNoTerminologyServer(true);
+			engine.getContext().setPackageTracker(engine);
+			engine.setPcm(this.getFilesystemPackageCacheManager());
+			return engine;
+		}
+
 	}
 
 	/**
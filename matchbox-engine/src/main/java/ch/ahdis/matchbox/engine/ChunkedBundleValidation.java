@@ -0,0 +1,611 @@
+package ch.ahdis.matchbox.engine;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.ParserBase.ValidationPolicy;
+import org.hl7.fhir.r5.elementmodel.StreamingJsonParser;
+import org.hl7.fhir.r5.elementmodel.ValidatedFragment;
+import org.hl7.fhir.r5.elementmodel.Element.SpecialElement;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.utils.validation.IMessagingServices;
+import org.hl7.fhir.r5.utils.validation.IResourceValidator;
+import org.hl7.fhir.r5.utils.validation.IValidationPolicyAdvisor;
+import org.hl7.fhir.r5.utils.validation.IValidatorResourceFetcher;
+import org.hl7.fhir.r5.utils.validation.constants.BindingKind;
+import org.hl7.fhir.r5.utils.validation.constants.ContainedReferenceValidationPolicy;
+import org.hl7.fhir.r5.utils.validation.constants.ReferenceValidationPolicy;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.i18n.I18nConstants;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+
+/**
+ * validates a JSON Bundle entry by entry: the resources of the entries are validated one at a time as they are
+ * streamed from the parser and released afterwards, the Bundle itself is validated with the entries reduced to
+ * their resourceType, id and meta.versionId. The first entry of a document or message (the Composition or
+ * MessageHeader) stays in the Bundle, the checks of the document or message read it.
+ * <p>
+ * A first pass over the input builds an index of the fullUrl, type and id of the entries. References between the
+ * entries are resolved against the index (the validator gets a resource with the type and id of the target) and
+ * are checked for existence and type only, and the links of each entry are kept as indexes of the entries they
+ * point to, so that the check that the entries of a document or message are linked is done without the resources.
+ * <p>
+ * A Bundle is validated as a whole if a profile of the Bundle slices its entries or constrains the resources of its
+ * entries, which cannot be checked against the reduced resources. The input itself is held in memory for the whole
+ * validation, what is saved is the element tree of all but one resource.
+ */
+class ChunkedBundleValidation implements StreamingJsonParser.EntryHandler {
+
+	private static final String BUNDLE = "http://hl7.org/fhir/StructureDefinition/Bundle";
+
+	private static final JsonFactory FACTORY = JsonFactory.builder()
+		.configure(JsonReadFeature.ALLOW_JAVA_COMMENTS, true)
+		.streamReadConstraints(StreamReadConstraints.builder().maxStringLength(Integer.MAX_VALUE).build())
+		.build();
+
+	private final IWorkerContext context;
+	private final InstanceValidator validator;
+
+	// the index of the entries, by position in the Bundle
+	private final List<String> fullUrls = new ArrayList<>();
+	private final List<String> types = new ArrayList<>();
+	private final List<String> ids = new ArrayList<>();
+	private final List<int[]> locations = new ArrayList<>();
+	private final List<int[]> links = new ArrayList<>();
+	private final Map<String, Integer> byFullUrl = new HashMap<>();
+	private final Map<String, Integer> byTypeAndId = new HashMap<>();
+
+	private final BitSet handled = new BitSet();
+	private final List<ValidationMessage> entryMessages = new ArrayList<>();
+	private String bundleType;
+
+	ChunkedBundleValidation(final IWorkerContext context, final InstanceValidator validator) {
+		this.context = context;
+		this.validator = validator;
+	}
+
+	/**
+	 * validates the content against the profiles, the profiles apply to the Bundle (or to the resource if the
+	 * content is not a Bundle)
+	 */
+	void validate(final byte[] content, final List<StructureDefinition> profiles, final List<ValidationMessage> messages)
+			throws FHIRException, IOException {
+		if (constrainsEntries(profiles)) {
+			this.validator.validate(null, messages, new ByteArrayInputStream(content), Manager.FhirFormat.JSON, profiles);
+			return;
+		}
+		this.index(content);
+
+		final StreamingJsonParser parser = new StreamingJsonParser(this.context);
+		parser.setupValidation(ValidationPolicy.EVERYTHING);
+		parser.setAllowComments(this.validator.isAllowComments());
+		parser.setEntryHandler(this);
+
+		final IValidatorResourceFetcher fetcher = this.validator.getFetcher();
+		final IValidationPolicyAdvisor advisor = this.validator.getPolicyAdvisor();
+		this.validator.setFetcher(new IndexFetcher(fetcher));
+		this.validator.setPolicyAdvisor(new IndexPolicyAdvisor(advisor));
+		try {
+			final List<ValidatedFragment> fragments = parser.parse(content);
+			final ValidatedFragment focus = fragments.get(0);
+			messages.addAll(focus.getErrors());
+			messages.addAll(this.entryMessages);
+			final Element bundle = focus.getElement();
+			if (bundle == null) {
+				return;
+			}
+			final List<ValidationMessage> bundleMessages = new ArrayList<>();
+			this.validator.validate(null, bundleMessages, null, bundle, profiles);
+			for (final ValidationMessage message : bundleMessages) {
+				if (!this.isCoveredByEntries(message)) {
+					messages.add(message);
+				}
+			}
+			if (!this.handled.isEmpty()) {
+				this.linkKeptEntries(bundle);
+				this.checkAllInterlinked(bundle.getNamedChildValue("type"), messages);
+			}
+		} finally {
+			this.validator.setFetcher(fetcher);
+			this.validator.setPolicyAdvisor(advisor);
+		}
+	}
+
+	/**
+	 * true if a profile slices the entries, constrains their resources or has an invariant that reads them
+	 */
+	private static boolean constrainsEntries(final List<StructureDefinition> profiles) {
+		for (final StructureDefinition profile : profiles) {
+			if (!profile.hasSnapshot() || BUNDLE.equals(profile.getUrl())) {
+				continue;
+			}
+			for (final ElementDefinition ed : profile.getSnapshot().getElement()) {
+				final String path = ed.getPath();
+				if ("Bundle.entry".equals(path) && ed.hasSlicing()) {
+					return true;
+				}
+				if (path.startsWith("Bundle.entry.resource") && (path.length() > "Bundle.entry.resource".length()
+					|| ed.getType().stream().anyMatch(type -> type.hasProfile()))) {
+					return true;
+				}
+				for (final ElementDefinition.ElementDefinitionConstraintComponent constraint : ed.getConstraint()) {
+					// the invariants of the base Bundle read the type, id and meta.versionId the reduced resources keep
+					if (!BUNDLE.equals(constraint.getSource()) && !constraint.getKey().startsWith("bdl-") && constraint.hasExpression()
+						&& constraint.getExpression().contains("resource")) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * the first entry of a document or message stays in the Bundle
+	 */
+	@Override
+	public boolean handles(final int index) {
+		return index > 0 || !("document".equals(this.bundleType) || "message".equals(this.bundleType));
+	}
+
+	/**
+	 * collects the links of the entries which stayed in the Bundle
+	 */
+	private void linkKeptEntries(final Element bundle) {
+		final List<Element> entries = bundle.getChildrenByName("entry");
+		for (int i = 0; i < entries.size() && i < this.links.size(); i++) {
+			final Element resource = entries.get(i).getNamedChild("resource", false);
+			if (!this.handled.get(i) && resource != null) {
+				final Set<Integer> targets = new LinkedHashSet<>();
+				this.collectLinks(resource, i, targets);
+				this.links.set(i, targets.stream().mapToInt(Integer::intValue).toArray());
+			}
+		}
+	}
+
+	@Override
+	public void entry(final int index, final Element resource) throws FHIRException {
+		final List<ValidationMessage> messages = new ArrayList<>();
+		this.validator.validate(null, messages, null, resource, new ArrayList<>());
+
+		// the paths of a resource validated on its own start with its name, in the Bundle it is an entry
+		final String name = resource.getName();
+		final String path = "Bundle.entry[" + index + "].resource/*" + resource.fhirType() + "/" + resource.getIdBase() + "*/";
+		for (final ValidationMessage message : messages) {
+			final String location = message.getLocation();
+			if (location != null && location.startsWith(name)
+				&& (location.length() == name.length() || !Character.isLetterOrDigit(location.charAt(name.length())))) {
+				message.setLocation(path + location.substring(name.length()));
+			}
+		}
+		this.entryMessages.addAll(messages);
+
+		if (index < this.links.size()) {
+			final Set<Integer> targets = new LinkedHashSet<>();
+			this.collectLinks(resource, index, targets);
+			this.links.set(index, targets.stream().mapToInt(Integer::intValue).toArray());
+		}
+		this.handled.set(index);
+	}
+
+	/**
+	 * reads the fullUrl and the resourceType and id of the resource of each entry, without building a tree
+	 */
+	private void index(final byte[] content) throws IOException {
+		try (JsonParser json = FACTORY.createParser(content)) {
+			if (json.nextToken() != JsonToken.START_OBJECT) {
+				return;
+			}
+			while (json.nextToken() == JsonToken.FIELD_NAME) {
+				final String name = json.currentName();
+				final JsonToken token = json.nextToken();
+				if ("type".equals(name) && token == JsonToken.VALUE_STRING) {
+					this.bundleType = json.getText();
+				} else if ("entry".equals(name) && token == JsonToken.START_ARRAY) {
+					JsonToken next;
+					while ((next = json.nextToken()) != JsonToken.END_ARRAY) {
+						this.indexEntry(json, next);
+					}
+				} else {
+					json.skipChildren();
+				}
+			}
+		} catch (final JsonProcessingException e) {
+			// the parse of the content reports the error
+		}
+	}
+
+	private void indexEntry(final JsonParser json, final JsonToken token) throws IOException {
+		final JsonLocation location = json.currentTokenLocation();
+		String fullUrl = null;
+		String type = null;
+		String id = null;
+		if (token == JsonToken.START_OBJECT) {
+			while (json.nextToken() == JsonToken.FIELD_NAME) {
+				final String name = json.currentName();
+				final JsonToken value = json.nextToken();
+				if ("fullUrl".equals(name) && value == JsonToken.VALUE_STRING) {
+					fullUrl = json.getText();
+				} else if ("resource".equals(name) && value == JsonToken.START_OBJECT) {
+					while (json.nextToken() == JsonToken.FIELD_NAME) {
+						final String property = json.currentName();
+						final JsonToken propertyValue = json.nextToken();
+						if ("resourceType".equals(property) && propertyValue == JsonToken.VALUE_STRING) {
+							type = json.getText();
+						} else if ("id".equals(property) && propertyValue == JsonToken.VALUE_STRING) {
+							id = json.getText();
+						} else {
+							json.skipChildren();
+						}
+					}
+				} else {
+					json.skipChildren();
+				}
+			}
+		} else {
+			json.skipChildren();
+		}
+		final int index = this.fullUrls.size();
+		this.fullUrls.add(fullUrl);
+		this.types.add(type);
+		this.ids.add(id);
+		this.locations.add(new int[] { location.getLineNr(), location.getColumnNr() });
+		this.links.add(new int[0]);
+		if (fullUrl != null) {
+			this.byFullUrl.putIfAbsent(fullUrl, index);
+		}
+		if (type != null && id != null) {
+			this.byTypeAndId.putIfAbsent(type + "/" + id, index);
+		}
+	}
+
+	private void collectLinks(final Element element, final int from, final Set<Integer> targets) {
+		if ("Reference".equals(element.fhirType())) {
+			final int target = this.resolve(element.getNamedChildValue("reference", false), from);
+			if (target >= 0 && target != from) {
+				targets.add(target);
+			}
+		}
+		if (element.hasChildren()) {
+			for (final Element child : element.getChildren()) {
+				this.collectLinks(child, from, targets);
+			}
+		}
+	}
+
+	/**
+	 * the entry a reference points to, relative references are resolved against the base of the fullUrl of the
+	 * entry they are in and else by type and id, -1 if the reference is not to an entry
+	 */
+	private int resolve(String reference, final int from) {
+		if (reference == null || reference.startsWith("#")) {
+			return -1;
+		}
+		if (reference.contains("#")) {
+			reference = reference.substring(0, reference.indexOf('#'));
+		}
+		Integer target = this.byFullUrl.get(reference);
+		if (target == null && !Utilities.isAbsoluteUrl(reference)) {
+			if (reference.contains("/_history/")) {
+				reference = reference.substring(0, reference.indexOf("/_history/"));
+			}
+			final String fullUrl = from >= 0 ? this.fullUrls.get(from) : null;
+			if (fullUrl != null && this.types.get(from) != null && this.ids.get(from) != null
+				&& reference.split("/").length == 2) {
+				final String local = this.types.get(from) + "/" + this.ids.get(from);
+				if (fullUrl.endsWith("/" + local)) {
+					target = this.byFullUrl.get(fullUrl.substring(0, fullUrl.length() - local.length()) + reference);
+				}
+			}
+			if (target == null) {
+				target = this.byTypeAndId.get(reference);
+			}
+		}
+		return target == null ? -1 : target;
+	}
+
+	/**
+	 * messages of the Bundle validation about the placeholders of the entries, or about the links between the
+	 * entries, which are checked with the index
+	 */
+	private boolean isCoveredByEntries(final ValidationMessage message) {
+		final String id = message.getMessageId();
+		if (I18nConstants.BUNDLE_BUNDLE_ENTRY_ORPHAN_DOCUMENT.equals(id) || I18nConstants.BUNDLE_BUNDLE_ENTRY_ORPHAN_MESSAGE.equals(id)
+			|| I18nConstants.BUNDLE_BUNDLE_ENTRY_REVERSE_MSG.equals(id) || I18nConstants.BUNDLE_BUNDLE_ENTRY_REVERSE_R4.equals(id)
+			|| I18nConstants.BUNDLE_BUNDLE_ENTRY_REVERSE_R5.equals(id)) {
+			return true;
+		}
+		final String location = message.getLocation();
+		if (location == null || !location.startsWith("Bundle.entry[")) {
+			return false;
+		}
+		final int end = location.indexOf(']');
+		if (end < 0) {
+			return false;
+		}
+		if (!location.startsWith("].resource", end)) {
+			return false;
+		}
+		try {
+			return this.handled.get(Integer.parseInt(location.substring("Bundle.entry[".length(), end)));
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * the entries of a document or message have to be reachable from the first entry by following the references
+	 * forward or backward
+	 */
+	private void checkAllInterlinked(final String bundleType, final List<ValidationMessage> messages) {
+		final boolean document = "document".equals(bundleType);
+		if ((!document && !"message".equals(bundleType)) || this.types.isEmpty() || this.types.get(0) == null) {
+			return;
+		}
+		final int size = this.types.size();
+		final List<List<Integer>> backward = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			backward.add(new ArrayList<>());
+		}
+		for (int i = 0; i < size; i++) {
+			for (final int target : this.links.get(i)) {
+				backward.get(target).add(i);
+			}
+		}
+		final BitSet visited = new BitSet(size);
+		final Deque<Integer> queue = new ArrayDeque<>();
+		visited.set(0);
+		queue.add(0);
+		while (!queue.isEmpty()) {
+			final int i = queue.poll();
+			for (final int target : this.links.get(i)) {
+				if (!visited.get(target)) {
+					visited.set(target);
+					queue.add(target);
+				}
+			}
+			for (final int source : backward.get(i)) {
+				if (!visited.get(source)) {
+					visited.set(source);
+					queue.add(source);
+				}
+			}
+		}
+		final String key = document ? I18nConstants.BUNDLE_BUNDLE_ENTRY_ORPHAN_DOCUMENT : I18nConstants.BUNDLE_BUNDLE_ENTRY_ORPHAN_MESSAGE;
+		for (int i = 1; i < size; i++) {
+			if (visited.get(i) || this.types.get(i) == null) {
+				continue;
+			}
+			final String fullUrl = this.fullUrls.get(i);
+			final ValidationMessage message = new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL,
+				this.locations.get(i)[0], this.locations.get(i)[1], "Bundle.entry[" + i + "]",
+				this.context.formatMessage(key, fullUrl != null ? "'" + fullUrl + "'" : ""),
+				document ? IssueSeverity.ERROR : IssueSeverity.WARNING);
+			message.setMessageId(key);
+			messages.add(message);
+		}
+	}
+
+	/**
+	 * resolves references to entries of the Bundle to a resource with the type and id of the entry, everything else
+	 * is left to the fetcher of the engine
+	 */
+	private class IndexFetcher implements IValidatorResourceFetcher {
+
+		private final IValidatorResourceFetcher fetcher;
+
+		private IndexFetcher(final IValidatorResourceFetcher fetcher) {
+			this.fetcher = fetcher;
+		}
+
+		private Element entry(final String url) {
+			final int i = resolve(url, -1);
+			if (i < 0 || types.get(i) == null) {
+				return null;
+			}
+			final StructureDefinition sd = context.fetchTypeDefinition(types.get(i));
+			if (sd == null) {
+				return null;
+			}
+			final Element resource = Manager.build(context, sd);
+			if (ids.get(i) != null) {
+				resource.setChildValue("id", ids.get(i));
+			}
+			return resource;
+		}
+
+		@Override
+		public Element fetch(final IResourceValidator validator, final Object appContext, final String url)
+				throws FHIRException, IOException {
+			final Element resource = this.entry(url);
+			if (resource != null || this.fetcher == null) {
+				return resource;
+			}
+			return this.fetcher.fetch(validator, appContext, url);
+		}
+
+		@Override
+		public boolean resolveURL(final IResourceValidator validator, final Object appContext, final String path,
+										  final String url, final String type, final boolean canonical)
+				throws IOException, FHIRException {
+			if (!canonical && resolve(url, -1) >= 0) {
+				return true;
+			}
+			return this.fetcher != null && this.fetcher.resolveURL(validator, appContext, path, url, type, canonical);
+		}
+
+		@Override
+		public byte[] fetchRaw(final IResourceValidator validator, final String url) throws IOException {
+			return this.fetcher != null ? this.fetcher.fetchRaw(validator, url) : null;
+		}
+
+		@Override
+		public IValidatorResourceFetcher setLocale(final Locale locale) {
+			if (this.fetcher != null) {
+				this.fetcher.setLocale(locale);
+			}
+			return this;
+		}
+
+		@Override
+		public CanonicalResource fetchCanonicalResource(final IResourceValidator validator, final Object appContext,
+																		final String url) throws URISyntaxException {
+			return this.fetcher != null ? this.fetcher.fetchCanonicalResource(validator, appContext, url) : null;
+		}
+
+		@Override
+		public boolean fetchesCanonicalResource(final IResourceValidator validator, final String url) {
+			return this.fetcher != null && this.fetcher.fetchesCanonicalResource(validator, url);
+		}
+
+		@Override
+		public Set<String> fetchCanonicalResourceVersions(final IResourceValidator validator, final Object appContext,
+																		  final String url) {
+			return this.fetcher != null ? this.fetcher.fetchCanonicalResourceVersions(validator, appContext, url) : null;
+		}
+	}
+
+	/**
+	 * references to entries of the Bundle are checked for existence and type: the validator only gets the type and
+	 * id of the target, its content cannot be validated against the target profiles of the reference. Everything
+	 * else is left to the advisor of the engine.
+	 */
+	private class IndexPolicyAdvisor implements IValidationPolicyAdvisor {
+
+		private final IValidationPolicyAdvisor advisor;
+
+		private IndexPolicyAdvisor(final IValidationPolicyAdvisor advisor) {
+			this.advisor = advisor;
+		}
+
+		@Override
+		public ReferenceValidationPolicy policyForReference(final IResourceValidator validator, final Object appContext,
+																			 final String path, final String url) {
+			if (resolve(url, -1) >= 0) {
+				return ReferenceValidationPolicy.CHECK_EXISTS_AND_TYPE;
+			}
+			return this.advisor.policyForReference(validator, appContext, path, url);
+		}
+
+		@Override
+		public ReferenceValidationPolicy getReferencePolicy() {
+			return this.advisor.getReferencePolicy();
+		}
+
+		@Override
+		public boolean isSuppressMessageId(final String path, final String messageId) {
+			return this.advisor.isSuppressMessageId(path, messageId);
+		}
+
+		@Override
+		public ContainedReferenceValidationPolicy policyForContained(final IResourceValidator validator,
+																						 final Object appContext,
+																						 final StructureDefinition structure,
+																						 final ElementDefinition element,
+																						 final String containerType,
+																						 final String containerId,
+																						 final SpecialElement containingResourceType,
+																						 final String path,
+																						 final String url) {
+			return this.advisor.policyForContained(validator, appContext, structure, element, containerType, containerId,
+																containingResourceType, path, url);
+		}
+
+		@Override
+		public EnumSet<ResourceValidationAction> policyForResource(final IResourceValidator validator,
+																					  final Object appContext,
+																					  final StructureDefinition type,
+																					  final String path) {
+			return this.advisor.policyForResource(validator, appContext, type, path);
+		}
+
+		@Override
+		public EnumSet<ElementValidationAction> policyForElement(final IResourceValidator validator,
+																					final Object appContext,
+																					final StructureDefinition structure,
+																					final ElementDefinition element,
+																					final String path) {
+			return this.advisor.policyForElement(validator, appContext, structure, element, path);
+		}
+
+		@Override
+		public EnumSet<CodedContentValidationAction> policyForCodedContent(final IResourceValidator validator,
+																							  final Object appContext,
+																							  final String stackPath,
+																							  final ElementDefinition definition,
+																							  final StructureDefinition structure,
+																							  final BindingKind kind,
+																							  final AdditionalBindingPurpose purpose,
+																							  final ValueSet valueSet,
+																							  final List<String> systems) {
+			return this.advisor.policyForCodedContent(validator, appContext, stackPath, definition, structure, kind, purpose,
+																	valueSet, systems);
+		}
+
+		@Override
+		public List<StructureDefinition> getImpliedProfilesForResource(final IResourceValidator validator,
+																							final Object appContext,
+																							final String stackPath,
+																							final ElementDefinition definition,
+																							final StructureDefinition structure,
+																							final Element resource,
+																							final boolean valid,
+																							final IMessagingServices msgServices,
+																							final List<ValidationMessage> messages) {
+			return this.advisor.getImpliedProfilesForResource(validator, appContext, stackPath, definition, structure,
+																			  resource, valid, msgServices, messages);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package ch.ahdis.matchbox.engine;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.utilities.xhtml.XhtmlComposer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * converts a resource of the element model to the R4 or R5 object model. The element tree is mapped to the JSON
+ * object tree the object parsers read, following the rules of the element model JsonParser, so the resource is
+ * neither serialized nor parsed as text.
+ */
+public class ElementModelConverter {
+
+	private ElementModelConverter() {
+	}
+
+	public static org.hl7.fhir.r4.model.Resource toR4(Element resource) throws FHIRException, IOException {
+		return new org.hl7.fhir.r4.formats.JsonParser().parse(toJson(resource));
+	}
+
+	public static org.hl7.fhir.r5.model.Resource toR5(Element resource) throws FHIRException, IOException {
+		return new org.hl7.fhir.r5.formats.JsonParser().parse(toJson(resource));
+	}
+
+	static JsonObject toJson(Element resource) throws IOException {
+		JsonObject json = new JsonObject();
+		json.addProperty("resourceType", resource.fhirType());
+		addChildren(json, resource);
+		return json;
+	}
+
+	private static void addChildren(JsonObject json, Element element) throws IOException {
+		if (!element.hasChildren()) {
+			return;
+		}
+		Map<String, List<Element>> byName = new LinkedHashMap<>();
+		for (Element child : element.getChildren()) {
+			byName.computeIfAbsent(child.getName(), k -> new ArrayList<>()).add(child);
+		}
+		for (Map.Entry<String, List<Element>> e : byName.entrySet()) {
+			String name = e.getKey();
+			List<Element> children = e.getValue();
+			if (children.size() == 1 && !children.get(0).isList()) {
+				addSingle(json, name, children.get(0));
+			} else {
+				addList(json, name, children);
+			}
+		}
+	}
+
+	private static void addSingle(JsonObject json, String name, Element child) throws IOException {
+		if (child.isPrimitive()) {
+			if (child.hasValue() || child.getXhtml() != null) {
+				json.add(name, primitive(child));
+			}
+			if (child.hasChildren()) {
+				JsonObject extensions = new JsonObject();
+				addChildren(extensions, child);
+				json.add("_" + name, extensions);
+			}
+		} else {
+			json.add(name, object(child));
+		}
+	}
+
+	private static void addList(JsonObject json, String name, List<Element> children) throws IOException {
+		if (children.get(0).isPrimitive()) {
+			JsonArray values = new JsonArray();
+			JsonArray extensions = new JsonArray();
+			boolean hasValues = false;
+			boolean hasExtensions = false;
+			for (Element child : children) {
+				if (child.hasValue()) {
+					values.add(primitive(child));
+					hasValues = true;
+				} else {
+					values.add(JsonNull.INSTANCE);
+				}
+				if (child.hasChildren()) {
+					JsonObject ext = new JsonObject();
+					addChildren(ext, child);
+					extensions.add(ext);
+					hasExtensions = true;
+				} else {
+					extensions.add(JsonNull.INSTANCE);
+				}
+			}
+			if (hasValues) {
+				json.add(name, values);
+			}
+			if (hasExtensions) {
+				json.add("_" + name, extensions);
+			}
+		} else {
+			JsonArray array = new JsonArray();
+			for (Element child : children) {
+				array.add(object(child));
+			}
+			json.add(name, array);
+		}
+	}
+
+	private static JsonObject object(Element child) throws IOException {
+		JsonObject json = new JsonObject();
+		if (child.isResource()) {
+			json.addProperty("resourceType", child.fhirType());
+		}
+		addChildren(json, child);
+		return json;
+	}
+
+	private static JsonElement primitive(Element child) throws IOException {
+		String type = child.getType();
+		if ("xhtml".equals(type)) {
+			return new JsonPrimitive(child.getXhtml() != null ? new XhtmlComposer(XhtmlComposer.XML, false).compose(child.getXhtml()) : child.getValue());
+		}
+		String value = child.getValue();
+		if ("boolean".equals(type)) {
+			return new JsonPrimitive("true".equals(value.trim()));
+		}
+		try {
+			if ("integer".equals(type) || "unsignedInt".equals(type) || "positiveInt".equals(type)) {
+				return new JsonPrimitive(Integer.valueOf(value.trim()));
+			}
+			if ("decimal".equals(type)) {
+				return new JsonPrimitive(new BigDecimal(value.trim()));
+			}
+		} catch (NumberFormatException e) {
+			// left as string, reported by the parser of the object model
+		}
+		return new JsonPrimitive(value);
+	}
+}
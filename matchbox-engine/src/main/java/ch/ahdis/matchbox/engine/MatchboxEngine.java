@@ -24,12 +24,24 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -82,6 +94,7 @@ import org.hl7.fhir.validation.IgLoader;
 import org.hl7.fhir.validation.ValidationEngine;
 import org.hl7.fhir.validation.ValidatorUtils;
 import org.hl7.fhir.validation.cli.services.PassiveExpiringSessionCache;
+import org.hl7.fhir.validation.instance.ConformanceOutcomeCache;
 import org.hl7.fhir.validation.instance.InstanceValidator;
 
 import ch.ahdis.matchbox.engine.cli.VersionUtil;
@@ -103,8 +116,30 @@ public class MatchboxEngine extends ValidationEngine {
 
 	protected List<String> suppressedWarnInfoPatterns = new ArrayList<>();
 	protected PassiveExpiringSessionCache sessionCache = new PassiveExpiringSessionCache();
+	protected int bundleEntryThreads = 1;
+	// validates the Bundle entries of all validations with this engine and its copies if bundleEntryThreads > 1
+	protected ExecutorService bundleEntryExecutor;
+	// true if this engine created the pool and shuts it down when it is replaced, copies share it without owning it
+	protected boolean ownsBundleEntryExecutor;
+	protected boolean streamingJson;
+	protected boolean chunkedValidation;
+	protected boolean trackLocations = true;
+	protected ConformanceOutcomeCache conformanceOutcomeCache;
+	// identifies the loaded definitions in the keys of the conformance outcome cache
+	protected String engineId = UUID.randomUUID().toString();
+	// the definitions version of the context when the engine id and the transform sessions were last checked
+	protected volatile long definitionsVersion = -1;
+	// resolved maps with their contexts, structures and utilities, by versioned url of the map
+	protected final Map<String, TransformSession> transformSessions = new ConcurrentHashMap<>();
 	
 	static protected ValidationEngine nullEngine;
+
+	// cross-version engines being built, by FHIR version (major.minor)
+	private static final Map<String, CompletableFuture<ValidationEngine>> xVersionEngineBuilds = new ConcurrentHashMap<>();
+	// versioned templates of the core StructureDefinitions, by context of the FHIR version, never registered in a context
+	private static final Map<SimpleWorkerContext, List<StructureDefinition>> versionedStructureDefinitions = new WeakHashMap<>();
+	// prepares the contexts of the FHIR versions in the background, one at a time
+	private static final ExecutorService xVersionPreloadExecutor = newXVersionPreloadExecutor();
 	
 	static {
 			try {
@@ -155,7 +190,14 @@ public class MatchboxEngine extends ValidationEngine {
 		if (other instanceof MatchboxEngine) {
 				MatchboxEngine otherMatchboxEgine = (MatchboxEngine) other;
 				this.sessionCache = otherMatchboxEgine.sessionCache;
-				this.suppressedWarnInfoPatterns = otherMatchboxEgine.suppressedWarnInfoPatterns;
+				this.suppressedWarnInfoPatterns = new ArrayList<>(otherMatchboxEgine.suppressedWarnInfoPatterns);
+				this.bundleEntryThreads = otherMatchboxEgine.bundleEntryThreads;
+				this.bundleEntryExecutor = otherMatchboxEgine.bundleEntryExecutor;
+				this.streamingJson = otherMatchboxEgine.streamingJson;
+				this.chunkedValidation = otherMatchboxEgine.chunkedValidation;
+				this.trackLocations = otherMatchboxEgine.trackLocations;
+				// the copy keeps its own engine id, its outcomes are not mixed with the ones of the original
+				this.conformanceOutcomeCache = otherMatchboxEgine.conformanceOutcomeCache;
 		}
 		// Create a new IgLoader, otherwise the context is desynchronized between the loader and the engine
 		this.setIgLoader(new IgLoader(this.getPcm(), this.getContext(), this.getVersion(), this.isDebug()));
@@ -451,13 +493,22 @@ public class MatchboxEngine extends ValidationEngine {
 			}
 	    }
 
+		/**
+		 * @return identifies the configuration of the engines of a FHIR version created by this builder, including
+		 * the package cache they load dependencies from
+		 */
+		protected String getEngineKey(final String version) {
+			return version + "|" + this.txServer + "|" + this.withXVersion + "|" + this.packageCacheMode + "|"
+				+ this.packageCachePath;
+		}
+
 		public MatchboxEngineBuilder withVersion(final String version) {
 			super.withVersion(version);
 			this.fhirVersion = FhirPublication.fromCode(version);
 			return this;
 		}
 
-		private FilesystemPackageCacheManager getFilesystemPackageCacheManager() throws MatchboxEngineCreationException {
+		protected FilesystemPackageCacheManager getFilesystemPackageCacheManager() throws MatchboxEngineCreationException {
 			try {
 				return switch(this.packageCacheMode) {
 					case USER -> new FilesystemPackageCacheManager.Builder().build();
@@ -497,8 +548,56 @@ public class MatchboxEngine extends ValidationEngine {
 	 * @throws IOException   IO Exception
 	 */
 	public Resource transformToFhir(String input, boolean inputJson, String mapUri) throws FHIRException, IOException {
-		String transformedXml = transform(input, inputJson, mapUri, false);
-		return new org.hl7.fhir.r4.formats.XmlParser().parse(transformedXml);
+		return ElementModelConverter.toR4(transformToElement(input, inputJson, mapUri));
+	}
+
+	/**
+	 * Transforms an input with the map identified by the uri to the output defined
+	 * by the map
+	 * 
+	 * @param input     content to be transformed
+	 * @param inputJson true if input is in json (if false xml is expected)
+	 * @param mapUri    canonical url of StructureMap
+	 * @return FHIR R5 resource
+	 * @throws FHIRException FHIR Exception
+	 * @throws IOException   IO Exception
+	 */
+	public org.hl7.fhir.r5.model.Resource transformToFhirR5(String input, boolean inputJson, String mapUri) throws FHIRException, IOException {
+		return ElementModelConverter.toR5(transformToElement(input, inputJson, mapUri));
+	}
+
+	private Element transformToElement(String input, boolean inputJson, String mapUri) throws FHIRException, IOException {
+		TransformSession session = getTransformSession(mapUri);
+		return transform(session.parse(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), (inputJson ? FhirFormat.JSON : FhirFormat.XML)),
+				mapUri, session.getTargetContext());
+	}
+
+	/**
+	 * Transforms a stream of records with the map identified by the uri and writes
+	 * the outputs as NDJSON, one line per record in the order of the input
+	 * 
+	 * @param input       NDJSON, concatenated JSON or concatenated XML documents in UTF-8
+	 * @param inputFormat if the records are json or xml
+	 * @param mapUri      map to use for transformation
+	 * @param output      receives one compact JSON resource per record, or an
+	 *                    OperationOutcome for a record which could not be transformed
+	 * @param threads     number of records transformed in parallel
+	 * @return counts of the records transformed and failed
+	 * @throws FHIRException FHIR Exception
+	 * @throws IOException   IO Exception
+	 */
+	public TransformBatch.Summary transformBatch(InputStream input, FhirFormat inputFormat, String mapUri, OutputStream output, int threads)
+			throws FHIRException, IOException {
+		return new TransformBatch(this, mapUri, inputFormat, threads).run(input, output);
+	}
+
+	/**
+	 * as {@link #transformBatch(InputStream, FhirFormat, String, OutputStream, int)}, the records are transformed on
+	 * the given executor which is shared with other batches and not shut down
+	 */
+	public TransformBatch.Summary transformBatch(InputStream input, FhirFormat inputFormat, String mapUri, OutputStream output, int threads,
+			ExecutorService executor) throws FHIRException, IOException {
+		return new TransformBatch(this, mapUri, inputFormat, threads, executor).run(input, output);
 	}
 
 	/**
@@ -515,32 +614,54 @@ public class MatchboxEngine extends ValidationEngine {
 	 */
 	public String transform(String input, boolean inputJson, String mapUri, boolean outputJson)
 			throws FHIRException, IOException {
+		return transform(input, inputJson, mapUri, outputJson, IParser.OutputStyle.PRETTY);
+	}
+
+	/**
+	 * Transforms an input with the map identified by the uri to the output defined
+	 * by the map
+	 * 
+	 * @param input       source in UTF-8 format
+	 * @param inputJson   if input is in json (or xml)
+	 * @param mapUri      map to use for transformation
+	 * @param outputJson  if output is formatted as json (or xml)
+	 * @param outputStyle PRETTY or NORMAL (compact) output
+	 * @return transformed input as string
+	 * @throws FHIRException FHIR Exception
+	 * @throws IOException   IO Exception
+	 */
+	public String transform(String input, boolean inputJson, String mapUri, boolean outputJson, OutputStyle outputStyle)
+			throws FHIRException, IOException {
+		ByteArrayOutputStream boas = new ByteArrayOutputStream();
+		transform(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), (inputJson ? FhirFormat.JSON : FhirFormat.XML),
+				mapUri, boas, (outputJson ? FhirFormat.JSON : FhirFormat.XML), outputStyle);
+		return boas.toString(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Transforms an input stream with the map identified by the uri and writes the
+	 * output defined by the map to the output stream, neither input nor output are
+	 * copied
+	 * 
+	 * @param input        source in UTF-8 format
+	 * @param inputFormat  if input is in json or xml
+	 * @param mapUri       map to use for transformation
+	 * @param output       receives the transformed input, it is not closed
+	 * @param outputFormat if output is formatted as json or xml
+	 * @param outputStyle  PRETTY or NORMAL (compact) output
+	 * @throws FHIRException FHIR Exception
+	 * @throws IOException   IO Exception
+	 */
+	public void transform(InputStream input, FhirFormat inputFormat, String mapUri, OutputStream output,
+			FhirFormat outputFormat, OutputStyle outputStyle) throws FHIRException, IOException {
 		log.info("Start transform: " + mapUri);
 
-		SimpleWorkerContext context = this.getContext();
-		StructureMap map = context.fetchResource(StructureMap.class, mapUri);
-		
-		String fhirVersionTarget = getFhirVersion(getCanonicalFromStructureMap(map, StructureMap.StructureMapModelMode.TARGET));
-		if (fhirVersionTarget !=null && (fhirVersionTarget.startsWith("4.0") || fhirVersionTarget.startsWith("4.3") || fhirVersionTarget.startsWith("5.0"))  && !fhirVersionTarget.equals(this.getVersion().substring(0, 3))) {
-			log.info("Loading additional FHIR version for Target into context " + fhirVersionTarget);
-			context = getContextForFhirVersion(fhirVersionTarget);
-		}
+		TransformSession session = getTransformSession(mapUri);
+		SimpleWorkerContext context = session.getTargetContext();
 
-		Element transformed = transform(ByteProvider.forBytes(input.getBytes("UTF-8")), (inputJson ? FhirFormat.JSON : FhirFormat.XML),
-												  mapUri, context);
-		ByteArrayOutputStream boas = new ByteArrayOutputStream();
-		if (outputJson)
-			new org.hl7.fhir.r5.elementmodel.JsonParser(context).compose(transformed, boas,
-					IParser.OutputStyle.PRETTY,
-					null);
-		else
-			new org.hl7.fhir.r5.elementmodel.XmlParser(context).compose(transformed, boas,
-					IParser.OutputStyle.PRETTY,
-					null);
-		String result = new String(boas.toByteArray());
-		boas.close();
+		Element transformed = transform(session.parse(input, inputFormat), mapUri, context);
+		Manager.composeStreaming(context, transformed, output, outputFormat, outputStyle, null);
 		log.info("Transform finished: " + mapUri);
-		return result;
 	}
 
 	/**
@@ -549,79 +670,202 @@ public class MatchboxEngine extends ValidationEngine {
 	 */
 	public org.hl7.fhir.r5.elementmodel.Element transform(ByteProvider source, FhirFormat cntType, String mapUri, SimpleWorkerContext targetContext)
 			throws FHIRException, IOException {
-		SimpleWorkerContext context = this.getContext();
+		return transform(new ByteArrayInputStream(source.getBytes()), cntType, mapUri, targetContext);
+	}
 
-		// usual case is that source and target are in the same FHIR version as in the context, however it could be that either source or target are in a different FHIR version
-		// if this is the case we do lazy loading of the additional FHIR version into the context
+	public org.hl7.fhir.r5.elementmodel.Element transform(InputStream source, FhirFormat cntType, String mapUri, SimpleWorkerContext targetContext)
+			throws FHIRException, IOException {
+		org.hl7.fhir.r5.elementmodel.Element src = getTransformSession(mapUri).parse(source, cntType);
+		return transform(src, mapUri, targetContext);
+	}
 
-		StructureMap map = context.fetchResource(StructureMap.class, mapUri);
-		String canonicalSource = getCanonicalFromStructureMap(map, StructureMap.StructureMapModelMode.SOURCE);
+	/**
+	 * @return the session with the resolved map, contexts and structures for transforms with the map, created on
+	 *         first use and kept until the map or the definitions in the engine change
+	 */
+	public TransformSession getTransformSession(String mapUri) throws FHIRException, IOException {
+		StructureMap map = this.getContext().fetchResource(StructureMap.class, mapUri);
+		if (map == null) {
+			log.error("Unable to find map " + mapUri + " (Known Maps = " + this.getContext().listMapUrls() + ")");
+			throw new FHIRException("Unable to find map " + mapUri + " (Known Maps = " + this.getContext().listMapUrls() + ")");
+		}
+		return getTransformSession(map);
+	}
+
+	TransformSession getTransformSession(StructureMap map) throws FHIRException, IOException {
+		checkDefinitions();
+		String key = map.getVersionedUrl();
+		TransformSession session = transformSessions.get(key);
+		if (session == null || session.getMap() != map) {
+			long version = getContext().getDefinitionsVersion();
+			session = new TransformSession(this, map);
+			transformSessions.put(key, session);
+			// the versioned StructureDefinitions added for a cross-version map do not change the other sessions
+			if (this.definitionsVersion == version) {
+				this.definitionsVersion = getContext().getDefinitionsVersion();
+			}
+		}
+		return session;
+	}
 
-		String fhirVersionSource = getFhirVersion(canonicalSource);
+	/**
+	 * usual case is that source and target are in the same FHIR version as in the context, however it could be that either source or target are in a different FHIR version
+	 * if this is the case we do lazy loading of the additional FHIR version into the context
+	 */
+	SimpleWorkerContext getSourceContext(StructureMap map) throws FHIRException, IOException {
+		String fhirVersionSource = getFhirVersion(getCanonicalFromStructureMap(map, StructureMap.StructureMapModelMode.SOURCE));
 		if (fhirVersionSource !=null &&  (fhirVersionSource.startsWith("4.0") || fhirVersionSource.startsWith("4.3") || fhirVersionSource.startsWith("5.0")) && !fhirVersionSource.equals(this.getVersion().substring(0,3))) {
 			log.info("Loading additional FHIR version for Source into context " + fhirVersionSource);
-			context = getContextForFhirVersion(fhirVersionSource);
+			return getContextForFhirVersion(fhirVersionSource);
+		}
+		return this.getContext();
+	}
+
+	SimpleWorkerContext getTargetContext(StructureMap map) throws FHIRException, IOException {
+		String fhirVersionTarget = getFhirVersion(getCanonicalFromStructureMap(map, StructureMap.StructureMapModelMode.TARGET));
+		if (fhirVersionTarget !=null && (fhirVersionTarget.startsWith("4.0") || fhirVersionTarget.startsWith("4.3") || fhirVersionTarget.startsWith("5.0"))  && !fhirVersionTarget.equals(this.getVersion().substring(0, 3))) {
+			log.info("Loading additional FHIR version for Target into context " + fhirVersionTarget);
+			return getContextForFhirVersion(fhirVersionTarget);
+		}
+		return this.getContext();
+	}
+
+	org.hl7.fhir.r5.elementmodel.Element parseSource(InputStream source, FhirFormat cntType, SimpleWorkerContext context, StructureDefinition sd)
+			throws FHIRException, IOException {
+		org.hl7.fhir.r5.elementmodel.ParserBase parser = Manager.makeParser(context, cntType, this.streamingJson);
+		if (parser instanceof org.hl7.fhir.r5.elementmodel.XmlParser) {
+			((org.hl7.fhir.r5.elementmodel.XmlParser) parser).setTrackLocations(this.trackLocations);
 		}
-		
-		org.hl7.fhir.r5.elementmodel.ParserBase parser = Manager.makeParser(context, cntType);
-		StructureDefinition sd = context.fetchResource(StructureDefinition.class, canonicalSource);
 		if (sd.getKind() == StructureDefinitionKind.LOGICAL) {
 			parser.setLogical(sd);
 		}
-		org.hl7.fhir.r5.elementmodel.Element src = parser.parseSingle(new ByteArrayInputStream(source.getBytes()), null);
-		return transform(src, mapUri, targetContext);
+		return parser.parseSingle(source, null);
 	}
 
 	/**
 	 * Adapted transform operation from Validation Engine to use patched
 	 * MatchboxStructureMapUtilities
+	 * 
+	 * The engine for the FHIR version is built once (concurrent first requests wait
+	 * for the same build) and its StructureDefinitions are made available in this
+	 * context under the versioned url, see {@link #preloadContextsForFhirVersions}
+	 * to prepare them at startup
 	 */
 	public SimpleWorkerContext getContextForFhirVersion(String fhirVersion)
 			throws FHIRException, IOException {
 		SimpleWorkerContext contextForFhirVersion = null;
-		if (fhirVersion.startsWith("4.0")) {
-			ValidationEngine engine = sessionCache.fetchSessionValidatorEngine(fhirVersion.substring(0,3));
-			if (engine == null) {
-				engine = new MatchboxEngineBuilder().getEngineR4();
-				sessionCache.cacheSession(fhirVersion.substring(0,3), engine);
-			} 
-			contextForFhirVersion = engine.getContext();
-			}
-		if (fhirVersion.startsWith("4.3")) {
-			ValidationEngine engine = sessionCache.fetchSessionValidatorEngine(fhirVersion.substring(0,3));
-			if (engine == null) {
-				engine = new MatchboxEngineBuilder().getEngineR4B();
-				sessionCache.cacheSession(fhirVersion.substring(0,3), engine);
-			} 
-			contextForFhirVersion = engine.getContext();
+		if (fhirVersion.startsWith("4.0") || fhirVersion.startsWith("4.3") || fhirVersion.startsWith("5.0")) {
+			contextForFhirVersion = getXVersionEngine(fhirVersion.substring(0,3)).getContext();
 		}
-		if (fhirVersion.startsWith("5.0")) {
-			ValidationEngine engine = sessionCache.fetchSessionValidatorEngine(fhirVersion.substring(0,3));
-			if (engine == null) {
-				engine = new MatchboxEngineBuilder().getEngineR5();
-				sessionCache.cacheSession(fhirVersion.substring(0,3), engine);
-			} 
-			contextForFhirVersion = engine.getContext();
-			}
 		if (contextForFhirVersion != null) {
-			// we need to copy now all StructureDefinitions from this Version to the new context
+			// we need to add now all StructureDefinitions from this Version to the context
 			// check first if they are not already defined
-			if (this.getContext().fetchResource(StructureDefinition.class, "http://hl7.org/fhir/"+fhirVersion.substring(0,3)+"/StructureDefinition/StructureDefinition") == null) {
+			synchronized (this.getContext()) {
+				if (this.getContext().fetchResource(StructureDefinition.class, "http://hl7.org/fhir/"+fhirVersion.substring(0,3)+"/StructureDefinition/StructureDefinition") == null) {
+					// each context gets its own copies, the definitions keep caches in their user data
+					for (StructureDefinition sdn : getVersionedStructureDefinitions(contextForFhirVersion, fhirVersion.substring(0,3))) {
+						this.getContext().cacheResource(sdn.copy());
+					}
+				}
+			}
+		}
+		return contextForFhirVersion;
+	}
+
+	/**
+	 * prepares the contexts of the FHIR versions in the background, e.g. at startup,
+	 * so that the first cross-version transform does not have to wait for them.
+	 * The contexts are prepared on a dedicated daemon thread, not in the common pool
+	 */
+	public CompletableFuture<Void> preloadContextsForFhirVersions(String... fhirVersions) {
+		return CompletableFuture.runAsync(() -> {
+			for (String fhirVersion : fhirVersions) {
+				try {
+					getContextForFhirVersion(fhirVersion);
+					log.info("Preloaded context for FHIR version " + fhirVersion);
+				} catch (FHIRException | IOException e) {
+					log.error("Unable to preload context for FHIR version " + fhirVersion, e);
+				}
+			}
+		}, xVersionPreloadExecutor);
+	}
+
+	private static ExecutorService newXVersionPreloadExecutor() {
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					final Thread thread = new Thread(runnable, "matchbox-xversion-preload");
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private ValidationEngine getXVersionEngine(String version) throws IOException {
+		ValidationEngine engine = sessionCache.fetchSessionValidatorEngine(version);
+		if (engine != null) {
+			return engine;
+		}
+		CompletableFuture<ValidationEngine> build = new CompletableFuture<>();
+		CompletableFuture<ValidationEngine> inFlight = xVersionEngineBuilds.putIfAbsent(version, build);
+		if (inFlight != null) {
+			try {
+				engine = inFlight.join();
+			} catch (CompletionException e) {
+				throw new FHIRException("Unable to create engine for FHIR version " + version, e.getCause());
+			}
+		} else {
+			try {
+				engine = sessionCache.fetchSessionValidatorEngine(version);
+				if (engine == null) {
+					switch (version) {
+						case "4.0" -> engine = new MatchboxEngineBuilder().getEngineR4();
+						case "4.3" -> engine = new MatchboxEngineBuilder().getEngineR4B();
+						default -> engine = new MatchboxEngineBuilder().getEngineR5();
+					}
+				}
+				build.complete(engine);
+			} catch (Throwable e) {
+				// every failure completes the build, the callers waiting for it would block otherwise
+				build.completeExceptionally(e);
+				throw e;
+			} finally {
+				xVersionEngineBuilds.remove(version, build);
+			}
+		}
+		if (sessionCache.fetchSessionValidatorEngine(version) == null) {
+			sessionCache.cacheSession(version, engine);
+		}
+		return engine;
+	}
+
+	/**
+	 * the StructureDefinitions of the core of a FHIR version with the versioned url
+	 * (http://hl7.org/fhir/4.0/StructureDefinition/Patient), created once per
+	 * context of the version. They are templates, the engines register copies of them
+	 */
+	private static List<StructureDefinition> getVersionedStructureDefinitions(SimpleWorkerContext contextForFhirVersion, String version) {
+		synchronized (versionedStructureDefinitions) {
+			List<StructureDefinition> sds = versionedStructureDefinitions.get(contextForFhirVersion);
+			if (sds == null) {
+				sds = new ArrayList<>();
 				int len = "http://hl7.org/fhir/".length();
 				for (StructureDefinition sd : contextForFhirVersion.listStructures()) {
 					if (sd.getUrl().startsWith("http://hl7.org/fhir/") && sd.getKind()!=null  && sd.getKind() != StructureDefinition.StructureDefinitionKind.LOGICAL && !"Extensions".equals(sd.getType())) {
 						if (!Character.isDigit(sd.getUrl().charAt(len))) {
-  						StructureDefinition sdn = sd.copy();
-  						sdn.setUrl(sdn.getUrl().replace("http://hl7.org/fhir/", "http://hl7.org/fhir/"+fhirVersion.substring(0,3)+"/"));
-  						sdn.addExtension().setUrl("http://hl7.org/fhir/StructureDefinition/elementdefinition-namespace")
-  						  .setValue(new UriType("http://hl7.org/fhir"));
-  						this.getContext().cacheResource(sdn);
+							StructureDefinition sdn = sd.copy();
+							sdn.setUrl(sdn.getUrl().replace("http://hl7.org/fhir/", "http://hl7.org/fhir/"+version+"/"));
+							sdn.addExtension().setUrl("http://hl7.org/fhir/StructureDefinition/elementdefinition-namespace")
+							  .setValue(new UriType("http://hl7.org/fhir"));
+							sds.add(sdn);
 						}
 					}
-				}	
-			} 
+				}
+				sds = Collections.unmodifiableList(sds);
+				versionedStructureDefinitions.put(contextForFhirVersion, sds);
+			}
+			return sds;
 		}
-		return contextForFhirVersion;
 	}
 
 	/**
@@ -636,9 +880,6 @@ public class MatchboxEngine extends ValidationEngine {
 	public org.hl7.fhir.r5.elementmodel.Element transform(org.hl7.fhir.r5.elementmodel.Element src,  String mapUri, SimpleWorkerContext targetContext)
 			throws FHIRException, IOException {
 		SimpleWorkerContext context = this.getContext();
-		List<Base> outputs = new ArrayList<>();
-		StructureMapUtilities scu = new MatchboxStructureMapUtilities(context,
-				new TransformSupportServices(targetContext!=null ? targetContext : context, outputs), this);
 		StructureMap map = context.fetchResource(StructureMap.class, mapUri);
 		if (map == null) {
 			log.error("Unable to find map " + mapUri + " (Known Maps = " + context.listMapUrls() + ")");
@@ -647,13 +888,21 @@ public class MatchboxEngine extends ValidationEngine {
 		log.info("Using map " + map.getUrl() + (map.getVersion()!=null ? "|" + map.getVersion() + " " : "" )
 				+ (map.getDateElement() != null && !map.getDateElement().isEmpty()  ? "(" + map.getDateElement().asStringValue() + ")" : ""));
 
+		TransformSession session = getTransformSession(map);
+		if (targetContext == session.getTargetContext()) {
+			return session.transform(src);
+		}
 		org.hl7.fhir.r5.elementmodel.Element resource = getTargetResourceFromStructureMap(map, targetContext);
 
+		List<Base> outputs = new ArrayList<>();
+		StructureMapUtilities scu = new MatchboxStructureMapUtilities(context,
+				new TransformSupportServices(targetContext!=null ? targetContext : context, outputs), this);
 		scu.transform(null, src, map, resource);
-		resource.populatePaths(null);
+		this.populatePaths(resource);
 		return resource;
 	}
 
+
 	/**
 	 * returns the explication FHIR version of it the FHIR resource contains the version inside the url
 	 * http://hl7.org/fhir/3.0/StructureDefinition/Account
@@ -671,7 +920,7 @@ public class MatchboxEngine extends ValidationEngine {
 	 * @param mode
 	 * @return
 	 */
-	private String getCanonicalFromStructureMap(StructureMap map, StructureMap.StructureMapModelMode mode) {
+	String getCanonicalFromStructureMap(StructureMap map, StructureMap.StructureMapModelMode mode) {
 		String targetTypeUrl = null;
 		for (StructureMap.StructureMapStructureComponent component : map.getStructure()) {
 			if (component.getMode() == mode) {
@@ -684,8 +933,12 @@ public class MatchboxEngine extends ValidationEngine {
 	}
 
 	private org.hl7.fhir.r5.elementmodel.Element getTargetResourceFromStructureMap(StructureMap map, SimpleWorkerContext targetContext) {
-		String targetTypeUrl = null;
 		SimpleWorkerContext context = (targetContext!=null ? targetContext : this.getContext());
+		return Manager.build(context, getTargetStructureDefinition(map, context));
+	}
+
+	StructureDefinition getTargetStructureDefinition(StructureMap map, SimpleWorkerContext context) {
+		String targetTypeUrl = null;
 		for (StructureMap.StructureMapStructureComponent component : map.getStructure()) {
 			if (component.getMode() == StructureMap.StructureMapModelMode.TARGET) {
 				targetTypeUrl = component.getUrl();
@@ -718,7 +971,7 @@ public class MatchboxEngine extends ValidationEngine {
 			throw new FHIRException("Unable to find StructureDefinition for target type ('" + targetTypeUrl + "')");
 		}
 
-		return Manager.build(context, structureDefinition);
+		return structureDefinition;
 	}
 
 	/**
@@ -730,6 +983,7 @@ public class MatchboxEngine extends ValidationEngine {
 	 */
 	public void addCanonicalResource(InputStream stream) throws FHIRException {
 		getContext().loadFromFile(stream, "", null);
+		definitionsChanged();
 	}
 
 	/**
@@ -742,6 +996,7 @@ public class MatchboxEngine extends ValidationEngine {
 	public void addCanonicalResource(Resource resource) throws FHIRException {
 		org.hl7.fhir.r5.model.Resource r5 = VersionConvertorFactory_40_50.convertResource(resource);
 		getContext().cacheResource(r5);
+		definitionsChanged();
 	}
 
 	/**
@@ -754,6 +1009,7 @@ public class MatchboxEngine extends ValidationEngine {
 	public void addCanonicalResource(org.hl7.fhir.r4b.model.CanonicalResource resource) throws FHIRException {
 		org.hl7.fhir.r5.model.Resource r5 = VersionConvertorFactory_43_50.convertResource(resource);
 		getContext().cacheResource(r5);
+		definitionsChanged();
 	}
 
 	/**
@@ -765,6 +1021,26 @@ public class MatchboxEngine extends ValidationEngine {
 	 */
 	public void addCanonicalResource(org.hl7.fhir.r5.model.CanonicalResource resource) throws FHIRException {
 		getContext().cacheResource(resource);
+		definitionsChanged();
+	}
+
+	/**
+	 * the loaded definitions changed, the outcomes and sessions depending on them are not used anymore
+	 */
+	protected void definitionsChanged() {
+		this.definitionsVersion = getContext().getDefinitionsVersion();
+		this.engineId = UUID.randomUUID().toString();
+		this.transformSessions.clear();
+	}
+
+	/**
+	 * calls {@link #definitionsChanged()} if the context changed since the last check, also when it was changed
+	 * through the IgLoader or directly in the context instead of through the engine
+	 */
+	protected void checkDefinitions() {
+		if (getContext().getDefinitionsVersion() != this.definitionsVersion) {
+			definitionsChanged();
+		}
 	}
 
 	/**
@@ -813,10 +1089,113 @@ public class MatchboxEngine extends ValidationEngine {
 						+ (sd.getDateElement() != null ? "(" + sd.getDateElement().asStringValue() + ")" : ""));
 		}
 		final List<ValidationMessage> messages = new ArrayList<>();
+		final InstanceValidator validator = this.getConfiguredValidator(format);
+		final List<StructureDefinition> profiles = (sd != null) ? new ArrayList<>(List.of(sd)) :  new ArrayList<>();
+		if (this.chunkedValidation && format == FhirFormat.JSON && (sd == null || sd.getKind() != StructureDefinitionKind.LOGICAL)) {
+			new ChunkedBundleValidation(this.getContext(), validator).validate(stream.readAllBytes(), profiles, messages);
+		} else {
+			validator.validate(null, messages, stream, format, profiles);
+		}
+		return this.filterValidationMessages(messages);
+	}
+
+	/**
+	 * validates the input, transforms it with the map and optionally validates the transformed resource, the input
+	 * is parsed once and the element tree of the validation is the source of the transform. The transform is skipped
+	 * if the source validation reports an error.
+	 *
+	 * @param input            source in UTF-8 format
+	 * @param inputFormat      if input is in json or xml
+	 * @param sourceProfileUrl profile to validate the source against, if null the source structure of the map is used
+	 *                         when it is a logical model
+	 * @param mapUri           map to use for transformation
+	 * @param validateTarget   if the transformed resource should be validated
+	 * @param targetProfileUrl profile to validate the transformed resource against, may be null
+	 * @return the messages of both validations and the transformed resource
+	 * @throws FHIRException FHIR Exception
+	 * @throws IOException   IO Exception
+	 */
+	public ValidateTransformResult validateAndTransform(final @NonNull InputStream input,
+																		 final @NonNull FhirFormat inputFormat,
+																		 final @Nullable String sourceProfileUrl,
+																		 final @NonNull String mapUri,
+																		 final boolean validateTarget,
+																		 final @Nullable String targetProfileUrl)
+			throws FHIRException, IOException {
+		log.info("Start validate and transform: " + mapUri);
+		final TransformSession session = this.getTransformSession(mapUri);
+		final List<StructureDefinition> sourceProfiles = new ArrayList<>();
+		if (sourceProfileUrl != null) {
+			sourceProfiles.add(this.getProfileForValidation(sourceProfileUrl));
+		} else if (session.getSourceStructure() != null
+			&& session.getSourceStructure().getKind() == StructureDefinitionKind.LOGICAL
+			&& session.getSourceContext() == this.getContext()) {
+			sourceProfiles.add(session.getSourceStructure());
+		}
+
+		// the tree of the validation can only be transformed if the map reads it in the FHIR version of this engine
+		final boolean reuseTree = session.getSourceContext() == this.getContext();
+		byte[] bytes = null;
+		InputStream stream = input;
+		if (!reuseTree) {
+			bytes = input.readAllBytes();
+			stream = new ByteArrayInputStream(bytes);
+		}
+
+		final List<ValidationMessage> messages = new ArrayList<>();
+		final Element source = this.getConfiguredValidator(inputFormat).validate(null, messages, stream, inputFormat, sourceProfiles);
+		final List<ValidationMessage> sourceMessages = this.filterValidationMessages(messages);
+		if (source == null || ValidateTransformResult.hasErrors(sourceMessages)) {
+			log.info("Validate and transform finished, source not valid: " + mapUri);
+			return new ValidateTransformResult(sourceMessages, null, new ArrayList<>());
+		}
+
+		final Element transformed = session.transform(reuseTree ? source : session.parse(new ByteArrayInputStream(bytes), inputFormat));
+		List<ValidationMessage> targetMessages = new ArrayList<>();
+		if (validateTarget) {
+			if (session.getTargetContext() != this.getContext()) {
+				throw new FHIRException("Unable to validate the target of map " + mapUri + ", its FHIR version differs from the engine");
+			}
+			final List<StructureDefinition> targetProfiles = new ArrayList<>();
+			if (targetProfileUrl != null) {
+				targetProfiles.add(this.getProfileForValidation(targetProfileUrl));
+			}
+			// the transformed tree is validated as is, without a round trip through a serialization
+			this.getConfiguredValidator(null).validate(null, targetMessages, null, transformed, targetProfiles);
+			targetMessages = this.filterValidationMessages(targetMessages);
+		}
+		log.info("Validate and transform finished: " + mapUri);
+		return new ValidateTransformResult(sourceMessages, transformed, targetMessages);
+	}
+
+	private StructureDefinition getProfileForValidation(final String profileUrl) {
+		final StructureDefinition sd = this.getStructureDefinitionR5(profileUrl);
+		if (sd == null) {
+			throw new FHIRException("Unable to find profile " + profileUrl);
+		}
+		return sd;
+	}
+
+	private InstanceValidator getConfiguredValidator(final FhirFormat format) throws FHIRException, IOException {
 		final InstanceValidator validator = getValidator(format);
 		validator.setPolicyAdvisor(new ValidationPolicyAdvisor(ReferenceValidationPolicy.CHECK_VALID));
-		validator.validate(null, messages, stream, format, (sd != null) ? new ArrayList<>(List.of(sd)) :  new ArrayList<>());
-		return this.filterValidationMessages(messages);
+		validator.setStreamingJson(this.streamingJson);
+		if (this.conformanceOutcomeCache != null) {
+			checkDefinitions();
+			validator.setConformanceOutcomeCache(this.conformanceOutcomeCache, this.engineId);
+		}
+		if (this.bundleEntryExecutor != null) {
+			validator.setParallelBundleEntries(this.bundleEntryExecutor, () -> {
+				try {
+					final InstanceValidator worker = getValidator(format);
+					worker.setPolicyAdvisor(new ValidationPolicyAdvisor(ReferenceValidationPolicy.CHECK_VALID));
+					return worker;
+				} catch (final IOException e) {
+					throw new FHIRException(e);
+				}
+			});
+		}
+		return validator;
 	}
 
 	/**
@@ -1017,7 +1396,7 @@ public class MatchboxEngine extends ValidationEngine {
 	            (inputJson ? FhirFormat.JSON : FhirFormat.XML));
 	    ByteArrayOutputStream bs = new ByteArrayOutputStream();
 	    Manager.compose(this.getContext(), e, bs, (inputJson ? FhirFormat.XML : FhirFormat.JSON), OutputStyle.PRETTY, null);
-	    String result = new String(bs.toByteArray());
+	    String result = bs.toString(StandardCharsets.UTF_8);
 	    bs.close();
 	    return result;
     }
@@ -1036,6 +1415,7 @@ public class MatchboxEngine extends ValidationEngine {
 		// Remove the dependencies to disable recursive loading
 		npmPackage.getNpm().set("dependencies", new JsonObject());
 		this.getIgLoader().loadPackage(npmPackage, true);
+		definitionsChanged();
 	}
 
 	/**
@@ -1093,6 +1473,119 @@ public class MatchboxEngine extends ValidationEngine {
 		this.suppressedWarnInfoPatterns.add(Objects.requireNonNull(pattern));
 	}
 
+	/**
+	 * Returns the number of threads used to validate the entries of a Bundle.
+	 */
+	public int getBundleEntryThreads() {
+		return this.bundleEntryThreads;
+	}
+
+	/**
+	 * Sets the number of threads used to validate the entries of a Bundle, 1 (default) validates them sequentially.
+	 * The engine creates a pool of that many threads which copies of the engine made afterwards share. Setting the
+	 * threads again shuts down the pool the engine created before, validations of this engine or its copies that still
+	 * use it validate their remaining entries in the calling thread.
+	 */
+	public void setBundleEntryThreads(final int bundleEntryThreads) {
+		if (this.ownsBundleEntryExecutor) {
+			this.bundleEntryExecutor.shutdown();
+		}
+		this.bundleEntryThreads = Math.max(1, bundleEntryThreads);
+		this.bundleEntryExecutor = this.bundleEntryThreads > 1 ? newBundleEntryExecutor(this.bundleEntryThreads) : null;
+		this.ownsBundleEntryExecutor = this.bundleEntryExecutor != null;
+	}
+
+	/**
+	 * The pool is bounded by the number of threads, its threads are daemons and end when idle.
+	 */
+	private static ExecutorService newBundleEntryExecutor(final int threads) {
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					final Thread thread = new Thread(runnable, "matchbox-bundle-entry-validation");
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Returns true if JSON input of validations and transforms is read with the streaming parser.
+	 */
+	public boolean isStreamingJson() {
+		return this.streamingJson;
+	}
+
+	/**
+	 * Reads JSON input of validations and transforms with a pull tokenizer, the entries of a Bundle are converted one
+	 * by one so that large Bundles are not held as a JSON tree and an element tree at the same time (default false).
+	 */
+	public void setStreamingJson(final boolean streamingJson) {
+		this.streamingJson = streamingJson;
+	}
+
+	/**
+	 * Returns true if JSON Bundles are validated entry by entry.
+	 */
+	public boolean isChunkedValidation() {
+		return this.chunkedValidation;
+	}
+
+	/**
+	 * Validates JSON Bundles entry by entry (default false): the resource of each entry is validated on its own as
+	 * soon as it has been parsed and released afterwards, and the Bundle is validated with the resources of its entries
+	 * reduced to their type, id and meta.versionId, except for the first entry of a document or message. References
+	 * between the entries are checked for existence and type against an index of the entries, the referenced resources
+	 * are not validated against the target profiles of the references. Bundles validated against a profile that slices
+	 * or constrains their entries are validated as a whole. The input is read into memory as a whole, the saving is the
+	 * element tree of the resources. Other input is validated as a whole.
+	 */
+	public void setChunkedValidation(final boolean chunkedValidation) {
+		this.chunkedValidation = chunkedValidation;
+	}
+
+	/**
+	 * Returns true if the sources of transforms are parsed with line and column of their elements and the outputs get
+	 * their paths when they are created.
+	 */
+	public boolean isTrackLocations() {
+		return this.trackLocations;
+	}
+
+	/**
+	 * If false, XML sources of transforms are parsed without line and column, and the paths of the elements of
+	 * sources and outputs are only built for the elements they are asked for (default true). Validations always
+	 * track the locations.
+	 */
+	public void setTrackLocations(final boolean trackLocations) {
+		this.trackLocations = trackLocations;
+	}
+
+	void populatePaths(final Element resource) {
+		if (this.trackLocations) {
+			resource.populatePaths(null);
+		} else {
+			resource.linkPaths(null);
+		}
+	}
+
+	/**
+	 * Returns the cache of the outcomes of referenced and contained resources shared across validations, or null if
+	 * disabled.
+	 */
+	public ConformanceOutcomeCache getConformanceOutcomeCache() {
+		return this.conformanceOutcomeCache;
+	}
+
+	/**
+	 * Enables the cache of the outcomes of referenced and contained resources shared across validations with the
+	 * given number of entries, 0 disables it (default). Copies of this engine share the cache, each with its own
+	 * entries. The cache is an engine-only option, the server does not enable it.
+	 */
+	public void setConformanceOutcomeCacheSize(final int maxEntries) {
+		this.conformanceOutcomeCache = maxEntries > 0 ? new ConformanceOutcomeCache(maxEntries) : null;
+	}
+
 	/**
 	 * Returns the list of suppressed validation warning/information-level issues.
 	 */
@@ -1107,6 +1600,14 @@ public class MatchboxEngine extends ValidationEngine {
 		return this.suppressedWarnInfoPatterns.stream().map(Pattern::compile).collect(Collectors.toList());
 	}
 
+	/**
+	 * Maps a list of {@link ValidationMessage} to an R4 {@link OperationOutcome}, rendered in the context of this engine.
+	 */
+	public OperationOutcome messagesToOutcome(final @NonNull List<ValidationMessage> messages)
+		throws IOException, FHIRException, EOperationOutcome {
+		return this.messagesToOutcome(messages, this.getContext());
+	}
+
 	/**
 	 * Maps a list of {@link ValidationMessage} to an R4 {@link OperationOutcome}.
 	 */
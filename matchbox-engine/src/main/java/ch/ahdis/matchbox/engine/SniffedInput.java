@@ -0,0 +1,200 @@
+package ch.ahdis.matchbox.engine;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.input.ReaderInputStream;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+
+/**
+ * an input whose byte order mark, format (XML or JSON) and charset have been read from its first bytes, without
+ * decoding the input.
+ * <p>
+ * The stream of the input starts after a UTF-8 byte order mark. JSON in UTF-16 or UTF-32 is transcoded to UTF-8 while
+ * it is read, XML is passed on as is for the parser to read its encoding.
+ */
+public class SniffedInput {
+
+	// enough for leading whitespace and an XML declaration
+	private static final int PEEK = 1024;
+
+	private static final Charset UTF_32BE = Charset.forName("UTF-32BE");
+	private static final Charset UTF_32LE = Charset.forName("UTF-32LE");
+
+	private static final Pattern XML_ENCODING = Pattern.compile("^\\s*<\\?xml[^>]*?encoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._\\-]*)[\"']");
+
+	private final InputStream stream;
+	private final Charset charset;
+	private final boolean byteOrderMark;
+	private final FhirFormat format;
+	private final boolean empty;
+
+	private SniffedInput(final InputStream stream, final Charset charset, final boolean byteOrderMark,
+								final FhirFormat format, final boolean empty) {
+		this.stream = stream;
+		this.charset = charset;
+		this.byteOrderMark = byteOrderMark;
+		this.format = format;
+		this.empty = empty;
+	}
+
+	/**
+	 * reads the first bytes of the input, the input is read further through {@link #getStream()}
+	 */
+	public static SniffedInput of(final InputStream input) throws IOException {
+		final BufferedInputStream in = new BufferedInputStream(input);
+		in.mark(PEEK);
+		final byte[] head = in.readNBytes(PEEK);
+		in.reset();
+
+		Charset charset = StandardCharsets.UTF_8;
+		int bom = 0;
+		if (startsWith(head, 0xEF, 0xBB, 0xBF)) {
+			bom = 3;
+		} else if (startsWith(head, 0x00, 0x00, 0xFE, 0xFF)) {
+			charset = UTF_32BE;
+			bom = 4;
+		} else if (startsWith(head, 0xFF, 0xFE, 0x00, 0x00)) {
+			charset = UTF_32LE;
+			bom = 4;
+		} else if (startsWith(head, 0xFE, 0xFF)) {
+			charset = StandardCharsets.UTF_16BE;
+			bom = 2;
+		} else if (startsWith(head, 0xFF, 0xFE)) {
+			charset = StandardCharsets.UTF_16LE;
+			bom = 2;
+		} else if (head.length >= 4) {
+			// the first character is ASCII, the zero bytes around it give the width and byte order
+			if (head[0] == 0 && head[1] == 0 && head[2] == 0 && head[3] != 0) {
+				charset = UTF_32BE;
+			} else if (head[0] != 0 && head[1] == 0 && head[2] == 0 && head[3] == 0) {
+				charset = UTF_32LE;
+			} else if (head[0] == 0 && head[1] != 0 && head[2] == 0 && head[3] != 0) {
+				charset = StandardCharsets.UTF_16BE;
+			} else if (head[0] != 0 && head[1] == 0 && head[2] != 0 && head[3] == 0) {
+				charset = StandardCharsets.UTF_16LE;
+			}
+		}
+
+		final String text = new String(head, bom, head.length - bom, charset);
+		FhirFormat format = null;
+		for (int i = 0; i < text.length() && format == null; i++) {
+			final char c = text.charAt(i);
+			if (c == '<') {
+				format = FhirFormat.XML;
+			} else if (c == '{' || c == '[') {
+				format = FhirFormat.JSON;
+			} else if (!Character.isWhitespace(c)) {
+				break;
+			}
+		}
+
+		InputStream stream = in;
+		if (format == FhirFormat.XML) {
+			if (bom == 0 && charset == StandardCharsets.UTF_8) {
+				final Matcher matcher = XML_ENCODING.matcher(text);
+				if (matcher.find() && Charset.isSupported(matcher.group(1))) {
+					charset = Charset.forName(matcher.group(1));
+				}
+			}
+			// the XML parser reads byte order marks other than UTF-8 itself
+			if (bom == 3) {
+				in.skipNBytes(bom);
+			}
+		} else {
+			in.skipNBytes(bom);
+			if (charset != StandardCharsets.UTF_8) {
+				stream = ReaderInputStream.builder()
+					.setReader(new InputStreamReader(in, charset))
+					.setCharset(StandardCharsets.UTF_8)
+					.get();
+			}
+		}
+		return new SniffedInput(stream, charset, bom > 0, format, head.length == 0);
+	}
+
+	private static boolean startsWith(final byte[] head, final int... prefix) {
+		if (head.length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if ((head[i] & 0xFF) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * the input without a UTF-8 byte order mark, JSON in UTF-8
+	 */
+	public InputStream getStream() {
+		return this.stream;
+	}
+
+	/**
+	 * the charset of the input, from the byte order mark, the first character or the XML declaration
+	 */
+	public Charset getCharset() {
+		return this.charset;
+	}
+
+	public boolean hasByteOrderMark() {
+		return this.byteOrderMark;
+	}
+
+	/**
+	 * XML or JSON from the first character which is not whitespace, null if neither
+	 */
+	public FhirFormat getFormat() {
+		return this.format;
+	}
+
+	/**
+	 * the format named by the content type if it names one, else the format of the content, else the default
+	 */
+	public FhirFormat getFormat(final String contentType, final FhirFormat defaultFormat) {
+		if (contentType != null) {
+			final String type = contentType.toLowerCase(Locale.ROOT);
+			if (type.contains("json")) {
+				return FhirFormat.JSON;
+			}
+			if (type.contains("xml")) {
+				return FhirFormat.XML;
+			}
+		}
+		return this.format != null ? this.format : defaultFormat;
+	}
+
+	public boolean isEmpty() {
+		return this.empty;
+	}
+}
@@ -0,0 +1,193 @@
+package ch.ahdis.matchbox.engine;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.hl7.fhir.utilities.json.model.JsonArray;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+
+/**
+ * transforms a stream of records with one map and writes the outputs as NDJSON in the order of the input.
+ * <p>
+ * The map, the contexts and the source and target structures are resolved once in the {@link TransformSession}
+ * of the map. The records are transformed on a pool of workers, either a shared executor handed in by the caller or
+ * a pool owned by the batch; at most twice as many records as workers are read ahead, so the memory used does not
+ * depend on the size of the input. A record which cannot be parsed or transformed is written as an
+ * OperationOutcome line and does not stop the batch.
+ */
+public class TransformBatch {
+
+	protected static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TransformBatch.class);
+
+	/**
+	 * counts of a batch transform
+	 */
+	public static class Summary {
+		private long records;
+		private long failed;
+
+		public long getRecords() {
+			return records;
+		}
+
+		public long getTransformed() {
+			return records - failed;
+		}
+
+		public long getFailed() {
+			return failed;
+		}
+	}
+
+	private final FhirFormat inputFormat;
+	private final int threads;
+	private final TransformSession session;
+	private final StructureMap map;
+	private final ExecutorService executor;
+
+	public TransformBatch(MatchboxEngine engine, String mapUri, FhirFormat inputFormat, int threads)
+			throws FHIRException, IOException {
+		this(engine, mapUri, inputFormat, threads, null);
+	}
+
+	/**
+	 * @param threads  the number of records transformed at the same time
+	 * @param executor the executor the records are transformed on, it is not shut down by the batch; if null the
+	 *                 batch creates a pool of threads workers for each run
+	 */
+	public TransformBatch(MatchboxEngine engine, String mapUri, FhirFormat inputFormat, int threads,
+			ExecutorService executor) throws FHIRException, IOException {
+		this.inputFormat = inputFormat;
+		this.threads = Math.max(1, threads);
+		this.session = engine.getTransformSession(mapUri);
+		this.map = session.getMap();
+		this.executor = executor;
+	}
+
+	public Summary run(InputStream input, OutputStream output) throws IOException {
+		log.info("Start batch transform: " + map.getUrl() + " with " + threads + " threads");
+		Summary summary = new Summary();
+		TransformRecordReader reader = new TransformRecordReader(input, inputFormat);
+		ExecutorService executor = this.executor != null ? this.executor : Executors.newFixedThreadPool(threads);
+		Deque<Future<Outcome>> pending = new ArrayDeque<>();
+		try {
+			String record;
+			long index = 0;
+			while ((record = reader.next()) != null) {
+				final long n = index++;
+				final String content = record;
+				pending.add(executor.submit(() -> transform(n, content)));
+				while (pending.size() >= threads * 2) {
+					write(pending.poll(), output, summary);
+				}
+			}
+			while (!pending.isEmpty()) {
+				write(pending.poll(), output, summary);
+			}
+			output.flush();
+		} finally {
+			for (Future<Outcome> f : pending) {
+				f.cancel(true);
+			}
+			if (executor != this.executor) {
+				executor.shutdownNow();
+			}
+		}
+		log.info("Batch transform finished: " + map.getUrl() + ", " + summary.getTransformed() + " transformed, "
+				+ summary.getFailed() + " failed");
+		return summary;
+	}
+
+	private void write(Future<Outcome> future, OutputStream output, Summary summary) throws IOException {
+		if (!future.isDone()) {
+			output.flush();
+		}
+		Outcome outcome;
+		try {
+			outcome = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Batch transform interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Batch transform failed", e.getCause());
+		}
+		summary.records++;
+		if (outcome.failed) {
+			summary.failed++;
+		}
+		output.write(outcome.line);
+		output.write('\n');
+	}
+
+	private Outcome transform(long index, String record) {
+		try {
+			Element src = session.parse(new ByteArrayInputStream(record.getBytes(StandardCharsets.UTF_8)), inputFormat);
+			Element transformed = session.transform(src);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			Manager.composeStreaming(session.getTargetContext(), transformed, bytes, FhirFormat.JSON, OutputStyle.NORMAL, null);
+			return new Outcome(bytes.toByteArray(), false);
+		} catch (Exception e) {
+			log.debug("Record " + index + " could not be transformed", e);
+			return new Outcome(operationOutcome(index, e), true);
+		}
+	}
+
+	private static byte[] operationOutcome(long index, Exception e) {
+		JsonObject issue = new JsonObject();
+		issue.add("severity", "error");
+		issue.add("code", "exception");
+		issue.add("diagnostics", "Record " + index + ": " + (e.getMessage() != null ? e.getMessage() : e.getClass().getName()));
+		JsonArray issues = new JsonArray();
+		issues.add(issue);
+		JsonObject oo = new JsonObject();
+		oo.add("resourceType", "OperationOutcome");
+		oo.add("issue", issues);
+		return org.hl7.fhir.utilities.json.parser.JsonParser.composeBytes(oo, false);
+	}
+
+	private static class Outcome {
+		private final byte[] line;
+		private final boolean failed;
+
+		private Outcome(byte[] line, boolean failed) {
+			this.line = line;
+			this.failed = failed;
+		}
+	}
+}
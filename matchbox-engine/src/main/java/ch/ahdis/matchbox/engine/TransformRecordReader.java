@@ -0,0 +1,227 @@
+package ch.ahdis.matchbox.engine;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+
+/**
+ * splits a stream into the records of a batch transform: JSON objects (NDJSON or concatenated) or XML documents
+ * (concatenated, each with its optional prolog). Only the record being read is kept in memory.
+ * <p>
+ * The splitting only tracks nesting, strings and markup; the content of a record is checked by the parser of the
+ * transform. Text which is not a record at the top level is returned up to the end of the line as a record of its
+ * own so that it gets reported.
+ */
+class TransformRecordReader {
+
+	private final Reader reader;
+	private final boolean xml;
+	private int pushedBack = -1;
+
+	TransformRecordReader(InputStream input, FhirFormat format) {
+		this.reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+		this.xml = format == FhirFormat.XML;
+	}
+
+	/**
+	 * @return the next record, or null at the end of the stream
+	 */
+	String next() throws IOException {
+		int c = skipWhitespace();
+		if (c < 0) {
+			return null;
+		}
+		StringBuilder b = new StringBuilder();
+		if (c == '\uFEFF') {
+			c = skipWhitespace();
+			if (c < 0) {
+				return null;
+			}
+		}
+		if (xml && c == '<') {
+			readXml(b, c);
+		} else if (!xml && c == '{') {
+			readJson(b, c);
+		} else {
+			readLine(b, c);
+		}
+		return b.toString();
+	}
+
+	private int read() throws IOException {
+		if (pushedBack >= 0) {
+			int c = pushedBack;
+			pushedBack = -1;
+			return c;
+		}
+		return reader.read();
+	}
+
+	private int skipWhitespace() throws IOException {
+		int c = read();
+		while (c >= 0 && Character.isWhitespace(c)) {
+			c = read();
+		}
+		return c;
+	}
+
+	private void readLine(StringBuilder b, int c) throws IOException {
+		while (c >= 0 && c != '\n') {
+			b.append((char) c);
+			c = read();
+		}
+	}
+
+	private void readJson(StringBuilder b, int c) throws IOException {
+		int depth = 0;
+		boolean inString = false;
+		boolean escaped = false;
+		while (c >= 0) {
+			b.append((char) c);
+			if (inString) {
+				if (escaped) {
+					escaped = false;
+				} else if (c == '\\') {
+					escaped = true;
+				} else if (c == '"') {
+					inString = false;
+				}
+			} else if (c == '"') {
+				inString = true;
+			} else if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				depth--;
+				if (depth == 0) {
+					return;
+				}
+			}
+			c = read();
+		}
+	}
+
+	private void readXml(StringBuilder b, int c) throws IOException {
+		int depth = 0;
+		while (c >= 0) {
+			if (c != '<') {
+				b.append((char) c);
+				c = read();
+				continue;
+			}
+			b.append('<');
+			int n = read();
+			if (n == '?') {
+				b.append('?');
+				readUntil(b, "?>");
+			} else if (n == '!') {
+				b.append('!');
+				readMarkupDeclaration(b);
+			} else if (n == '/') {
+				b.append('/');
+				readTag(b);
+				depth--;
+				if (depth <= 0) {
+					return;
+				}
+			} else if (n >= 0) {
+				pushedBack = n;
+				if (!readTag(b)) {
+					depth++;
+				} else if (depth == 0) {
+					return;
+				}
+			}
+			c = read();
+		}
+	}
+
+	/**
+	 * comment, CDATA section or document type declaration after "<!"
+	 */
+	private void readMarkupDeclaration(StringBuilder b) throws IOException {
+		int c = read();
+		if (c == '-') {
+			b.append('-');
+			readUntil(b, "-->");
+		} else if (c == '[') {
+			b.append('[');
+			readUntil(b, "]]>");
+		} else {
+			int brackets = 0;
+			while (c >= 0) {
+				b.append((char) c);
+				if (c == '[') {
+					brackets++;
+				} else if (c == ']') {
+					brackets--;
+				} else if (c == '>' && brackets <= 0) {
+					return;
+				}
+				c = read();
+			}
+		}
+	}
+
+	/**
+	 * reads a start or end tag up to its closing '>'
+	 *
+	 * @return true if the tag is an empty element tag
+	 */
+	private boolean readTag(StringBuilder b) throws IOException {
+		int quote = 0;
+		int previous = 0;
+		int c = read();
+		while (c >= 0) {
+			b.append((char) c);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return previous == '/';
+			}
+			previous = c;
+			c = read();
+		}
+		return false;
+	}
+
+	private void readUntil(StringBuilder b, String terminator) throws IOException {
+		int c = read();
+		while (c >= 0) {
+			b.append((char) c);
+			if (c == terminator.charAt(terminator.length() - 1) && b.length() >= terminator.length()
+					&& b.indexOf(terminator, b.length() - terminator.length()) >= 0) {
+				return;
+			}
+			c = read();
+		}
+	}
+}
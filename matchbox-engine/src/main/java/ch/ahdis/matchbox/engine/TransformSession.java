@@ -0,0 +1,122 @@
+package ch.ahdis.matchbox.engine;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.hl7.fhir.r5.utils.structuremap.StructureMapUtilities;
+
+import ch.ahdis.matchbox.mappinglanguage.MatchboxStructureMapUtilities;
+import ch.ahdis.matchbox.mappinglanguage.TransformSupportServices;
+
+/**
+ * everything a transform with one map needs besides the input: the source and target contexts and structures
+ * resolved once, and the StructureMapUtilities (with their FHIRPath engine, profile and context utilities) reused
+ * between the transforms. Sessions are cached per map in the MatchboxEngine, a new version of a map or new
+ * definitions in the engine get a new session.
+ * <p>
+ * The StructureMapUtilities keep state while transforming and are therefore lent to one transform at a time.
+ */
+public class TransformSession {
+
+	private static final int MAX_IDLE_UTILITIES = Runtime.getRuntime().availableProcessors() * 2;
+
+	private final MatchboxEngine engine;
+	private final StructureMap map;
+	private final SimpleWorkerContext sourceContext;
+	private final StructureDefinition sourceStructure;
+	private final SimpleWorkerContext targetContext;
+	private final StructureDefinition targetStructure;
+	private final Queue<StructureMapUtilities> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	TransformSession(MatchboxEngine engine, StructureMap map) throws FHIRException, IOException {
+		this.engine = engine;
+		this.map = map;
+		this.sourceContext = engine.getSourceContext(map);
+		this.sourceStructure = sourceContext.fetchResource(StructureDefinition.class,
+				engine.getCanonicalFromStructureMap(map, StructureMap.StructureMapModelMode.SOURCE));
+		this.targetContext = engine.getTargetContext(map);
+		this.targetStructure = engine.getTargetStructureDefinition(map, targetContext);
+	}
+
+	public StructureMap getMap() {
+		return map;
+	}
+
+	public SimpleWorkerContext getSourceContext() {
+		return sourceContext;
+	}
+
+	public SimpleWorkerContext getTargetContext() {
+		return targetContext;
+	}
+
+	public StructureDefinition getSourceStructure() {
+		return sourceStructure;
+	}
+
+	/**
+	 * parses the input as the source structure of the map
+	 */
+	public Element parse(InputStream input, FhirFormat format) throws FHIRException, IOException {
+		if (sourceStructure == null) {
+			throw new FHIRException("Unable to find StructureDefinition for source type ('"
+					+ engine.getCanonicalFromStructureMap(map, StructureMap.StructureMapModelMode.SOURCE) + "')");
+		}
+		return engine.parseSource(input, format, sourceContext, sourceStructure);
+	}
+
+	/**
+	 * transforms the source to a new instance of the target structure of the map
+	 */
+	public Element transform(Element src) throws FHIRException {
+		StructureMapUtilities scu = idle.poll();
+		if (scu != null) {
+			idleCount.decrementAndGet();
+		} else {
+			scu = new MatchboxStructureMapUtilities(engine.getContext(), new TransformSupportServices(targetContext, null), engine);
+		}
+		try {
+			Element resource = Manager.build(targetContext, targetStructure);
+			scu.transform(null, src, map, resource);
+			engine.populatePaths(resource);
+			return resource;
+		} finally {
+			if (idleCount.incrementAndGet() <= MAX_IDLE_UTILITIES) {
+				idle.add(scu);
+			} else {
+				idleCount.decrementAndGet();
+			}
+		}
+	}
+}
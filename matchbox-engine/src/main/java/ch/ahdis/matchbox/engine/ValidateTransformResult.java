@@ -0,0 +1,82 @@
+package ch.ahdis.matchbox.engine;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+
+/**
+ * result of {@link MatchboxEngine#validateAndTransform}: the messages of the source validation, the transformed
+ * resource if the source was valid, and the messages of the target validation if it was requested.
+ */
+public class ValidateTransformResult {
+
+	private final List<ValidationMessage> sourceMessages;
+	private final Element transformed;
+	private final List<ValidationMessage> targetMessages;
+
+	ValidateTransformResult(List<ValidationMessage> sourceMessages, Element transformed,
+			List<ValidationMessage> targetMessages) {
+		this.sourceMessages = sourceMessages;
+		this.transformed = transformed;
+		this.targetMessages = targetMessages;
+	}
+
+	public List<ValidationMessage> getSourceMessages() {
+		return sourceMessages;
+	}
+
+	/**
+	 * @return the transformed resource, null if the source had errors and was not transformed
+	 */
+	public Element getTransformed() {
+		return transformed;
+	}
+
+	/**
+	 * @return the messages of the target validation, empty if the target was not validated
+	 */
+	public List<ValidationMessage> getTargetMessages() {
+		return targetMessages;
+	}
+
+	public boolean isTransformed() {
+		return transformed != null;
+	}
+
+	/**
+	 * @return true if neither the source nor the target validation reported an error
+	 */
+	public boolean isValid() {
+		return !hasErrors(sourceMessages) && !hasErrors(targetMessages);
+	}
+
+	static boolean hasErrors(List<ValidationMessage> messages) {
+		for (ValidationMessage message : messages) {
+			if (message.isError()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
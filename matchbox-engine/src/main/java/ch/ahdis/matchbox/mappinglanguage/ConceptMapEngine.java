@@ -1,46 +1,58 @@
 package ch.ahdis.matchbox.mappinglanguage;
 
-/*
-  Copyright (c) 2011+, HL7, Inc.
-  All rights reserved.
-  
-  Redistribution and use in source and binary forms, with or without modification, 
-  are permitted provided that the following conditions are met:
-    
-   * Redistributions of source code must retain the above copyright notice, this 
-     list of conditions and the following disclaimer.
-   * Redistributions in binary form must reproduce the above copyright notice, 
-     this list of conditions and the following disclaimer in the documentation 
-     and/or other materials provided with the distribution.
-   * Neither the name of HL7 nor the names of its contributors may be used to 
-     endorse or promote products derived from this software without specific 
-     prior written permission.
-  
-  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
-  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
-  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
-  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
-  INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
-  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
-  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
-  WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
-  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
-  POSSIBILITY OF SUCH DAMAGE.
-  
- */
+/*
+  Copyright (c) 2011+, HL7, Inc.
+  All rights reserved.
+  
+  Redistribution and use in source and binary forms, with or without modification, 
+  are permitted provided that the following conditions are met:
+    
+   * Redistributions of source code must retain the above copyright notice, this 
+     list of conditions and the following disclaimer.
+   * Redistributions in binary form must reproduce the above copyright notice, 
+     this list of conditions and the following disclaimer in the documentation 
+     and/or other materials provided with the distribution.
+   * Neither the name of HL7 nor the names of its contributors may be used to 
+     endorse or promote products derived from this software without specific 
+     prior written permission.
+  
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+  INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+  WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+  POSSIBILITY OF SUCH DAMAGE.
+  
+ */
 
 
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.model.Coding;
 import org.hl7.fhir.r5.model.ConceptMap;
-import org.hl7.fhir.r5.model.ConceptMap.ConceptMapGroupComponent;
+import org.hl7.fhir.r5.model.ConceptMap.OtherElementComponent;
 import org.hl7.fhir.r5.model.ConceptMap.SourceElementComponent;
 import org.hl7.fhir.r5.model.ConceptMap.TargetElementComponent;
+import org.hl7.fhir.r5.model.DataType;
 import org.hl7.fhir.r5.model.Enumerations.ConceptMapRelationship;
+import org.hl7.fhir.r5.utils.structuremap.SourceElementComponentWrapper;
 import org.hl7.fhir.utilities.CanonicalPair;
 
+/**
+ * matchbox patch: translation of codes with a ConceptMap, the source elements are looked up in the
+ * {@link ConceptMapIndex} of the map which is built once per ConceptMap and shared between all the engines and
+ * transforms using the same worker context.
+ */
 public class ConceptMapEngine {
 
   private IWorkerContext context;
@@ -49,51 +61,139 @@ public class ConceptMapEngine {
     this.context = context;
   }
 
-  public Coding translate(Coding source, String url) throws FHIRException {
-    ConceptMap cm = context.fetchResource(ConceptMap.class, url);
-    if (cm == null)
-      throw new FHIRException("Unable to find ConceptMap '"+url+"'");
-    if (source.hasSystem()) 
-      return translateBySystem(cm, source.getSystem(), source.getCode());
-    else
-      return translateByJustCode(cm, source.getCode());
+  /**
+   * a target of a source element matching the translated code
+   */
+  public static class TranslationMatch {
+    private final ConceptMapRelationship relationship;
+    private final Coding concept;
+    private final List<OtherElementComponent> products;
+    private final String source;
+    private final TargetElementComponent target;
+
+    private TranslationMatch(ConceptMapRelationship relationship, Coding concept, List<OtherElementComponent> products, String source, TargetElementComponent target) {
+      this.relationship = relationship;
+      this.concept = concept;
+      this.products = products;
+      this.source = source;
+      this.target = target;
+    }
+
+    public ConceptMapRelationship getRelationship() {
+      return relationship;
+    }
+
+    public Coding getConcept() {
+      return concept;
+    }
+
+    public List<OtherElementComponent> getProducts() {
+      return products;
+    }
+
+    public String getSource() {
+      return source;
+    }
+
+    /**
+     * @return the target element of the map, null if the source element is not mapped (noMap)
+     */
+    public TargetElementComponent getTarget() {
+      return target;
+    }
+
+    public boolean isOk() {
+      return isOkRelationship(relationship);
+    }
   }
 
-  private Coding translateByJustCode(ConceptMap cm, String code) throws FHIRException {
-    SourceElementComponent ct = null;
-    ConceptMapGroupComponent cg = null;
-    for (ConceptMapGroupComponent g : cm.getGroup()) {
-      for (SourceElementComponent e : g.getElement()) {
-        if (code.equals(e.getCode())) {
-          if (e != null)
-            throw new FHIRException("Unable to process translate "+code+" because multiple candidate matches were found in concept map "+cm.getUrl());
-          ct = e;
-          cg = g;
+  /**
+   * translates the code to the single target of the map which neither depends on other elements nor produces
+   * other elements
+   *
+   * @return the target code, or null if the code is not mapped
+   */
+  public Coding translate(Coding source, String url) throws FHIRException {
+    ConceptMap cm = fetchConceptMap(url);
+    TargetElementComponent tt = null;
+    SourceElementComponentWrapper ct = null;
+    for (SourceElementComponentWrapper candidate : candidates(cm, source)) {
+      for (TargetElementComponent t : candidate.getComp().getTarget()) {
+        if (!t.hasDependsOn() && !t.hasProduct() && isOkRelationship(t.getRelationship())) {
+          if (tt != null) {
+            if (ct != candidate)
+              throw new FHIRException("Unable to process translate "+source.getCode()+" because multiple candidate matches were found in concept map "+cm.getUrl());
+            throw new FHIRException("Unable to process translate "+source.getCode()+" because multiple targets were found in concept map "+cm.getUrl());
+          }
+          tt = t;
+          ct = candidate;
         }
       }
     }
-    if (ct == null)
+    if (tt == null)
       return null;
-    TargetElementComponent tt = null;
-    for (TargetElementComponent t : ct.getTarget()) {
-      if (!t.hasDependsOn() && !t.hasProduct() && isOkRelationship(t.getRelationship())) {
-        if (tt != null)
-          throw new FHIRException("Unable to process translate "+code+" because multiple targets were found in concept map "+cm.getUrl());
-        tt = t;       
+    return targetCoding(ct, tt);
+  }
+
+  /**
+   * translates the code to all the targets of the map whose dependsOn elements are satisfied by the given
+   * attribute values (the code for coded values), in the order of the map
+   */
+  public List<TranslationMatch> translate(Coding source, String url, Map<String, String> dependsOn) throws FHIRException {
+    ConceptMap cm = fetchConceptMap(url);
+    List<TranslationMatch> res = new ArrayList<>();
+    for (SourceElementComponentWrapper candidate : candidates(cm, source)) {
+      SourceElementComponent e = candidate.getComp();
+      if (e.getNoMap()) {
+        res.add(new TranslationMatch(ConceptMapRelationship.NOTRELATEDTO, null, Collections.emptyList(), cm.getVersionedUrl(), null));
+        continue;
+      }
+      for (TargetElementComponent t : e.getTarget()) {
+        if (dependsOnSatisfied(t, dependsOn)) {
+          res.add(new TranslationMatch(t.getRelationship(), t.hasCode() ? targetCoding(candidate, t) : null, t.getProduct(), cm.getVersionedUrl(), t));
+        }
       }
     }
-    if (tt == null)
-      return null;
-    CanonicalPair cp = new CanonicalPair(cg.getTarget());
-    return new Coding().setSystem(cp.getUrl()).setVersion(cp.getVersion()).setCode(tt.getCode()).setDisplay(tt.getDisplay());      
+    return res;
   }
 
-  private boolean isOkRelationship(ConceptMapRelationship relationship) {
-    return relationship != null && relationship != ConceptMapRelationship.NOTRELATEDTO;
+  private ConceptMap fetchConceptMap(String url) throws FHIRException {
+    ConceptMap cm = context.fetchResource(ConceptMap.class, url);
+    if (cm == null)
+      throw new FHIRException("Unable to find ConceptMap '"+url+"'");
+    return cm;
   }
 
-  private Coding translateBySystem(ConceptMap cm, String system, String code) {
-    throw new Error("Not done yet");
+  private List<SourceElementComponentWrapper> candidates(ConceptMap cm, Coding source) {
+    ConceptMapIndex index = ConceptMapIndex.forConceptMap(cm);
+    if (source.hasSystem())
+      return index.candidates(source.getSystem(), source.getVersion(), source.getCode());
+    else
+      return index.candidates(source.getCode());
+  }
+
+  private boolean dependsOnSatisfied(TargetElementComponent t, Map<String, String> dependsOn) {
+    for (OtherElementComponent d : t.getDependsOn()) {
+      String value = dependsOn == null ? null : dependsOn.get(d.getAttribute());
+      if (value == null || !value.equals(valueOf(d.getValue())))
+        return false;
+    }
+    return true;
+  }
+
+  private String valueOf(DataType value) {
+    if (value instanceof Coding)
+      return ((Coding) value).getCode();
+    return value == null ? null : value.primitiveValue();
+  }
+
+  private Coding targetCoding(SourceElementComponentWrapper ct, TargetElementComponent tt) {
+    CanonicalPair cp = new CanonicalPair(ct.getGroup().getTarget());
+    return new Coding().setSystem(cp.getUrl()).setVersion(cp.getVersion()).setCode(tt.getCode()).setDisplay(tt.getDisplay());
+  }
+
+  private static boolean isOkRelationship(ConceptMapRelationship relationship) {
+    return relationship != null && relationship != ConceptMapRelationship.NOTRELATEDTO;
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,134 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.model.ConceptMap;
+import org.hl7.fhir.r5.model.ConceptMap.ConceptMapGroupComponent;
+import org.hl7.fhir.r5.model.ConceptMap.SourceElementComponent;
+import org.hl7.fhir.r5.utils.structuremap.SourceElementComponentWrapper;
+import org.hl7.fhir.utilities.CanonicalPair;
+
+/**
+ * lookup tables of the source elements of a ConceptMap, (source system, code) and code to the matching elements
+ * in the order of the groups and elements of the map
+ *
+ * the index is built once per ConceptMap resource (a new version of a map is a new resource) and cached on it
+ */
+public class ConceptMapIndex {
+
+	public static final String CONCEPTMAP_INDEX = "matchbox.conceptmap.index";
+
+	private final Map<String, List<SourceElementComponentWrapper>> byCode = new HashMap<>();
+	// keyed by the source of the group as is (system|version) and by the system url only
+	private final Map<String, Map<String, List<SourceElementComponentWrapper>>> bySourceAndCode = new HashMap<>();
+	private final Map<String, Map<String, List<SourceElementComponentWrapper>>> bySystemAndCode = new HashMap<>();
+
+	private ConceptMapIndex(ConceptMap cmap) {
+		for (ConceptMapGroupComponent g : cmap.getGroup()) {
+			for (SourceElementComponent e : g.getElement()) {
+				if (e.getCode() == null) {
+					continue;
+				}
+				SourceElementComponentWrapper wrapper = new SourceElementComponentWrapper(g, e);
+				byCode.computeIfAbsent(e.getCode(), k -> new ArrayList<>()).add(wrapper);
+				if (g.getSource() != null) {
+					add(bySourceAndCode, g.getSource(), e.getCode(), wrapper);
+					add(bySystemAndCode, new CanonicalPair(g.getSource()).getUrl(), e.getCode(), wrapper);
+				}
+			}
+		}
+	}
+
+	private static void add(Map<String, Map<String, List<SourceElementComponentWrapper>>> index, String system, String code,
+			SourceElementComponentWrapper wrapper) {
+		index.computeIfAbsent(system, k -> new HashMap<>()).computeIfAbsent(code, k -> new ArrayList<>()).add(wrapper);
+	}
+
+	private static List<SourceElementComponentWrapper> get(Map<String, Map<String, List<SourceElementComponentWrapper>>> index,
+			String system, String code) {
+		Map<String, List<SourceElementComponentWrapper>> codes = index.get(system);
+		List<SourceElementComponentWrapper> res = codes == null || code == null ? null : codes.get(code);
+		return res == null ? Collections.emptyList() : res;
+	}
+
+	/**
+	 * returns the index of the ConceptMap, building it on first use
+	 */
+	public static ConceptMapIndex forConceptMap(ConceptMap cmap) {
+		synchronized (cmap) {
+			ConceptMapIndex index = (ConceptMapIndex) cmap.getUserData(CONCEPTMAP_INDEX);
+			if (index == null) {
+				index = new ConceptMapIndex(cmap);
+				cmap.setUserData(CONCEPTMAP_INDEX, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * returns the first source element for the code in any group, or null
+	 */
+	public SourceElementComponentWrapper lookup(String code) {
+		List<SourceElementComponentWrapper> res = candidates(code);
+		return res.isEmpty() ? null : res.get(0);
+	}
+
+	/**
+	 * returns the first source element for the code in the groups with the source system (as is), or null
+	 */
+	public SourceElementComponentWrapper lookup(String system, String code) {
+		List<SourceElementComponentWrapper> res = get(bySourceAndCode, system, code);
+		return res.isEmpty() ? null : res.get(0);
+	}
+
+	/**
+	 * returns the source elements for the code in any group
+	 */
+	public List<SourceElementComponentWrapper> candidates(String code) {
+		List<SourceElementComponentWrapper> res = code == null ? null : byCode.get(code);
+		return res == null ? Collections.emptyList() : res;
+	}
+
+	/**
+	 * returns the source elements for the code in the groups with the source system, the version of the system is
+	 * only compared if known on both sides
+	 */
+	public List<SourceElementComponentWrapper> candidates(String system, String version, String code) {
+		List<SourceElementComponentWrapper> res = get(bySystemAndCode, system, code);
+		if (version == null || res.isEmpty()) {
+			return res;
+		}
+		List<SourceElementComponentWrapper> filtered = new ArrayList<>();
+		for (SourceElementComponentWrapper w : res) {
+			String groupVersion = new CanonicalPair(w.getGroup().getSource()).getVersion();
+			if (groupVersion == null || version.equals(groupVersion)) {
+				filtered.add(w);
+			}
+		}
+		return filtered;
+	}
+}
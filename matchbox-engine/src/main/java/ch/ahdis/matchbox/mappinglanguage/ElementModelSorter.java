@@ -20,19 +20,18 @@ package ch.ahdis.matchbox.mappinglanguage;
  * #L%
  */
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
 
 import org.hl7.fhir.r5.elementmodel.Element;
-import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.elementmodel.ElementSortOrder;
 import org.hl7.fhir.r5.model.StructureDefinition;
-import org.hl7.fhir.utilities.NamedItemList;
 
 /**
  * sort function for elementmodel.Element that can deal with multiple instances
  * of the same StructureMap
  * 
+ * the positions of the paths are cached per StructureDefinition, a list of
+ * children already in order is not sorted again
+ * 
  * @author alexander kreutz
  *
  */
@@ -44,41 +43,16 @@ public class ElementModelSorter {
 			for (Element child : el.getChildren()) {
 				sort(child);
 			}
-			NamedItemList<Element> ch = el.getChildren();
-			ch.sort(new ElementSortComparator(el, el.getProperty()));
+			ElementSortOrder.sortByPath(el.getChildren(), sortOrder(el, el.getProperty()));
 		}
 	}
-}
-
-class ElementSortComparator implements Comparator<Element> {
-	private List<String> children;
 
-	public ElementSortComparator(Element e, org.hl7.fhir.r5.elementmodel.Property property) {
+	static ElementSortOrder sortOrder(Element e, org.hl7.fhir.r5.elementmodel.Property property) {
 		String tn = e.getType();
-//    StructureDefinition sd = property.getContext().fetchResource(StructureDefinition.class, ProfileUtilities.sdNs(tn, property.getContext().getOverrideVersionNs()));
 		StructureDefinition sd = property.getContext().fetchResource(StructureDefinition.class, "http://hl7.org/fhir/StructureDefinition/"+tn);
-		children = new ArrayList<String>();
 		if (sd != null && !sd.getAbstract())
-			for (ElementDefinition def : sd.getSnapshot().getElement()) {
-				children.add(def.getPath());
-			}
+			return ElementSortOrder.forStructure(sd);
 		else
-			for (ElementDefinition def : property.getStructure().getSnapshot().getElement()) {
-				children.add(def.getPath());
-			}
+			return ElementSortOrder.forStructure(property.getStructure());
 	}
-
-	@Override
-	public int compare(Element e0, Element e1) {
-		int i0 = find(e0);
-		int i1 = find(e1);
-		return Integer.compare(i0, i1);
-	}
-
-	private int find(Element e0) {
-		int i = e0.getElementProperty() != null ? children.indexOf(e0.getElementProperty().getDefinition().getPath())
-				: children.indexOf(e0.getProperty().getDefinition().getPath());
-		return i;
-	}
-
 }
@@ -33,8 +33,6 @@ import org.hl7.fhir.r5.model.CodeType;
 import org.hl7.fhir.r5.model.CodeableConcept;
 import org.hl7.fhir.r5.model.Coding;
 import org.hl7.fhir.r5.model.ConceptMap;
-import org.hl7.fhir.r5.model.ConceptMap.ConceptMapGroupComponent;
-import org.hl7.fhir.r5.model.ConceptMap.SourceElementComponent;
 import org.hl7.fhir.r5.model.ConceptMap.TargetElementComponent;
 import org.hl7.fhir.r5.model.Enumerations.ConceptMapRelationship;
 import org.hl7.fhir.r5.model.Resource;
@@ -150,20 +148,13 @@ public class MatchboxStructureMapUtilities extends StructureMapUtilities {
 					done = true;
 				}
 			} else {
+				// only the first matching source element is used, it is looked up in the index of the map
+				ConceptMapIndex index = ConceptMapIndex.forConceptMap(cmap);
+				SourceElementComponentWrapper match = src.hasSystem() ? index.lookup(src.getSystem(), src.getCode())
+						: index.lookup(src.getCode());
 				List<SourceElementComponentWrapper> list = new ArrayList<SourceElementComponentWrapper>();
-				for (ConceptMapGroupComponent g : cmap.getGroup()) {
-					for (SourceElementComponent e : g.getElement()) {
-						String srccode = src.getCode();
-						String srcsys = src.getSystem();
-						String ecode = e.getCode();
-						String gsys = g.getSource();
-						log.info("Src: " + srcsys + "#" + srccode + " <-> " + gsys + "#" + ecode);
-						if (!src.hasSystem() && srccode.equals(ecode))
-							list.add(new SourceElementComponentWrapper(g, e));
-						else if (src.hasSystem() && srcsys.equals(gsys) && srccode.equals(ecode))
-							list.add(new SourceElementComponentWrapper(g, e));
-					}
-				}
+				if (match != null)
+					list.add(match);
 				if (list.size() == 0)
 					done = true;
 				else if (list.get(0).getComp().getTarget().size() == 0)
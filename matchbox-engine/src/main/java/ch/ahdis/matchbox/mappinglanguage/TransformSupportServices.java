@@ -36,11 +36,13 @@ public class TransformSupportServices implements ITransformerServices {
 
   private List<Base> outputs;
   private IWorkerContext context;
+  private ConceptMapEngine conceptMapEngine;
   protected static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TransformSupportServices.class);
 
   public TransformSupportServices(IWorkerContext worker, List<Base> outputs) {
     this.context = worker;
     this.outputs = outputs;
+    this.conceptMapEngine = new ConceptMapEngine(worker);
   }
 
   // matchbox patch https://github.com/ahdis/matchbox/issues/264
@@ -60,15 +62,15 @@ public class TransformSupportServices implements ITransformerServices {
 
   @Override
   public Base createResource(Object appInfo, Base res, boolean atRootofTransform) {
-    if (atRootofTransform)
+    // matchbox patch: services reused between transforms are created without a list of outputs
+    if (atRootofTransform && outputs != null)
       outputs.add(res);
     return res;
   }
 
   @Override
   public Coding translate(Object appInfo, Coding source, String conceptMapUrl) throws FHIRException {
-    ConceptMapEngine cme = new ConceptMapEngine(context);
-    return cme.translate(source, conceptMapUrl);
+    return conceptMapEngine.translate(source, conceptMapUrl);
   }
 
   @Override
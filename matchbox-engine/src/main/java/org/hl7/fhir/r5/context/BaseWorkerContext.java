@@ -234,6 +234,8 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   }
 
   private Object lock = new Object(); // used as a lock for the data that follows
+  // matchbox patch: counts the changes of the loaded resources, caches built from them compare it to see if they are stale
+  private volatile long definitionsVersion;
   protected String version; // although the internal resources are all R5, the version of FHIR they describe may not be 
 
   protected final TerminologyClientManager terminologyClientManager = new TerminologyClientManager(new TerminologyClientR5.TerminologyClientR5Factory(), UUID.randomUUID().toString());
@@ -361,12 +363,20 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   public void cacheResource(Resource r) throws FHIRException {
     cacheResourceFromPackage(r, null);  
   }
+
+  /**
+   * matchbox patch: changes whenever a resource is added, replaced or dropped, or the resources are unloaded
+   */
+  public long getDefinitionsVersion() {
+    return definitionsVersion;
+  }
   
 
   public void registerResourceFromPackage(CanonicalResourceProxy r, PackageInformation packageInfo) throws FHIRException {    
     PackageHackerR5.fixLoadedResource(r, packageInfo);
 
     synchronized (lock) {
+      definitionsVersion++; // matchbox patch
       if (packageInfo != null) {
         packages.put(packageInfo.getVID(), packageInfo);
       }
@@ -452,6 +462,7 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   public void cacheResourceFromPackage(Resource r, PackageInformation packageInfo) throws FHIRException {
  
     synchronized (lock) {   
+      definitionsVersion++; // matchbox patch
       if (packageInfo != null) {
         packages.put(packageInfo.getVID(), packageInfo);
       }
@@ -2746,6 +2757,7 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   public void dropResource(String fhirType, String id) {
     synchronized (lock) {
+      definitionsVersion++; // matchbox patch
 
       Map<String, ResourceProxy> map = allResourcesById.get(fhirType);
       if (map == null) {
@@ -3255,6 +3267,7 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   public void unload() {
 
+    definitionsVersion++; // matchbox patch
     codeSystems.unload();
     valueSets.unload();
     maps.unload();
@@ -101,6 +101,48 @@ public class Element extends Base implements NamedItem {
 
   }
 
+  // matchbox patch: the rarely set fields of an element
+  private static class Extras {
+    private List<String> comments;// not relevant for production, but useful in documentation
+    private XhtmlNode xhtml; // if this is populated, then value will also hold the string representation
+    private String explicitType; // for xsi:type attribute
+    private List<ValidationMessage> messages;
+    private boolean prohibited;
+    private boolean required;
+    private boolean isNull;
+    private Base source;
+    private boolean ignorePropertyOrder;
+    private List<SliceDefinition> sliceDefinitions;
+    private boolean elided;
+
+    private Extras copy() {
+      Extras dest = new Extras();
+      if (comments != null) {
+        dest.comments = new ArrayList<>();
+        dest.comments.addAll(comments);
+      }
+      dest.xhtml = xhtml;
+      dest.explicitType = explicitType;
+      dest.prohibited = prohibited;
+      dest.required = required;
+      dest.isNull = isNull;
+      dest.source = source;
+      return dest;
+    }
+  }
+
+  private Extras extras() {
+    if (extras == null) {
+      extras = new Extras();
+    }
+    return extras;
+  }
+
+  // matchbox patch: names and types repeat in every instance, the elements share one copy of each
+  private static String intern(String s) {
+    return s == null ? null : s.intern();
+  }
+
   private static final HashSet<String> extensionList = new HashSet<>(Arrays.asList("extension", "modifierExtension"));
 
   public enum SpecialElement {
@@ -135,7 +177,6 @@ public class Element extends Base implements NamedItem {
     }
 	}
 
-	private List<String> comments;// not relevant for production, but useful in documentation
 	private String name;
 	private String type;
 	private String value;
@@ -146,27 +187,21 @@ public class Element extends Base implements NamedItem {
 	private int line;
 	private int col;
 	private SpecialElement special;
-	private XhtmlNode xhtml; // if this is populated, then value will also hold the string representation
-	private String explicitType; // for xsi:type attribute
 	private Element parentForValidator;
 	private boolean hasParentForValidator;
 	private String path;
-	private List<ValidationMessage> messages;
-	private boolean prohibited;
-	private boolean required;
+  // matchbox patch: with lazy paths, the element the path is built from on first use
+  private Element pathParent;
   private int descendentCount;
   private int instanceId;
-  private boolean isNull;
-  private Base source;
-  private boolean ignorePropertyOrder;
   private FhirFormat format;
   private Object nativeObject;
-  private List<SliceDefinition> sliceDefinitions;
-  private boolean elided;
+  // matchbox patch: the fields which are rarely set are kept aside and only allocated when one of them is set
+  private Extras extras;
 
 	public Element(String name) {
 		super();
-		this.name = name;
+		this.name = intern(name);
 	}
 
   public Element(Element other) {
@@ -180,7 +215,7 @@ public class Element extends Base implements NamedItem {
   
   public Element(String name, Property property) {
 		super();
-		this.name = name;
+		this.name = intern(name);
 		this.property = property;
 		if (property.isResource()) {
 		  children = new NamedItemList<>();
@@ -189,9 +224,9 @@ public class Element extends Base implements NamedItem {
 
 	public Element(String name, Property property, String type, String value) {
 		super();
-		this.name = name;
+		this.name = intern(name);
 		this.property = property;
-		this.type = type;
+		this.type = intern(type);
 		this.value = value;
 	}
 
@@ -231,13 +266,13 @@ public class Element extends Base implements NamedItem {
 	}
 
 	public boolean hasComments() {
-		return !(comments == null || comments.isEmpty());
+		return !(extras == null || extras.comments == null || extras.comments.isEmpty());
 	}
 
 	public List<String> getComments() {
-		if (comments == null)
-			comments = new ArrayList<String>();
-		return comments;
+		if (extras().comments == null)
+			extras.comments = new ArrayList<String>();
+		return extras.comments;
 	}
 
 	public Property getProperty() {
@@ -245,21 +280,27 @@ public class Element extends Base implements NamedItem {
 	}
 
 	public void setValue(String value) {
+		// matchbox patch: a parsed narrative which no longer matches the value is dropped, the composers reuse it
+		if (extras != null && extras.xhtml != null && !Objects.equals(this.value, value)) {
+			extras.xhtml = null;
+		}
 		this.value = value;
 	}
 
 	public Element setType(String type) {
-		this.type = type;
+		this.type = intern(type);
 		return this;
 
 	}
 
 	public boolean isNull() {
-    return isNull;
+    return extras != null && extras.isNull;
   }
 
   public void setNull(boolean isNull) {
-    this.isNull = isNull;
+    if (isNull || extras != null) {
+      extras().isNull = isNull;
+    }
   }
 
   public boolean hasValue() {
@@ -366,6 +407,9 @@ public class Element extends Base implements NamedItem {
 
   public List<Element> getChildren(String name) {
     List<Element> res = new ArrayList<Element>(); 
+    if (children == null) {
+      return res;
+    }
     if (children.size() > 20) {
       List<Element> l = children.getByName(name);
       if (l != null) {
@@ -447,7 +491,7 @@ public class Element extends Base implements NamedItem {
   @Override
   public Base setProperty(int hash, String name, Base value) throws FHIRException {
     if ("xhtml".equals(getType()) && (hash == "value".hashCode())) {
-      this.xhtml = TypeConvertor.castToXhtml(value);
+      setXhtml(TypeConvertor.castToXhtml(value));
       this.value =  TypeConvertor.castToXhtmlString(value);
       return this;
     }
@@ -693,8 +737,10 @@ public class Element extends Base implements NamedItem {
 
 	public void clearDecorations() {
 	  clearUserData("fhir.decorations");
-	  for (Element e : children) {
-	    e.clearDecorations();	  
+	  if (children != null) {
+	    for (Element e : children) {
+	      e.clearDecorations();	  
+	    }
 	  }
 	}
 	
@@ -788,11 +834,13 @@ public class Element extends Base implements NamedItem {
 
   
 	public XhtmlNode getXhtml() {
-		return xhtml;
+		return extras == null ? null : extras.xhtml;
 	}
 
 	public Element setXhtml(XhtmlNode xhtml) {
-		this.xhtml = xhtml;
+		if (xhtml != null || extras != null) {
+		  extras().xhtml = xhtml;
+		}
 		return this;
  	}
 
@@ -804,10 +852,12 @@ public class Element extends Base implements NamedItem {
 		if (value != null) {   
 			return false;
 		}
-		for (Element next : getChildren()) {
-			if (!next.isEmpty()) {
-				return false;
-			}
+		if (children != null) {
+		  for (Element next : children) {
+		    if (!next.isEmpty()) {
+		      return false;
+		    }
+		  }
 		}
 		return true;
 	}
@@ -953,20 +1003,27 @@ public class Element extends Base implements NamedItem {
         if (child.isEmpty())
           remove.add(child);
       }
-      children.removeAll(remove);
-      children.sort(new ElementSortComparator(this, this.property));
+      if (!remove.isEmpty())
+        children.removeAll(remove);
+      // matchbox patch: the positions of the definitions are cached per StructureDefinition and the children are
+      // only sorted if they are not in order yet
+      ElementSortOrder.sortByDefinition(children, sortOrder(this, this.property));
     }
   }
 
+  private static ElementSortOrder sortOrder(Element e, Property property) {
+    String tn = e.getType();
+    StructureDefinition sd = property.getContext().fetchResource(StructureDefinition.class, ProfileUtilities.sdNs(tn, null));
+    if (sd != null && !sd.getAbstract())
+      return ElementSortOrder.forStructure(sd);
+    else
+      return ElementSortOrder.forStructure(property.getStructure());
+  }
+
   public class ElementSortComparator implements Comparator<Element> {
-    private List<ElementDefinition> children;
+    private ElementSortOrder order;
     public ElementSortComparator(Element e, Property property) {
-      String tn = e.getType();
-      StructureDefinition sd = property.getContext().fetchResource(StructureDefinition.class, ProfileUtilities.sdNs(tn, null));
-      if (sd != null && !sd.getAbstract())
-        children = sd.getSnapshot().getElement();
-      else
-        children = property.getStructure().getSnapshot().getElement();
+      order = sortOrder(e, property);
     }
     
     @Override
@@ -976,7 +1033,7 @@ public class Element extends Base implements NamedItem {
       return Integer.compare(i0, i1);
     }
     private int find(Element e0) {
-      int i =  e0.elementProperty != null ? children.indexOf(e0.elementProperty.getDefinition()) :  children.indexOf(e0.property.getDefinition());
+      int i =  e0.elementProperty != null ? order.ordinal(e0.elementProperty.getDefinition()) :  order.ordinal(e0.property.getDefinition());
       return i; 
     }
 
@@ -1078,11 +1135,13 @@ public class Element extends Base implements NamedItem {
   }
 
   public String getExplicitType() {
-    return explicitType;
+    return extras == null ? null : extras.explicitType;
   }
 
   public void setExplicitType(String explicitType) {
-    this.explicitType = explicitType;
+    if (explicitType != null || extras != null) {
+      extras().explicitType = explicitType;
+    }
   }
 
   public boolean hasDescendant(Element element) {
@@ -1173,57 +1232,79 @@ public class Element extends Base implements NamedItem {
   }
 
   public void clear() {
-    comments = null;
-    children.clear();
+    if (extras != null) {
+      extras.comments = null;
+      extras.xhtml = null;
+    }
+    if (children != null) {
+      children.clear();
+    }
     property = null;
     elementProperty = null;
-    xhtml = null;
     path = null;
+    pathParent = null;
   }
 
   public String getPath() {
+    if (path == null && pathParent != null) {
+      path = pathParent.getPath()+"."+name;
+    }
     return path;
   }
 
+  /**
+   * matchbox patch: the path of this element is built from the path of the parent when it is first asked for, as
+   * populatePaths builds it
+   */
+  public Element setPathParent(Element parent) {
+    this.pathParent = parent;
+    this.path = null;
+    return this;
+  }
+
   public void setPath(String path) {
     this.path = path;
   }  
   
   public void addMessage(ValidationMessage vm) {
-    if (messages == null) {
-      messages = new ArrayList<>();
+    if (extras().messages == null) {
+      extras.messages = new ArrayList<>();
     }
-    messages.add(vm);
+    extras.messages.add(vm);
   }
 
   public boolean hasMessages() {
-    return messages != null && !messages.isEmpty();
+    return extras != null && extras.messages != null && !extras.messages.isEmpty();
   }
 
   public List<ValidationMessage> getMessages() {
-    return messages;
+    return extras == null ? null : extras.messages;
   }
 
   public void removeChild(String name) {
-    if (children.removeIf(n -> name.equals(n.getName()))) {
+    if (children != null && children.removeIf(n -> name.equals(n.getName()))) {
       children.clearMap();
     }
   }
 
   public boolean isProhibited() {
-    return prohibited;
+    return extras != null && extras.prohibited;
   }
 
   public void setProhibited(boolean prohibited) {
-    this.prohibited = prohibited;
+    if (prohibited || extras != null) {
+      extras().prohibited = prohibited;
+    }
   }
 
   public boolean isRequired() {
-    return required;
+    return extras != null && extras.required;
   }
 
   public void setRequired(boolean required) {
-    this.required = required;
+    if (required || extras != null) {
+      extras().required = required;
+    }
   }
 
   public int getDescendentCount() {
@@ -1259,34 +1340,36 @@ public class Element extends Base implements NamedItem {
 
   @Override
   public boolean hasValidationInfo() {
-    return hasSource() ? source.hasValidationInfo() : super.hasValidationInfo();
+    return hasSource() ? extras.source.hasValidationInfo() : super.hasValidationInfo();
   }
 
   @Override
   public List<ValidationInfo> getValidationInfo() {
-    return hasSource() ? source.getValidationInfo() : super.getValidationInfo();
+    return hasSource() ? extras.source.getValidationInfo() : super.getValidationInfo();
   }
 
   @Override
   public ValidationInfo addDefinition(StructureDefinition source, ElementDefinition defn, ValidationMode mode) {
-    if (this.source != null) {
-      return this.source.addDefinition(source, defn, mode);
+    if (hasSource()) {
+      return extras.source.addDefinition(source, defn, mode);
     } else {
       return super.addDefinition(source, defn, mode);
     }
   }
 
   public boolean hasSource() {
-    return source != null;
+    return extras != null && extras.source != null;
   }
 
   
   public Base getSource() {
-    return source;
+    return extras == null ? null : extras.source;
   }
 
   public void setSource(Base source) {
-    this.source = source;
+    if (source != null || extras != null) {
+      extras().source = source;
+    }
   }
 
   public void printToOutput() {
@@ -1300,12 +1383,13 @@ public class Element extends Base implements NamedItem {
   }
 
   private void printToOutput(PrintStream out, String indent) {
+    String explicitType = getExplicitType();
     String s = indent+name +(index == -1 ? "" : "["+index+"]") +(special != null ? "$"+special.toHuman(): "")+ (type!= null || explicitType != null ? " : "+type+(explicitType != null ? "/'"+explicitType+"'" : "") : "");
-    if (isNull) {
+    if (isNull()) {
       s = s + " = (null)";
     } else if (value != null) {
       s = s + " = '"+value+"'";      
-    } else if (xhtml != null) {
+    } else if (getXhtml() != null) {
       s = s + " = (xhtml)";
     }
     if (property != null) {
@@ -1331,7 +1415,7 @@ public class Element extends Base implements NamedItem {
     int e = 0;
     int w = 0;
     int h = 0;
-    for (ValidationMessage msg : messages) {
+    for (ValidationMessage msg : getMessages()) {
       switch (msg.getLevel()) {
       case ERROR:
         e++;
@@ -1367,6 +1451,24 @@ public class Element extends Base implements NamedItem {
     
   }
 
+  /**
+   * matchbox patch: the lazy counterpart of populatePaths, the children are linked to their parents and get the same
+   * paths as from populatePaths, but only the paths which are asked for are built
+   */
+  public void linkPaths(String path) {
+    setPath(path == null ? fhirType() : path);
+    linkChildPaths();
+  }
+
+  private void linkChildPaths() {
+    if (children != null) {
+      for (Element n : children) {
+        n.setPathParent(this);
+        n.linkChildPaths();
+      }
+    }
+  }
+
   public String fhirTypeRoot() {
     if (fhirType().contains("/")) {
       return fhirType().substring(fhirType().lastIndexOf("/")+1);
@@ -1441,34 +1543,27 @@ public class Element extends Base implements NamedItem {
     super.copyValues(dst);
     
     Element dest = (Element) dst;
-    if (comments != null) {
-      dest.comments = new ArrayList<>();
-      dest.comments.addAll(comments);
-    } else {
-      dest.comments = null;
-    }
+    dest.extras = extras == null ? null : extras.copy();
     dest.value = value;
     if (children != null) {
       dest.children = new NamedItemList<>();
       for (Element child : children) {
-        dest.children.add((Element) child.copy());
+        Element c = (Element) child.copy();
+        if (child.pathParent == this) {
+          c.pathParent = dest;
+        }
+        dest.children.add(c);
       }
     } else {
       dest.children = null;
     }    
     dest.line = line;
     dest.col = col;
-    dest.xhtml = xhtml;
-    dest.explicitType = explicitType;
     dest.hasParentForValidator = false;
     dest.path = path;
-    dest.messages = null;
-    dest.prohibited = prohibited;
-    dest.required = required;
+    dest.pathParent = pathParent;
     dest.descendentCount = descendentCount;
     dest.instanceId = instanceId;
-    dest.isNull = isNull;
-    dest.source = source;
     dest.format = format;
   }
   
@@ -1478,11 +1573,13 @@ public class Element extends Base implements NamedItem {
   }
 
   public boolean isIgnorePropertyOrder() {
-    return ignorePropertyOrder;
+    return extras != null && extras.ignorePropertyOrder;
   }
 
   public void setIgnorePropertyOrder(boolean ignorePropertyOrder) {
-    this.ignorePropertyOrder = ignorePropertyOrder;
+    if (ignorePropertyOrder || extras != null) {
+      extras().ignorePropertyOrder = ignorePropertyOrder;
+    }
     if (children != null) {
       for (Element e : children) {
         e.setIgnorePropertyOrder(ignorePropertyOrder);
@@ -1621,15 +1718,15 @@ public class Element extends Base implements NamedItem {
   }
 
   public void addSliceDefinition(StructureDefinition profile, ElementDefinition definition, ElementDefinition slice) {
-    if (sliceDefinitions == null) {
-      sliceDefinitions = new ArrayList<>();
+    if (extras().sliceDefinitions == null) {
+      extras.sliceDefinitions = new ArrayList<>();
     }
-    sliceDefinitions.add(new SliceDefinition(profile, definition, slice));
+    extras.sliceDefinitions.add(new SliceDefinition(profile, definition, slice));
   }
 
   public boolean hasSlice(StructureDefinition sd, String sliceName) {
-    if (sliceDefinitions != null) {
-      for (SliceDefinition def : sliceDefinitions) {
+    if (extras != null && extras.sliceDefinitions != null) {
+      for (SliceDefinition def : extras.sliceDefinitions) {
         if (def.profile == sd && sliceName.equals(def.definition.getSliceName())) {
           return true;
         }
@@ -1643,10 +1740,12 @@ public class Element extends Base implements NamedItem {
   }
 
   public void setElided(boolean elided) {
-    this.elided = elided;
+    if (elided || extras != null) {
+      extras().elided = elided;
+    }
   }
 
   public boolean isElided() {
-    return this.elided;
+    return extras != null && extras.elided;
   }
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package org.hl7.fhir.r5.elementmodel;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.NamedItemList;
+
+/**
+ * matchbox patch: the position of every element definition in the snapshot of a StructureDefinition, computed once
+ * and cached on it. Used to sort the children of an element in the order of the definitions without searching the
+ * snapshot in every comparison.
+ */
+public class ElementSortOrder {
+
+  public static final String ELEMENT_SORT_ORDER = "matchbox.element.sort.order";
+
+  private final List<ElementDefinition> snapshot;
+  private final int size;
+  private final Map<ElementDefinition, Integer> byDefinition = new IdentityHashMap<>();
+  private final Map<String, Integer> byPath = new HashMap<>();
+
+  private ElementSortOrder(StructureDefinition sd) {
+    this.snapshot = sd.getSnapshot().getElement();
+    this.size = snapshot.size();
+    for (int i = 0; i < size; i++) {
+      ElementDefinition ed = snapshot.get(i);
+      byDefinition.put(ed, i);
+      byPath.putIfAbsent(ed.getPath(), i);
+    }
+  }
+
+  /**
+   * @return the order of the snapshot of the StructureDefinition, building it on first use
+   */
+  public static ElementSortOrder forStructure(StructureDefinition sd) {
+    synchronized (sd) {
+      ElementSortOrder order = (ElementSortOrder) sd.getUserData(ELEMENT_SORT_ORDER);
+      if (order == null || order.snapshot != sd.getSnapshot().getElement() || order.size != order.snapshot.size()) {
+        order = new ElementSortOrder(sd);
+        sd.setUserData(ELEMENT_SORT_ORDER, order);
+      }
+      return order;
+    }
+  }
+
+  /**
+   * @return the position of the definition in the snapshot, -1 if it is not part of it
+   */
+  public int ordinal(ElementDefinition definition) {
+    Integer i = byDefinition.get(definition);
+    return i == null ? -1 : i;
+  }
+
+  /**
+   * @return the position of the first definition with the path in the snapshot, -1 if there is none
+   */
+  public int ordinal(String path) {
+    Integer i = byPath.get(path);
+    return i == null ? -1 : i;
+  }
+
+  /**
+   * sorts the children by their keys, the list is only sorted if it is not already in order, the sort is stable
+   */
+  static void sort(NamedItemList<Element> children, Map<Element, Integer> keys) {
+    int last = Integer.MIN_VALUE;
+    boolean sorted = true;
+    for (Element child : children) {
+      int key = keys.get(child);
+      if (key < last) {
+        sorted = false;
+        break;
+      }
+      last = key;
+    }
+    if (!sorted) {
+      children.sort((e0, e1) -> Integer.compare(keys.get(e0), keys.get(e1)));
+    }
+  }
+
+  /**
+   * sorts the children of the element in the order of the definitions of their properties in the snapshot
+   */
+  public static void sortByDefinition(NamedItemList<Element> children, ElementSortOrder order) {
+    Map<Element, Integer> keys = new IdentityHashMap<>(children.size() * 2);
+    for (Element child : children) {
+      Property p = child.getElementProperty() != null ? child.getElementProperty() : child.getProperty();
+      keys.put(child, order.ordinal(p.getDefinition()));
+    }
+    sort(children, keys);
+  }
+
+  /**
+   * sorts the children of the element in the order of the paths of the definitions of their properties in the
+   * snapshot
+   */
+  public static void sortByPath(NamedItemList<Element> children, ElementSortOrder order) {
+    Map<Element, Integer> keys = new IdentityHashMap<>(children.size() * 2);
+    for (Element child : children) {
+      Property p = child.getElementProperty() != null ? child.getElementProperty() : child.getProperty();
+      keys.put(child, order.ordinal(p.getDefinition().getPath()));
+    }
+    sort(children, keys);
+  }
+}
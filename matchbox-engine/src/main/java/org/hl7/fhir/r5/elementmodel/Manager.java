@@ -127,6 +127,12 @@ public class Manager {
     makeParser(context, outputFormat).compose(e, destination, style, base);
   }
 
+  // matchbox patch: the $transform output is written with the buffered JSON composer of the StreamingJsonParser,
+  // its output is byte-identical to the one of compose
+  public static void composeStreaming(IWorkerContext context, Element e, OutputStream destination, FhirFormat outputFormat, OutputStyle style, String base) throws FHIRException, IOException {
+    makeParser(context, outputFormat, true).compose(e, destination, style, base);
+  }
+
   public static ParserBase makeParser(IWorkerContext context, FhirFormat format) {
     if (format == null) {
       throw new Error("Programming logic error: no format known");
@@ -144,6 +150,14 @@ public class Manager {
     }
     return null;
   }
+
+  // matchbox patch: JSON is read with the StreamingJsonParser if streamingJson is set
+  public static ParserBase makeParser(IWorkerContext context, FhirFormat format, boolean streamingJson) {
+    if (streamingJson && format == FhirFormat.JSON) {
+      return new StreamingJsonParser(context);
+    }
+    return makeParser(context, format);
+  }
   
   public static Element build(IWorkerContext context, StructureDefinition sd) {
    // matchbox patch https://github.com/ahdis/matchbox/issues/264
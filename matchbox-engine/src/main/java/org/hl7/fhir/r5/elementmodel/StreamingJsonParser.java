@@ -0,0 +1,382 @@
+package org.hl7.fhir.r5.elementmodel;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.exceptions.FHIRFormatError;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonCreatorDirect;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.i18n.I18nConstants;
+import org.hl7.fhir.utilities.json.model.JsonArray;
+import org.hl7.fhir.utilities.json.model.JsonBoolean;
+import org.hl7.fhir.utilities.json.model.JsonElement;
+import org.hl7.fhir.utilities.json.model.JsonLocationData;
+import org.hl7.fhir.utilities.json.model.JsonNull;
+import org.hl7.fhir.utilities.json.model.JsonNumber;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.model.JsonString;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+
+/**
+ * matchbox patch: JSON parser of the element model which reads the input with a pull tokenizer instead of parsing
+ * it into one JSON tree first.
+ * <p>
+ * The resources in the entries of a Bundle are converted to elements as soon as they have been read, so only the
+ * JSON of one entry is held at a time besides the elements. The rest of the document is converted by the
+ * {@link JsonParser} as before, with the line and column of every property and the check for duplicate keys.
+ * <p>
+ * With an {@link EntryHandler} the resources of the entries of a root Bundle are handed to the handler instead and
+ * the Bundle keeps them as placeholders with their resourceType, id and meta.versionId only.
+ * <p>
+ * Composing writes the UTF-8 encoded output through one buffer to the destination.
+ */
+public class StreamingJsonParser extends JsonParser {
+
+  private static final String VIEW_DEFINITION = "http://hl7.org/fhir/uv/sql-on-fhir/StructureDefinition/ViewDefinition";
+
+  private static final JsonFactory FACTORY = factory(false);
+  private static final JsonFactory FACTORY_WITH_COMMENTS = factory(true);
+
+  /**
+   * receives the resources of the entries of a root Bundle one by one, in document order
+   */
+  public interface EntryHandler {
+    void entry(int index, Element resource) throws FHIRException;
+
+    /**
+     * false if the resource of the entry stays in the Bundle instead of being handed to the handler
+     */
+    default boolean handles(int index) {
+      return true;
+    }
+  }
+
+  // the elements of the resources already parsed, by the placeholder left in the entry
+  private final Map<JsonObject, Element> streamed = new IdentityHashMap<>();
+  private EntryHandler entryHandler;
+
+  public StreamingJsonParser(IWorkerContext context) {
+    super(context);
+  }
+
+  public EntryHandler getEntryHandler() {
+    return entryHandler;
+  }
+
+  /**
+   * hands the resources of the entries of a root Bundle to the handler once they have been parsed, they are not
+   * part of the element tree returned by the parse
+   */
+  public void setEntryHandler(EntryHandler entryHandler) {
+    this.entryHandler = entryHandler;
+  }
+
+  private static JsonFactory factory(boolean comments) {
+    // attachments in large Bundles exceed the default limit of the length of a string
+    return JsonFactory.builder()
+        .configure(JsonReadFeature.ALLOW_JAVA_COMMENTS, comments)
+        .streamReadConstraints(StreamReadConstraints.builder().maxStringLength(Integer.MAX_VALUE).build())
+        .build();
+  }
+
+  @Override
+  public List<ValidatedFragment> parse(InputStream inStream) throws IOException, FHIRException {
+    return parse(TextFile.streamToBytes(inStream));
+  }
+
+  public List<ValidatedFragment> parse(byte[] content) throws IOException, FHIRException {
+    ValidatedFragment focus = new ValidatedFragment(ValidatedFragment.FOCUS_NAME, "json", content, false);
+    List<ValidationMessage> errors = focus.getErrors();
+    streamed.clear();
+    try (com.fasterxml.jackson.core.JsonParser json = (isAllowComments() ? FACTORY_WITH_COMMENTS : FACTORY).createParser(content)) {
+      if (json.nextToken() != JsonToken.START_OBJECT) {
+        throw new FHIRFormatError(context.formatMessage(I18nConstants.ERROR_PARSING_JSON_, "the content is not a JSON object"));
+      }
+      JsonObject object = readObject(errors, json, !hasLogical(), null);
+      if (json.nextToken() != null) {
+        throw new FHIRFormatError(context.formatMessage(I18nConstants.ERROR_PARSING_JSON_, "unexpected content after the end of the object"));
+      }
+      focus.setElement(replacePlaceholders(parse(errors, object)));
+    } catch (JsonProcessingException e) {
+      JsonLocation location = e.getLocation();
+      if (policy != ValidationPolicy.EVERYTHING) {
+        throw new FHIRFormatError(context.formatMessage(I18nConstants.ERROR_PARSING_JSON_, e.getOriginalMessage()), e);
+      }
+      logError(errors, ValidationMessage.NO_RULE_DATE, location != null ? location.getLineNr() : -1,
+          location != null ? location.getColumnNr() : -1, null, IssueType.INVALID,
+          context.formatMessage(I18nConstants.ERROR_PARSING_JSON_, e.getOriginalMessage()), IssueSeverity.FATAL);
+    } catch (FHIRFormatError e) {
+      if (policy != ValidationPolicy.EVERYTHING) {
+        throw e;
+      }
+      logError(errors, ValidationMessage.NO_RULE_DATE, -1, -1, null, IssueType.INVALID, e.getMessage(), IssueSeverity.FATAL);
+    } finally {
+      streamed.clear();
+    }
+    List<ValidatedFragment> res = new ArrayList<>();
+    res.add(focus);
+    return res;
+  }
+
+  @Override
+  public void compose(Element e, OutputStream stream, OutputStyle style, String base) throws FHIRException, IOException {
+    if (style == OutputStyle.CANONICAL) {
+      super.compose(e, stream, style, base);
+      return;
+    }
+    if (e.getPath() == null) {
+      e.populatePaths(null);
+    }
+    Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+    try {
+      compose(e, new JsonCreatorDirect(writer, style == OutputStyle.PRETTY, isAllowComments()));
+    } catch (FHIRException | IOException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new FHIRException(ex.getMessage(), ex);
+    }
+    writer.flush();
+  }
+
+  /**
+   * reads the object the tokenizer is positioned on. The entries of a resource which is a Bundle are streamed,
+   * path is the path of the resource (null for the root, whose entries go to the entry handler).
+   */
+  private JsonObject readObject(List<ValidationMessage> errors, com.fasterxml.jackson.core.JsonParser json,
+      boolean resource, String path) throws IOException {
+    JsonObject object = new JsonObject();
+    object.setStart(start(json));
+    boolean bundle = false;
+    while (json.nextToken() == JsonToken.FIELD_NAME) {
+      String name = json.currentName();
+      JsonToken token = json.nextToken();
+      JsonElement value;
+      if (bundle && "entry".equals(name) && token == JsonToken.START_ARRAY) {
+        value = readEntries(errors, json, path == null ? "Bundle" : path, path == null && entryHandler != null);
+      } else {
+        value = readValue(errors, json, token);
+      }
+      if (resource && object.getProperties().isEmpty() && "resourceType".equals(name) && value instanceof JsonString) {
+        bundle = "Bundle".equals(((JsonString) value).getValue());
+      }
+      object.addForParser(name, value, false, false, false);
+    }
+    object.setEnd(end(json));
+    return object;
+  }
+
+  private JsonElement readValue(List<ValidationMessage> errors, com.fasterxml.jackson.core.JsonParser json, JsonToken token) throws IOException {
+    JsonElement value;
+    switch (token) {
+    case START_OBJECT:
+      return readObject(errors, json, false, null);
+    case START_ARRAY:
+      JsonArray array = new JsonArray();
+      array.setStart(start(json));
+      JsonToken next;
+      while ((next = json.nextToken()) != JsonToken.END_ARRAY) {
+        array.add(readValue(errors, json, next));
+      }
+      array.setEnd(end(json));
+      return array;
+    case VALUE_STRING:
+      value = new JsonString(json.getText());
+      break;
+    case VALUE_NUMBER_INT:
+    case VALUE_NUMBER_FLOAT:
+      // the text keeps the precision of decimals
+      value = new JsonNumber(json.getText());
+      break;
+    case VALUE_TRUE:
+    case VALUE_FALSE:
+      value = new JsonBoolean(token == JsonToken.VALUE_TRUE);
+      break;
+    case VALUE_NULL:
+      value = new JsonNull();
+      break;
+    default:
+      throw new FHIRFormatError(context.formatMessage(I18nConstants.ERROR_PARSING_JSON_, "unexpected token " + token));
+    }
+    value.setStart(start(json));
+    value.setEnd(end(json));
+    return value;
+  }
+
+  private JsonArray readEntries(List<ValidationMessage> errors, com.fasterxml.jackson.core.JsonParser json, String bundlePath,
+      boolean handled) throws IOException {
+    JsonArray entries = new JsonArray();
+    entries.setStart(start(json));
+    JsonToken token;
+    int i = 0;
+    while ((token = json.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == JsonToken.START_OBJECT) {
+        entries.add(readEntry(errors, json, bundlePath + ".entry[" + i + "]", handled && entryHandler.handles(i) ? i : -1));
+      } else {
+        entries.add(readValue(errors, json, token));
+      }
+      i++;
+    }
+    entries.setEnd(end(json));
+    return entries;
+  }
+
+  private JsonObject readEntry(List<ValidationMessage> errors, com.fasterxml.jackson.core.JsonParser json, String entryPath,
+      int handledIndex) throws IOException {
+    JsonObject entry = new JsonObject();
+    entry.setStart(start(json));
+    while (json.nextToken() == JsonToken.FIELD_NAME) {
+      String name = json.currentName();
+      JsonToken token = json.nextToken();
+      JsonElement value;
+      if ("resource".equals(name) && token == JsonToken.START_OBJECT) {
+        value = readResource(errors, json, entryPath + ".resource", handledIndex);
+      } else {
+        value = readValue(errors, json, token);
+      }
+      entry.addForParser(name, value, false, false, false);
+    }
+    entry.setEnd(end(json));
+    return entry;
+  }
+
+  /**
+   * reads the resource of an entry and converts it to elements right away, the entry keeps a placeholder with the
+   * resourceType only. Resources without a known resourceType are left to the parse of the enclosing document.
+   * Resources of handled entries (index >= 0) go to the entry handler and their placeholder keeps the id and the
+   * meta.versionId as well, the invariants of the Bundle read them.
+   */
+  private JsonObject readResource(List<ValidationMessage> errors, com.fasterxml.jackson.core.JsonParser json, String path,
+      int handledIndex) throws IOException {
+    JsonObject resource = readObject(errors, json, true, path);
+    JsonElement type = resource.get("resourceType");
+    if (!(type instanceof JsonString) || !isKnownType(((JsonString) type).getValue())) {
+      return resource;
+    }
+    Element element = replacePlaceholders(parse(errors, resource, path));
+    releaseNativeObjects(element);
+    JsonObject placeholder = new JsonObject();
+    placeholder.setStart(resource.getStart());
+    placeholder.setEnd(resource.getEnd());
+    placeholder.addForParser("resourceType", type, false, false, false);
+    if (handledIndex >= 0) {
+      if (resource.get("id") instanceof JsonString) {
+        placeholder.addForParser("id", resource.get("id"), false, false, false);
+      }
+      if (resource.get("meta") instanceof JsonObject && ((JsonObject) resource.get("meta")).get("versionId") instanceof JsonString) {
+        JsonObject meta = new JsonObject();
+        meta.setStart(resource.get("meta").getStart());
+        meta.setEnd(resource.get("meta").getEnd());
+        meta.addForParser("versionId", ((JsonObject) resource.get("meta")).get("versionId"), false, false, false);
+        placeholder.addForParser("meta", meta, false, false, false);
+      }
+      entryHandler.entry(handledIndex, element);
+    } else {
+      streamed.put(placeholder, element);
+    }
+    return placeholder;
+  }
+
+  private boolean isKnownType(String type) {
+    try {
+      return getDefinition(new ArrayList<>(), -1, -1, type) != null;
+    } catch (FHIRFormatError e) {
+      return false;
+    }
+  }
+
+  /**
+   * moves the content of the resources parsed while streaming into the resource elements of the entries of a
+   * Bundle, the resource elements carry the property of the entry they are in
+   */
+  private Element replacePlaceholders(Element element) {
+    if (element == null || streamed.isEmpty() || !"Bundle".equals(element.fhirType()) || !element.hasChildren()) {
+      return element;
+    }
+    for (Element entry : element.getChildren()) {
+      if (!"entry".equals(entry.getName()) || !entry.hasChildren()) {
+        continue;
+      }
+      for (Element resource : entry.getChildren()) {
+        Element parsed = streamed.remove(resource.getNativeObject());
+        if (parsed != null) {
+          if (parsed.hasChildren()) {
+            resource.getChildren().addAll(parsed.getChildren());
+            resource.numberChildren();
+          }
+          if (parsed.hasComments()) {
+            resource.getComments().addAll(parsed.getComments());
+          }
+          resource.setNativeObject(parsed.getNativeObject());
+          resource.markLocation(parsed);
+        }
+      }
+    }
+    return element;
+  }
+
+  private void releaseNativeObjects(Element element) {
+    StructureDefinition sd = element.getProperty() != null ? element.getProperty().getStructure() : null;
+    if (sd != null && VIEW_DEFINITION.equals(sd.getUrl())) {
+      // the ViewDefinition validation works on the JSON
+      return;
+    }
+    element.setNativeObject(null);
+    if (element.hasChildren()) {
+      for (Element child : element.getChildren()) {
+        releaseNativeObjects(child);
+      }
+    }
+  }
+
+  private static JsonLocationData start(com.fasterxml.jackson.core.JsonParser json) {
+    JsonLocation location = json.currentTokenLocation();
+    return new JsonLocationData(location.getLineNr(), location.getColumnNr());
+  }
+
+  private static JsonLocationData end(com.fasterxml.jackson.core.JsonParser json) {
+    JsonLocation location = json.currentLocation();
+    return new JsonLocationData(location.getLineNr(), location.getColumnNr());
+  }
+}
@@ -32,24 +32,29 @@ import java.io.ByteArrayInputStream;
  */
 
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMResult;
-import javax.xml.transform.sax.SAXSource;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.hl7.fhir.exceptions.DefinitionException;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -67,7 +72,6 @@ import org.hl7.fhir.r5.model.ElementDefinition.PropertyRepresentation;
 import org.hl7.fhir.r5.model.Enumeration;
 import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.r5.utils.ToolingExtensions;
-import org.hl7.fhir.r5.utils.formats.XmlLocationAnnotator;
 import org.hl7.fhir.r5.utils.formats.XmlLocationData;
 import org.hl7.fhir.utilities.ElementDecoration;
 import org.hl7.fhir.utilities.StringPair;
@@ -86,15 +90,37 @@ import org.hl7.fhir.utilities.xml.XMLUtil;
 import org.hl7.fhir.utilities.xml.XMLWriter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
+import org.w3c.dom.Text;
 import org.xml.sax.ErrorHandler;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXParseException;
-import org.xml.sax.XMLReader;
 
 public class XmlParser extends ParserBase {
+
+  // matchbox patch: the reader for parse(InputStream), configured once as the factory is safe to share for creating readers
+  private static final XMLInputFactory STAX_FACTORY = createStaxFactory();
+  private static final String DOCTYPE_DISALLOWED = "DOCTYPE is disallowed when the feature \"http://apache.org/xml/features/disallow-doctype-decl\" set to true.";
+
+  private static XMLInputFactory createStaxFactory() {
+    XMLInputFactory factory = XMLInputFactory.newDefaultFactory();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    // xxe protection, a document type declaration is rejected when it is read
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    // CDATA sections are reported as such, they are not allowed in resources
+    factory.setProperty("http://java.sun.com/xml/stream/properties/report-cdata-event", true);
+    return factory;
+  }
+
   private boolean allowXsiLocation;
   private String version;
   private boolean elideElements;
+  // matchbox patch: if false, no lines and columns are read and the paths are built on first use
+  private boolean trackLocations = true;
+  // matchbox patch: the lists of child properties are cached by the ProfileUtilities of the parser, so the lookups in
+  // a list are resolved once per parser instead of sorting and scanning the list again for every element
+  private final Map<List<Property>, PropertyLookup> propertyLookups = new IdentityHashMap<>();
+  private final Map<String, StructureDefinition> legalConstraints = new HashMap<>();
 
   public XmlParser(IWorkerContext context) {
     super(context);
@@ -102,6 +128,7 @@ public class XmlParser extends ParserBase {
 
   private String schemaPath;
   private boolean markedXhtml;
+  private DocumentBuilder fragmentBuilder;
 
   public String getSchemaPath() {
     return schemaPath;
@@ -110,6 +137,19 @@ public class XmlParser extends ParserBase {
     this.schemaPath = schemaPath;
   }
 
+  public boolean isTrackLocations() {
+    return trackLocations;
+  }
+
+  /**
+   * matchbox patch: without locations the elements get no line and column, and their paths are built from the
+   * parents when they are first asked for, in the form of populatePaths (without the indexes of repeating elements).
+   * For parsing input that is only transformed, not for validation
+   */
+  public void setTrackLocations(boolean trackLocations) {
+    this.trackLocations = trackLocations;
+  }
+
   public boolean isAllowXsiLocation() {
     return allowXsiLocation;
   }
@@ -124,65 +164,44 @@ public class XmlParser extends ParserBase {
     ValidatedFragment focusFragment = new ValidatedFragment(ValidatedFragment.FOCUS_NAME, "xml", content, false);
 
     ByteArrayInputStream stream = new ByteArrayInputStream(content);
-    Document doc = null;
-    try {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      // xxe protection
-      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-      factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
-      factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-      factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-      factory.setXIncludeAware(false);
-      factory.setExpandEntityReferences(false);
-
-      factory.setNamespaceAware(true);
-      if (policy == ValidationPolicy.EVERYTHING) {
-        // The SAX interface appears to not work when reporting the correct version/encoding.
-        // if we can, we'll inspect the header/encoding ourselves 
-
-        stream.mark(1024);
-        version = checkHeader(focusFragment.getErrors(), stream);
-        stream.reset();
-
-        // use a slower parser that keeps location data
-        TransformerFactory transformerFactory = XMLUtil.newXXEProtectedTransformerFactory();
-        Transformer nullTransformer = transformerFactory.newTransformer();
-        DocumentBuilder docBuilder = factory.newDocumentBuilder();
-        doc = docBuilder.newDocument();
-        DOMResult domResult = new DOMResult(doc);
-        SAXParserFactory spf = SAXParserFactory.newInstance();
-        spf.setNamespaceAware(true);
-        spf.setValidating(false);
-        // xxe protection
-        spf.setFeature("http://xml.org/sax/features/external-general-entities", false);
-        spf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-        SAXParser saxParser = spf.newSAXParser();
-        XMLReader xmlReader = saxParser.getXMLReader();
-        // xxe protection
-        xmlReader.setFeature("http://xml.org/sax/features/external-general-entities", false);
-        xmlReader.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+    if (policy == ValidationPolicy.EVERYTHING) {
+      // The SAX interface appears to not work when reporting the correct version/encoding.
+      // if we can, we'll inspect the header/encoding ourselves 
 
-        XmlLocationAnnotator locationAnnotator = new XmlLocationAnnotator(xmlReader, doc);
-        InputSource inputSource = new InputSource(stream);
-        SAXSource saxSource = new SAXSource(locationAnnotator, inputSource);
-        nullTransformer.transform(saxSource, domResult);
-      } else {
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        builder.setErrorHandler(new NullErrorHandler());
-        doc = builder.parse(stream);
+      stream.mark(1024);
+      version = checkHeader(focusFragment.getErrors(), stream);
+      stream.reset();
+    }
+    // matchbox patch: the elements are built while reading the input with StAX instead of from a DOM with location
+    // data. The messages are kept apart until the whole input has been read: a document that is not well-formed
+    // only gets the fatal error, as no elements were built from it before
+    List<ValidationMessage> errors = new ArrayList<>();
+    Element element = null;
+    XMLStreamReader xml = null;
+    try {
+      xml = STAX_FACTORY.createXMLStreamReader(stream);
+      element = parse(errors, xml);
+    } catch (XMLStreamException e) {
+      String msg = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+      if (msg.contains("Message: ")) {
+        msg = msg.substring(msg.indexOf("Message: ")+9).trim();
       }
-    } catch (Exception e) {
-      if (e.getMessage().contains("lineNumber:") && e.getMessage().contains("columnNumber:")) {
-        int line = Utilities.parseInt(extractVal(e.getMessage(), "lineNumber"), 0); 
-        int col = Utilities.parseInt(extractVal(e.getMessage(), "columnNumber"), 0); 
-        logError(focusFragment.getErrors(), ValidationMessage.NO_RULE_DATE, line, col, "(xml)", IssueType.INVALID, e.getMessage().substring(e.getMessage().lastIndexOf(";")+1).trim(), IssueSeverity.FATAL);
-      } else {
-        logError(focusFragment.getErrors(), ValidationMessage.NO_RULE_DATE, 0, 0, "(xml)", IssueType.INVALID, e.getMessage(), IssueSeverity.FATAL);
+      int line = e.getLocation() == null ? 0 : Math.max(e.getLocation().getLineNumber(), 0);
+      int col = e.getLocation() == null ? 0 : Math.max(e.getLocation().getColumnNumber(), 0);
+      logError(focusFragment.getErrors(), ValidationMessage.NO_RULE_DATE, line, col, "(xml)", IssueType.INVALID, msg, IssueSeverity.FATAL);
+      errors = null;
+    } finally {
+      if (xml != null) {
+        try {
+          xml.close();
+        } catch (XMLStreamException e) {
+          // nothing to release for an in-memory stream
+        }
       }
-      doc = null;
     }
-    if (doc != null) {
-      focusFragment.setElement(parse(focusFragment.getErrors(), doc));
+    if (errors != null) {
+      focusFragment.getErrors().addAll(errors);
+      focusFragment.setElement(element);
     }
     List<ValidatedFragment> res = new ArrayList<>();
     res.add(focusFragment);
@@ -320,6 +339,16 @@ public class XmlParser extends ParserBase {
   }
 
   private StructureDefinition findLegalConstraint(String xsiType, String actualType) {
+    String key = xsiType+"|"+actualType;
+    if (legalConstraints.containsKey(key)) {
+      return legalConstraints.get(key);
+    }
+    StructureDefinition sd = resolveLegalConstraint(xsiType, actualType);
+    legalConstraints.put(key, sd);
+    return sd;
+  }
+
+  private StructureDefinition resolveLegalConstraint(String xsiType, String actualType) {
     StructureDefinition sdA = context.fetchTypeDefinition(actualType);
     StructureDefinition sd = context.fetchTypeDefinition(xsiType);
     while (sd != null) {
@@ -407,7 +436,7 @@ public class XmlParser extends ParserBase {
 
 					// matchbox-engine: if we are parsing from CDA we need to collapse non string types https://www.w3.org/TR/xmlschema-2/#rf-whiteSpace
 					// If the attribute type is not CDATA, then the XML processor must further process the normalized attribute value by discarding any leading and trailing space (#x20) characters
-					if ("urn:hl7-org:v3".equals(node.getNamespaceURI()) || "urn:hl7-org:sdtc".equals(node.getNamespaceURI()) || "urn:ihe:pharm".equals(node.getNamespaceURI()) || "urn:oid:1.3.6.1.4.1.19376.1.3.2".equals(node.getNamespaceURI())|| "urn:hl7-at:v3".equals(node.getNamespaceURI())) {
+					if (isCdaNamespace(node.getNamespaceURI())) {
 						av = av.trim();
 					}
 
@@ -576,7 +605,662 @@ public class XmlParser extends ParserBase {
     }
   }
 
+  // matchbox-engine: the namespaces of CDA, where the whitespace of attributes is collapsed
+  private boolean isCdaNamespace(String ns) {
+    return "urn:hl7-org:v3".equals(ns) || "urn:hl7-org:sdtc".equals(ns) || "urn:ihe:pharm".equals(ns) || "urn:oid:1.3.6.1.4.1.19376.1.3.2".equals(ns) || "urn:hl7-at:v3".equals(ns);
+  }
+
+  /**
+   * matchbox patch: parses the document from a StAX reader positioned before the root element and reads it to its
+   * end. This is the streaming counterpart of parse(errors, Document): the same checks and messages, the locations are
+   * the ones the reader reports at the end of the start tags, as the location annotator did
+   */
+  private Element parse(List<ValidationMessage> errors, XMLStreamReader xml) throws XMLStreamException, FHIRFormatError, DefinitionException, FHIRException, IOException {
+    int mark = errors.size();
+    List<String> comments = new ArrayList<>();
+    int instructions = 0;
+    int event = xml.getEventType();
+    while (event != XMLStreamConstants.START_ELEMENT) {
+      if (event == XMLStreamConstants.COMMENT) {
+        comments.add(xml.getText());
+      } else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+        instructions++;
+      } else if (event == XMLStreamConstants.DTD) {
+        // xxe protection
+        throw new XMLStreamException(DOCTYPE_DISALLOWED, xml.getLocation());
+      } else if (event == XMLStreamConstants.END_DOCUMENT) {
+        return null;
+      }
+      event = xml.next();
+    }
+
+    String ns = ns(xml.getNamespaceURI());
+    String name = xml.getLocalName();
+    String path = "/"+pathPrefix(ns)+name;
+    int line = line(xml);
+    int col = col(xml);
+
+    Element result = null;
+    StructureDefinition sd = getDefinition(errors, line, col, (ns == null ? "noNamespace" : ns), name);
+    if (sd == null) {
+      skipElement(xml);
+    } else {
+      result = new Element(name, new Property(context, sd.getSnapshot().getElement().get(0), sd, getProfileUtilities(), getContextUtilities())).setFormat(FhirFormat.XML);
+      result.setPath(name);
+      int contentMark = errors.size();
+      checkElement(errors, xml, line, col, result, path, result.getProperty(), false);
+      result.markLocation(line, col);
+      result.setType(name);
+      boolean content = parseChildren(errors, path, xml, result, comments);
+      checkContent(errors, contentMark, ns, content, line, col, path);
+      result.numberChildren();
+      if (!trackLocations) {
+        result.linkPaths(name);
+      }
+    }
+    while (xml.hasNext()) {
+      if (xml.next() == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+        instructions++;
+      }
+    }
+    if (policy == ValidationPolicy.EVERYTHING && FormatUtilities.FHIR_NS.equals(ns) && instructions > 0) {
+      List<ValidationMessage> messages = new ArrayList<>();
+      for (int i = 0; i < instructions; i++) {
+        logError(messages, ValidationMessage.NO_RULE_DATE, 0, 0, "(document)", IssueType.INVALID, context.formatMessage(
+            I18nConstants.NO_PROCESSING_INSTRUCTIONS_ALLOWED_IN_RESOURCES), IssueSeverity.ERROR);
+      }
+      errors.addAll(mark, messages);
+    }
+    return result;
+  }
+
+  /**
+   * matchbox patch: the line of the position of the reader, 0 when the locations are not tracked
+   */
+  private int line(XMLStreamReader xml) {
+    return trackLocations ? xml.getLocation().getLineNumber() : 0;
+  }
+
+  private int col(XMLStreamReader xml) {
+    return trackLocations ? xml.getLocation().getColumnNumber() : 0;
+  }
+
+  /**
+   * matchbox patch: checkElement for the start tag the reader is positioned on, the check for content is done by
+   * checkContent once the element has been read
+   */
+  private void checkElement(List<ValidationMessage> errors, XMLStreamReader xml, int line, int col, Element e, String path, Property prop, boolean xsiTypeChecked) throws FHIRFormatError {
+    if (policy == ValidationPolicy.EVERYTHING) {
+      String ns = prop.getXmlNamespace();
+      String elementNs = ns(xml.getNamespaceURI());
+      if (elementNs == null) {
+        elementNs = "noNamespace";
+      }
+      if (!elementNs.equals(ns)) {
+        logError(errors, ValidationMessage.NO_RULE_DATE, line, col, path, IssueType.INVALID, context.formatMessage(I18nConstants.WRONG_NAMESPACE__EXPECTED_, ns), IssueSeverity.ERROR);
+      }
+      if (!xsiTypeChecked) {
+        String xsiType = attribute(xml, FormatUtilities.NS_XSI, "type");
+        if (!Utilities.noString(xsiType)) {
+          String actualType = prop.getXmlTypeName();
+          if (xsiType.equals(actualType)) {
+            logError(errors, "2023-10-12", line, col, path, IssueType.INVALID, context.formatMessage(I18nConstants.XSI_TYPE_UNNECESSARY), IssueSeverity.INFORMATION);
+          } else {
+            StructureDefinition sd = findLegalConstraint(xsiType, actualType);
+            if (sd != null) {
+              e.setType(sd.getType());
+              e.setExplicitType(xsiType);
+            } else {
+              logError(errors, "2023-10-12", line, col, path, IssueType.INVALID, context.formatMessage(I18nConstants.XSI_TYPE_WRONG, xsiType, actualType), IssueSeverity.ERROR);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * matchbox patch: reports an element without attributes, text or child elements, the message is inserted where
+   * checkElement reports it for a DOM node
+   */
+  private void checkContent(List<ValidationMessage> errors, int mark, String ns, boolean content, int line, int col, String path) throws FHIRFormatError {
+    if (policy == ValidationPolicy.EVERYTHING && !content && FormatUtilities.FHIR_NS.equals(ns)) { // this rule only applies to FHIR Content
+      List<ValidationMessage> messages = new ArrayList<>();
+      logError(messages, ValidationMessage.NO_RULE_DATE, line, col, path, IssueType.INVALID, context.formatMessage(I18nConstants.ELEMENT_MUST_HAVE_SOME_CONTENT), IssueSeverity.ERROR);
+      errors.addAll(mark, messages);
+    }
+  }
+
+  /**
+   * matchbox patch: parseChildren for the start tag the reader is positioned on, the reader is left on the end tag
+   * of the node. The direct text of the node is only known at its end, the text property is then inserted before
+   * the properties from the attributes and the messages about the text before the ones about the attributes, as
+   * parseChildren for a DOM node adds them
+   *
+   * @param comments the comments before the node, reaped into the element
+   * @return true if the node has attributes, text or child elements
+   */
+  private boolean parseChildren(List<ValidationMessage> errors, String path, XMLStreamReader xml, Element element, List<String> comments) throws XMLStreamException, FHIRFormatError, FHIRException, IOException, DefinitionException {
+    // this parsing routine retains the original order in a the XML file, to support validation
+    if (!comments.isEmpty()) {
+      element.getComments().addAll(comments);
+    }
+    String nodeNs = ns(xml.getNamespaceURI());
+    String nodeName = qname(xml.getPrefix(), xml.getLocalName());
+    List<Property> properties = element.getProperty().getChildProperties(element.getName(), attribute(xml, FormatUtilities.NS_XSI, "type"));
+    Property cgProp = getChoiceGroupProp(properties);
+    Property mtProp = cgProp == null ? null : getTextProp(cgProp.getChildProperties(null, null));
+
+    int line = line(xml);
+    int col = col(xml);
+    int mark = errors.size();
+    int textIndex = element.getChildren().size();
+    String representation = attribute(xml, null, "representation");
+    boolean content = xml.getAttributeCount() > 0;
+
+    // namespace declarations are not reported as attributes by the reader
+    for (int i : attributeOrder(xml)) {
+      String attrName = qname(xml.getAttributePrefix(i), xml.getAttributeLocalName(i));
+      String attrLocalName = xml.getAttributeLocalName(i);
+      String attrNs = ns(xml.getAttributeNamespace(i));
+      String value = xml.getAttributeValue(i);
+      if (!validAttrValue(value)) {
+        logError(errors, ValidationMessage.NO_RULE_DATE, line, col, path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.XML_ATTR_VALUE_INVALID, attrName), IssueSeverity.ERROR);
+      }
+      Property property = getAttrProp(properties, attrLocalName, attrNs);
+      if (property != null) {
+        String av = value;
+        if (isCdaNamespace(nodeNs)) {
+          av = av.trim();
+        }
+        if (ToolingExtensions.hasExtension(property.getDefinition(), ToolingExtensions.EXT_DATE_FORMAT))
+          av = convertForDateFormatFromExternal(ToolingExtensions.readStringExtension(property.getDefinition(), ToolingExtensions.EXT_DATE_FORMAT), av);
+        if (property.getName().equals("value") && element.isPrimitive())
+          element.setValue(av);
+        else {
+          String[] vl = {av};
+          if (property.isList() && av.contains(" ")) {
+            vl = av.split(" ");
+          }
+          for (String v : vl) {
+            Element n = new Element(property.getName(), property, property.getType(), v).markLocation(line, col).setFormat(FhirFormat.XML);
+            if (trackLocations) {
+              n.setPath(element.getPath()+"."+property.getName());
+            }
+            element.getChildren().add(n);
+          }
+        }
+      } else {
+        boolean ok = false;
+        if (FormatUtilities.FHIR_NS.equals(nodeNs)) {
+          if (attrLocalName.equals("schemaLocation") && FormatUtilities.NS_XSI.equals(attrNs)) {
+            ok = ok || allowXsiLocation;
+          }
+        } else
+          ok = ok || (attrLocalName.equals("schemaLocation")); // xsi:schemalocation allowed for non FHIR content
+        ok = ok || (hasTypeAttr(element) && attrLocalName.equals("type") && FormatUtilities.NS_XSI.equals(attrNs)); // xsi:type allowed if element says so
+        if (!ok) {
+          logError(errors, ValidationMessage.NO_RULE_DATE, line, col, path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.UNDEFINED_ATTRIBUTE__ON__FOR_TYPE__PROPERTIES__, attrName, nodeName, element.fhirType(), properties), IssueSeverity.ERROR);
+        }
+      }
+    }
+
+    String lastName = null;
+    int repeatCount = 0;
+    boolean hasElements = false;
+    List<String> pending = new ArrayList<>();
+    StringBuilder directText = new StringBuilder();
+    List<TextRun> runs = new ArrayList<>();
+    StringBuilder run = null;
+    int runLine = 0;
+    int runCol = 0;
+    while (true) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+        // the reader may split a text node into several events
+        if (run == null) {
+          run = new StringBuilder();
+          runLine = line(xml);
+          runCol = col(xml);
+        }
+        run.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+        continue;
+      }
+      if (run != null) {
+        String text = run.toString();
+        run = null;
+        directText.append(text);
+        if (!Utilities.noString(text.trim())) {
+          content = true;
+          if (mtProp != null) {
+            if (cgProp.getName().equals(lastName)) {
+              repeatCount++;
+            } else {
+              lastName = cgProp.getName();
+              repeatCount = 0;
+            }
+
+            Element cgn = new Element(cgProp.getName(), cgProp).setFormat(FhirFormat.XML);
+            if (trackLocations) {
+              cgn.setPath(element.getPath()+"."+cgProp.getName()+"["+repeatCount+"]");
+            }
+            element.getChildren().add(cgn);
+
+            Element n = new Element(mtProp.getName(), mtProp, mtProp.getType(), text.trim()).markLocation(runLine, runCol).setFormat(FhirFormat.XML);
+            cgn.getChildren().add(n);
+            if (trackLocations) {
+              n.setPath(element.getPath()+"."+mtProp.getName());
+            }
+          } else {
+            runs.add(new TextRun(text.trim(), runLine, runCol));
+          }
+        }
+      }
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      }
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        content = true;
+        hasElements = true;
+        List<String> childComments = pending;
+        pending = new ArrayList<>();
+        String childNs = ns(xml.getNamespaceURI());
+        String childName = xml.getLocalName();
+        int childLine = line(xml);
+        int childCol = col(xml);
+        Property property = getElementProp(properties, childName, childNs);
+
+        if (property != null) {
+          if (property.getName().equals(lastName)) {
+            repeatCount++;
+          } else {
+            lastName = property.getName();
+            repeatCount = 0;
+          }
+          if (!property.isChoice() && "xhtml".equals(property.getType())) {
+            // the narrative parsers work on a DOM, only the xhtml is read into one
+            org.w3c.dom.Element child = readDom(xml);
+            XhtmlNode xhtml;
+            if (property.getDefinition().hasRepresentation(PropertyRepresentation.CDATEXT))
+              xhtml = new CDANarrativeFormat().convert(child);
+            else {
+              XhtmlParser xp = new XhtmlParser();
+              xhtml = xp.parseHtmlNode(child);
+              if (policy == ValidationPolicy.EVERYTHING) {
+                for (StringPair s : xp.getValidationIssues()) {
+                  logError(errors, "2022-11-17", childLine, childCol, path, IssueType.INVALID, context.formatMessage(s.getName(), s.getValue()), IssueSeverity.ERROR);
+                }
+              }
+            }
+            Element n = new Element(property.getName(), property, "xhtml", new XhtmlComposer(XhtmlComposer.XML, false).compose(xhtml)).setXhtml(xhtml).markLocation(childLine, childCol).setFormat(FhirFormat.XML);
+            if (trackLocations) {
+              n.setPath(element.getPath()+"."+property.getName());
+            }
+            element.getChildren().add(n);
+          } else {
+            String npath = path+"/"+pathPrefix(childNs)+childName;
+            String name = childName;
+            if (!property.isChoice() && !name.equals(property.getName())) {
+              name = property.getName();
+            }
+            Element n = new Element(name, property).markLocation(childLine, childCol).setFormat(FhirFormat.XML);
+            if (property.isList()) {
+              if (trackLocations) {
+                n.setPath(element.getPath()+"."+property.getName()+"["+repeatCount+"]");
+              }
+            } else {
+              if (trackLocations) {
+                n.setPath(element.getPath()+"."+property.getName());
+              }
+            }
+            boolean xsiTypeChecked = false;
+            boolean ok = true;
+            if (property.isChoice()) {
+              if (property.getDefinition().hasRepresentation(PropertyRepresentation.TYPEATTR)) {
+                String xsiType = attribute(xml, FormatUtilities.NS_XSI, "type");
+                if (Utilities.noString(xsiType)) {
+                  if (ToolingExtensions.hasExtension(property.getDefinition(), "http://hl7.org/fhir/StructureDefinition/elementdefinition-defaulttype")) {
+                    xsiType = ToolingExtensions.readStringExtension(property.getDefinition(), "http://hl7.org/fhir/StructureDefinition/elementdefinition-defaulttype");
+                    n.setType(xsiType);
+                  } else {
+                    logError(errors, ValidationMessage.NO_RULE_DATE, childLine, childCol, path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.NO_TYPE_FOUND_ON_, childName), IssueSeverity.ERROR);
+                    ok = false;
+                  }
+                } else {
+                  if (xsiType.contains(":"))
+                    xsiType = xsiType.substring(xsiType.indexOf(":")+1);
+                  n.setType(xsiType);
+                  n.setExplicitType(xsiType);
+                }
+                xsiTypeChecked = true;
+              } else
+                n.setType(n.getType());
+            }
+            int childMark = errors.size();
+            checkElement(errors, xml, childLine, childCol, n, npath, n.getProperty(), xsiTypeChecked);
+            element.getChildren().add(n);
+            boolean childContent;
+            if (!ok) {
+              childContent = skipElement(xml);
+            } else if (property.isResource()) {
+              childContent = parseResource(errors, npath, xml, n, property);
+            } else {
+              childContent = parseChildren(errors, npath, xml, n, childComments);
+            }
+            checkContent(errors, childMark, childNs, childContent, childLine, childCol, npath);
+          }
+        } else {
+          if (cgProp != null) {
+            property = getElementProp(cgProp.getChildProperties(null, null), childName, childNs);
+            if (property != null) {
+              if (cgProp.getName().equals(lastName)) {
+                repeatCount++;
+              } else {
+                lastName = cgProp.getName();
+                repeatCount = 0;
+              }
+
+              String npath = path+"/"+pathPrefix(cgProp.getXmlNamespace())+cgProp.getName();
+              Element cgn = new Element(cgProp.getName(), cgProp).setFormat(FhirFormat.XML);
+              if (trackLocations) {
+                cgn.setPath(element.getPath()+"."+cgProp.getName()+"["+repeatCount+"]");
+              }
+              element.getChildren().add(cgn);
+
+              npath = npath+"/"+pathPrefix(childNs)+childName;
+              Element n = new Element(childName, property).markLocation(childLine, childCol).setFormat(FhirFormat.XML);
+              cgn.getChildren().add(n);
+              if (trackLocations) {
+                n.setPath(element.getPath()+"."+property.getName());
+              }
+              int childMark = errors.size();
+              checkElement(errors, xml, childLine, childCol, n, npath, n.getProperty(), false);
+              boolean childContent = parseChildren(errors, npath, xml, n, childComments);
+              checkContent(errors, childMark, childNs, childContent, childLine, childCol, npath);
+            }
+          }
+          if (property == null) {
+            logError(errors, ValidationMessage.NO_RULE_DATE, childLine, childCol, path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.UNDEFINED_ELEMENT_, childName, path), IssueSeverity.ERROR);
+            skipElement(xml);
+          }
+        }
+      } else if (event == XMLStreamConstants.COMMENT) {
+        pending.add(xml.getText());
+      } else if (event == XMLStreamConstants.CDATA) {
+        content = content || !Utilities.noString(xml.getText().trim());
+        logError(errors, ValidationMessage.NO_RULE_DATE, xml.getLocation().getLineNumber(), xml.getLocation().getColumnNumber(), path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.CDATA_IS_NOT_ALLOWED), IssueSeverity.ERROR);
+      } else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION || event == XMLStreamConstants.ENTITY_REFERENCE) {
+        String nodeType = Integer.toString(event == XMLStreamConstants.PROCESSING_INSTRUCTION ? Node.PROCESSING_INSTRUCTION_NODE : Node.ENTITY_REFERENCE_NODE);
+        logError(errors, ValidationMessage.NO_RULE_DATE, xml.getLocation().getLineNumber(), xml.getLocation().getColumnNumber(), path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.NODE_TYPE__IS_NOT_ALLOWED, nodeType), IssueSeverity.ERROR);
+      }
+    }
+    // the comments after the last child element belong to the node
+    if (hasElements && !pending.isEmpty()) {
+      element.getComments().addAll(pending);
+    }
+
+    String text = mtProp == null ? directText.toString().trim() : null;
+    if (!Utilities.noString(text)) {
+      Property property = getTextProp(properties);
+      if (property != null) {
+        Element n;
+        if ("ED.data[x]".equals(property.getDefinition().getId()) || (property.getDefinition()!=null && property.getDefinition().getBase()!=null && "ED.data[x]".equals(property.getDefinition().getBase().getPath()))) {
+          if ("B64".equals(representation)) {
+            n = new Element("dataBase64Binary", property, "base64Binary", text).markLocation(line, col).setFormat(FhirFormat.XML);
+          } else {
+            n = new Element("dataString", property, "string", text).markLocation(line, col).setFormat(FhirFormat.XML);
+          }
+        } else {
+          n = new Element(property.getName(), property, property.getType(), text).markLocation(line, col).setFormat(FhirFormat.XML);
+        }
+        if (trackLocations) {
+          n.setPath(element.getPath()+"."+property.getName());
+        }
+        element.getChildren().add(textIndex, n);
+      } else {
+        List<ValidationMessage> messages = new ArrayList<>();
+        for (TextRun r : runs) {
+          logError(messages, ValidationMessage.NO_RULE_DATE, r.line, r.col, path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.TEXT_SHOULD_NOT_BE_PRESENT, Utilities.makeSingleLine(r.text)), IssueSeverity.ERROR);
+        }
+        errors.addAll(mark, messages);
+      }
+    }
+    return content;
+  }
+
+  /**
+   * matchbox patch: parseResource for the container the reader is positioned on, only its first child element is
+   * parsed as the resource, the reader is left on the end tag of the container
+   *
+   * @return true if the container has attributes, text or child elements
+   */
+  private boolean parseResource(List<ValidationMessage> errors, String string, XMLStreamReader xml, Element parent, Property elementProperty) throws XMLStreamException, FHIRFormatError, DefinitionException, FHIRException, IOException {
+    List<String> comments = new ArrayList<>();
+    boolean content = xml.getAttributeCount() > 0;
+    int event = xml.next();
+    while (event != XMLStreamConstants.END_ELEMENT) {
+      if (event == XMLStreamConstants.COMMENT) {
+        comments.add(xml.getText());
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = xml.getLocalName();
+        StructureDefinition sd = context.fetchResource(StructureDefinition.class, ProfileUtilities.sdNs(name, null));
+        if (sd == null)
+          throw new FHIRFormatError(context.formatMessage(I18nConstants.CONTAINED_RESOURCE_DOES_NOT_APPEAR_TO_BE_A_FHIR_RESOURCE_UNKNOWN_NAME_, name));
+        parent.updateProperty(new Property(context, sd.getSnapshot().getElement().get(0), sd, getProfileUtilities(), getContextUtilities()), SpecialElement.fromProperty(parent.getProperty()), elementProperty);
+        parent.setType(name);
+        parseChildren(errors, name, xml, parent, comments);
+        event = xml.next();
+        while (event != XMLStreamConstants.END_ELEMENT) {
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            skipElement(xml);
+          }
+          event = xml.next();
+        }
+        return true;
+      } else if (xml.isCharacters() && !Utilities.noString(xml.getText().trim())) {
+        content = true;
+      }
+      event = xml.next();
+    }
+    return content;
+  }
+
+  /**
+   * matchbox patch: reads over the element the reader is positioned on, up to its end tag
+   *
+   * @return true if the element has attributes, text or child elements
+   */
+  private boolean skipElement(XMLStreamReader xml) throws XMLStreamException {
+    boolean content = xml.getAttributeCount() > 0;
+    int depth = 1;
+    while (depth > 0) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+        content = true;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      } else if ((xml.isCharacters() || event == XMLStreamConstants.CDATA) && !Utilities.noString(xml.getText().trim())) {
+        content = true;
+      }
+    }
+    return content;
+  }
+
+  /**
+   * matchbox patch: reads the element the reader is positioned on into a DOM element, for the narrative parsers
+   */
+  private org.w3c.dom.Element readDom(XMLStreamReader xml) throws XMLStreamException {
+    Document doc = fragmentBuilder().newDocument();
+    Node parent = doc;
+    org.w3c.dom.Element root = null;
+    int depth = 0;
+    while (true) {
+      switch (xml.getEventType()) {
+      case XMLStreamConstants.START_ELEMENT:
+        org.w3c.dom.Element e = doc.createElementNS(ns(xml.getNamespaceURI()), qname(xml.getPrefix(), xml.getLocalName()));
+        for (int i = 0; i < xml.getNamespaceCount(); i++) {
+          String prefix = xml.getNamespacePrefix(i);
+          e.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, Utilities.noString(prefix) ? "xmlns" : "xmlns:"+prefix, xml.getNamespaceURI(i));
+        }
+        for (int i = 0; i < xml.getAttributeCount(); i++) {
+          e.setAttributeNS(ns(xml.getAttributeNamespace(i)), qname(xml.getAttributePrefix(i), xml.getAttributeLocalName(i)), xml.getAttributeValue(i));
+        }
+        parent.appendChild(e);
+        parent = e;
+        if (root == null) {
+          root = e;
+        }
+        depth++;
+        break;
+      case XMLStreamConstants.END_ELEMENT:
+        parent = parent.getParentNode();
+        depth--;
+        break;
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.SPACE:
+        Node last = parent.getLastChild();
+        if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+          ((Text) last).appendData(xml.getText());
+        } else {
+          parent.appendChild(doc.createTextNode(xml.getText()));
+        }
+        break;
+      case XMLStreamConstants.CDATA:
+        parent.appendChild(doc.createCDATASection(xml.getText()));
+        break;
+      case XMLStreamConstants.COMMENT:
+        parent.appendChild(doc.createComment(xml.getText()));
+        break;
+      case XMLStreamConstants.PROCESSING_INSTRUCTION:
+        parent.appendChild(doc.createProcessingInstruction(xml.getPITarget(), xml.getPIData()));
+        break;
+      default:
+        break;
+      }
+      if (depth == 0) {
+        return root;
+      }
+      xml.next();
+    }
+  }
+
+  private DocumentBuilder fragmentBuilder() {
+    if (fragmentBuilder == null) {
+      try {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        fragmentBuilder = factory.newDocumentBuilder();
+      } catch (ParserConfigurationException e) {
+        throw new FHIRException(e.getMessage(), e);
+      }
+    }
+    return fragmentBuilder;
+  }
+
+  /**
+   * the indexes of the attributes in the order of their names, which is the order of the attributes of a DOM node
+   */
+  private Integer[] attributeOrder(XMLStreamReader xml) {
+    Integer[] order = new Integer[xml.getAttributeCount()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    if (order.length > 1) {
+      String[] names = new String[order.length];
+      for (int i = 0; i < order.length; i++) {
+        names[i] = qname(xml.getAttributePrefix(i), xml.getAttributeLocalName(i));
+      }
+      Arrays.sort(order, (i0, i1) -> names[i0].compareTo(names[i1]));
+    }
+    return order;
+  }
+
+  private String attribute(XMLStreamReader xml, String ns, String name) {
+    for (int i = 0; i < xml.getAttributeCount(); i++) {
+      if (name.equals(xml.getAttributeLocalName(i)) && Utilities.noString(ns) == Utilities.noString(xml.getAttributeNamespace(i))
+          && (Utilities.noString(ns) || ns.equals(xml.getAttributeNamespace(i)))) {
+        return xml.getAttributeValue(i);
+      }
+    }
+    return null;
+  }
+
+  private String ns(String uri) {
+    return Utilities.noString(uri) ? null : uri;
+  }
+
+  private String qname(String prefix, String localName) {
+    return Utilities.noString(prefix) ? localName : prefix+":"+localName;
+  }
+
+  private static class TextRun {
+    private final String text;
+    private final int line;
+    private final int col;
+
+    private TextRun(String text, int line, int col) {
+      this.text = text;
+      this.line = line;
+      this.col = col;
+    }
+  }
+
+  /**
+   * matchbox patch: the properties found for the element and attribute names in a list of child properties
+   */
+  private class PropertyLookup {
+    private final List<Property> properties;
+    private final Map<String, Property> elements = new HashMap<>();
+    private final Map<String, Property> attributes = new HashMap<>();
+    private boolean resolved;
+    private Property choiceGroup;
+    private Property text;
+
+    private PropertyLookup(List<Property> properties) {
+      this.properties = properties;
+    }
+
+    private void resolve() {
+      if (!resolved) {
+        choiceGroup = findChoiceGroupProp(properties);
+        text = findTextProp(properties);
+        resolved = true;
+      }
+    }
+
+    private Property element(String nodeName, String namespace) {
+      String key = namespace+"|"+nodeName;
+      Property p = elements.get(key);
+      if (p == null && !elements.containsKey(key)) {
+        p = findElementProp(properties, nodeName, namespace);
+        elements.put(key, p);
+      }
+      return p;
+    }
+
+    private Property attribute(String nodeName, String namespace) {
+      String key = namespace+"|"+nodeName;
+      Property p = attributes.get(key);
+      if (p == null && !attributes.containsKey(key)) {
+        p = findAttrProp(properties, nodeName, namespace);
+        attributes.put(key, p);
+      }
+      return p;
+    }
+  }
+
+  private PropertyLookup lookup(List<Property> properties) {
+    return propertyLookups.computeIfAbsent(properties, PropertyLookup::new);
+  }
+
   private Property getChoiceGroupProp(List<Property> properties) {
+    PropertyLookup lookup = lookup(properties);
+    lookup.resolve();
+    return lookup.choiceGroup;
+  }
+
+  private Property findChoiceGroupProp(List<Property> properties) {
     for (Property p : properties) {
       if (p.getDefinition().hasExtension(ToolingExtensions.EXT_ID_CHOICE_GROUP)) {
         return p;
@@ -603,6 +1287,10 @@ public class XmlParser extends ParserBase {
 
 
   private Property getElementProp(List<Property> properties, String nodeName, String namespace) {
+    return lookup(properties).element(nodeName, namespace);
+  }
+
+  private Property findElementProp(List<Property> properties, String nodeName, String namespace) {
     List<Property> propsSortedByLongestFirst = new ArrayList<Property>(properties);
     // sort properties according to their name longest first, so .requestOrganizationReference comes first before .request[x]
     // and therefore the longer property names get evaluated first
@@ -633,6 +1321,10 @@ public class XmlParser extends ParserBase {
   }
 
   private Property getAttrProp(List<Property> properties, String nodeName, String namespace) {
+    return lookup(properties).attribute(nodeName, namespace);
+  }
+
+  private Property findAttrProp(List<Property> properties, String nodeName, String namespace) {
     for (Property p : properties) {
       if (p.getXmlName().equals(nodeName) && p.getDefinition().hasRepresentation(PropertyRepresentation.XMLATTR) && p.getXmlNamespace().equals(namespace)) {
         return p;
@@ -649,6 +1341,12 @@ public class XmlParser extends ParserBase {
   }
 
   private Property getTextProp(List<Property> properties) {
+    PropertyLookup lookup = lookup(properties);
+    lookup.resolve();
+    return lookup.text;
+  }
+
+  private Property findTextProp(List<Property> properties) {
     for (Property p : properties)
       if (p.getDefinition().hasRepresentation(PropertyRepresentation.XMLTEXT)) 
         return p;
@@ -743,7 +1441,8 @@ public class XmlParser extends ParserBase {
   @Override
   public void compose(Element e, OutputStream stream, OutputStyle style, String base) throws IOException, FHIRException {
     markedXhtml = false;
-    XMLWriter xml = new XMLWriter(stream, "UTF-8");
+    // matchbox patch: the destination gets the output in blocks instead of every flush of the encoder
+    XMLWriter xml = new XMLWriter(new BufferedOutputStream(stream), "UTF-8");
     xml.setSortAttributes(false);
     xml.setPretty(style == OutputStyle.PRETTY);
     xml.start();
@@ -776,17 +1475,21 @@ public class XmlParser extends ParserBase {
         }
       }
     }
-    for (Element c : e.getChildren()) {
-      addNamespaces(xml, c);
+    if (e.hasChildren()) {
+      for (Element c : e.getChildren()) {
+        addNamespaces(xml, c);
+      }
     }
   }
 
   private boolean hasTypeAttr(Element e) {
     if (isTypeAttr(e.getProperty()))
       return true;
-    for (Element c : e.getChildren()) {
-      if (hasTypeAttr(c))
-        return true;
+    if (e.hasChildren()) {
+      for (Element c : e.getChildren()) {
+        if (hasTypeAttr(c))
+          return true;
+      }
     }
     // xsi_type is always allowed on CDA elements. right now, I'm not sure where to indicate this in the model, 
     // so it's just hardcoded here 
@@ -829,8 +1532,10 @@ public class XmlParser extends ParserBase {
           for (ElementDecoration d : decorations)
             xml.decorate(d);
       }
-      for (String s : element.getComments()) {
-        xml.comment(s, true);
+      if (element.hasComments()) {
+        for (String s : element.getComments()) {
+          xml.comment(s, true);
+        }
       }
     }
     if (isText(element.getProperty())) {
@@ -864,7 +1569,9 @@ public class XmlParser extends ParserBase {
         else {
           String rawXhtml = element.getValue();
           if (isCdaText(element.getProperty())) {
-            new CDANarrativeFormat().convert(xml, new XhtmlParser().parseFragment(rawXhtml));
+            // matchbox patch: the parsed narrative is reused, an XhtmlParser sets up all its entities when created
+            XhtmlNode xhtml = element.getXhtml() != null ? element.getXhtml() : new XhtmlParser().parseFragment(rawXhtml);
+            new CDANarrativeFormat().convert(xml, xhtml);
           } else {
             xml.escapedText(rawXhtml);
             if (!markedXhtml) {
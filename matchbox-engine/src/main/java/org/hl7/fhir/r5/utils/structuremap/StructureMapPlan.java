@@ -0,0 +1,119 @@
+package org.hl7.fhir.r5.utils.structuremap;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r5.fhirpath.ExpressionNode;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupComponent;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupRuleComponent;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupRuleTargetComponent;
+
+/**
+ * matchbox patch: a StructureMap compiled for execution by StructureMapUtilities. The groups referenced by extends
+ * and dependent rules are resolved, the FHIRPath expressions parsed and the rule paths built once, the plan is
+ * cached on the StructureMap (a new version of a map is a new resource and gets its own plan).
+ * <p>
+ * The groups reached by type (simple rules) are only known at execution and are compiled when first executed.
+ * References or expressions which cannot be compiled are left unresolved, the execution then falls back to the
+ * interpretation of the StructureMap and reports the error at the place it did before.
+ * <p>
+ * The plan is the only cache written while transforming: it is published once on the StructureMap and the group
+ * resolutions and expressions found at execution are kept in concurrent maps of the plan, the shared StructureMap
+ * components are not modified. Concurrent transforms with the same map are safe.
+ */
+class StructureMapPlan {
+
+  public static final String MAP_PLAN = "matchbox.map.plan";
+
+  // the model classes do not override equals and hashCode, the components are keys by identity
+  private final Map<StructureMapGroupComponent, GroupPlan> groups = new ConcurrentHashMap<>();
+  private final Map<Base, Map<String, Object>> resolved = new ConcurrentHashMap<>();
+
+  GroupPlan getGroup(StructureMapGroupComponent group) {
+    return groups.get(group);
+  }
+
+  GroupPlan putGroup(GroupPlan plan) {
+    GroupPlan existing = groups.putIfAbsent(plan.group, plan);
+    return existing != null ? existing : plan;
+  }
+
+  /**
+   * @return what has been resolved for the key on the component of the map, or null
+   */
+  Object getResolved(Base holder, String key) {
+    Map<String, Object> values = resolved.get(holder);
+    return values == null ? null : values.get(key);
+  }
+
+  void putResolved(Base holder, String key, Object value) {
+    resolved.computeIfAbsent(holder, k -> new ConcurrentHashMap<>()).put(key, value);
+  }
+
+  static class GroupPlan {
+    final StructureMap map;
+    final StructureMapGroupComponent group;
+    ResolvedGroup extendsGroup;
+    List<RulePlan> rules = Collections.emptyList();
+
+    GroupPlan(StructureMap map, StructureMapGroupComponent group) {
+      this.map = map;
+      this.group = group;
+    }
+  }
+
+  static class RulePlan {
+    final StructureMapGroupRuleComponent rule;
+    final String path;
+    final String sourceVariable;
+    final boolean simple;
+    ExpressionNode search;
+    ExpressionNode condition;
+    ExpressionNode check;
+    ExpressionNode logMessage;
+    final List<TargetPlan> targets = new ArrayList<>();
+    final List<RulePlan> rules = new ArrayList<>();
+    final List<ResolvedGroup> dependents = new ArrayList<>();
+
+    RulePlan(StructureMap map, StructureMapGroupComponent group, StructureMapGroupRuleComponent rule, boolean simple) {
+      this.rule = rule;
+      this.path = map.getName() + "|" + group.getName() + "|" + rule.getName();
+      this.sourceVariable = rule.getSource().size() == 1 ? rule.getSourceFirstRep().getVariable() : null;
+      this.simple = simple;
+    }
+  }
+
+  static class TargetPlan {
+    final StructureMapGroupRuleTargetComponent target;
+    ExpressionNode expression;
+
+    TargetPlan(StructureMapGroupRuleTargetComponent target) {
+      this.target = target;
+    }
+  }
+}
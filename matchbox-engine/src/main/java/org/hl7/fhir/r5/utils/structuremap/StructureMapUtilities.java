@@ -720,7 +720,9 @@ public class StructureMapUtilities {
       throw new FHIRException("not handled yet: creating a type of " + type);
     }
 
-    executeGroup("", context, map, vars, g, true);
+    // matchbox patch: the map is executed from its compiled plan
+    StructureMapPlan plan = getPlan(map);
+    executeGroup("", context, plan, vars, getGroupPlan(plan, map, g), true);
     if (target instanceof Element)
       ((Element) target).sort();
   }
@@ -749,41 +751,167 @@ public class StructureMapUtilities {
     return name == null ? def : name;
   }
 
-  private void executeGroup(String indent, TransformContext context, StructureMap map, Variables vars, StructureMapGroupComponent group, boolean atRoot) throws FHIRException {
-    log(indent + "Group : " + group.getName() + "; vars = " + vars.summary());
-    // todo: check inputs
-    if (group.hasExtends()) {
-      ResolvedGroup rg = resolveGroupReference(map, group, group.getExtends());
-      executeGroup(indent + " ", context, rg.getTargetMap(), vars, rg.getTargetGroup(), false);
+  /**
+   * matchbox patch: returns the plan of the map, compiling the groups of the map and the groups they reference.
+   * The user data of the map is only accessed under the lock of the map, the plan is published once compiled.
+   */
+  private StructureMapPlan getPlan(StructureMap map) {
+    synchronized (map) {
+      StructureMapPlan plan = (StructureMapPlan) map.getUserData(StructureMapPlan.MAP_PLAN);
+      if (plan == null) {
+        plan = new StructureMapPlan();
+        List<StructureMapPlan.GroupPlan> work = new ArrayList<>();
+        for (StructureMapGroupComponent group : map.getGroup()) {
+          work.add(getGroupPlan(plan, map, group));
+        }
+        for (int i = 0; i < work.size(); i++) {
+          StructureMapPlan.GroupPlan gp = work.get(i);
+          List<ResolvedGroup> referenced = new ArrayList<>();
+          if (gp.extendsGroup != null) {
+            referenced.add(gp.extendsGroup);
+          }
+          collectDependents(gp.rules, referenced);
+          for (ResolvedGroup rg : referenced) {
+            if (plan.getGroup(rg.getTargetGroup()) == null) {
+              work.add(getGroupPlan(plan, rg.getTargetMap(), rg.getTargetGroup()));
+            }
+          }
+        }
+        map.setUserData(StructureMapPlan.MAP_PLAN, plan);
+      }
+      return plan;
     }
+  }
 
+  private void collectDependents(List<StructureMapPlan.RulePlan> rules, List<ResolvedGroup> referenced) {
+    for (StructureMapPlan.RulePlan rp : rules) {
+      for (ResolvedGroup rg : rp.dependents) {
+        if (rg != null) {
+          referenced.add(rg);
+        }
+      }
+      collectDependents(rp.rules, referenced);
+    }
+  }
+
+  private StructureMapPlan.GroupPlan getGroupPlan(StructureMapPlan plan, StructureMap map, StructureMapGroupComponent group) {
+    StructureMapPlan.GroupPlan gp = plan.getGroup(group);
+    if (gp != null) {
+      return gp;
+    }
+    gp = new StructureMapPlan.GroupPlan(map, group);
+    if (group.hasExtends()) {
+      gp.extendsGroup = compileGroupReference(plan, map, group, group.getExtends());
+    }
+    List<StructureMapPlan.RulePlan> rules = new ArrayList<>();
     for (StructureMapGroupRuleComponent r : group.getRule()) {
-      executeRule(indent + "  ", context, map, vars, group, r, atRoot);
+      rules.add(compileRule(plan, map, group, r));
+    }
+    gp.rules = rules;
+    return plan.putGroup(gp);
+  }
+
+  private StructureMapPlan.RulePlan compileRule(StructureMapPlan plan, StructureMap map, StructureMapGroupComponent group, StructureMapGroupRuleComponent rule) {
+    StructureMapPlan.RulePlan rp = new StructureMapPlan.RulePlan(map, group, rule, checkisSimple(rule));
+    if (rule.getSource().size() == 1) {
+      StructureMapGroupRuleSourceComponent src = rule.getSource().get(0);
+      if (src.getContext().equals("@search")) {
+        rp.search = compileExpression(src.getElement());
+      }
+      if (src.hasCondition()) {
+        rp.condition = compileExpression(src.getCondition());
+      }
+      if (src.hasCheck()) {
+        rp.check = compileExpression(src.getCheck());
+      }
+      if (src.hasLogMessage()) {
+        rp.logMessage = compileExpression(src.getLogMessage());
+      }
+    }
+    for (StructureMapGroupRuleTargetComponent t : rule.getTarget()) {
+      StructureMapPlan.TargetPlan tp = new StructureMapPlan.TargetPlan(t);
+      if (t.hasTransform() && t.getTransform() == StructureMapTransform.EVALUATE && t.hasParameter()
+        && t.getParameter().get(t.getParameter().size() - 1).getValue() instanceof StringType) {
+        tp.expression = compileExpression(t.getParameter().get(t.getParameter().size() - 1).getValue().primitiveValue());
+      }
+      rp.targets.add(tp);
+    }
+    for (StructureMapGroupRuleComponent childrule : rule.getRule()) {
+      rp.rules.add(compileRule(plan, map, group, childrule));
+    }
+    if (!rule.hasRule() && rule.hasDependent() && !rp.simple) {
+      for (StructureMapGroupRuleDependentComponent dependent : rule.getDependent()) {
+        rp.dependents.add(compileGroupReference(plan, map, group, dependent.getName()));
+      }
+    }
+    return rp;
+  }
+
+  /**
+   * @return the resolved group, or null if it cannot be resolved now (the execution reports the error)
+   */
+  private ResolvedGroup compileGroupReference(StructureMapPlan plan, StructureMap map, StructureMapGroupComponent source, String name) {
+    try {
+      return resolveGroupReference(plan, map, source, name);
+    } catch (FHIRException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the parsed expression, or null if it cannot be parsed (the execution reports the error)
+   */
+  private ExpressionNode compileExpression(String expression) {
+    if (expression == null) {
+      return null;
+    }
+    try {
+      return fpe.parse(expression);
+    } catch (Exception e) {
+      return null;
     }
   }
 
-  private void executeRule(String indent, TransformContext context, StructureMap map, Variables vars, StructureMapGroupComponent group, StructureMapGroupRuleComponent rule, boolean atRoot) throws FHIRException {
-    log(indent + "rule : " + rule.getName() + "; vars = " + vars.summary());
+  private void executeGroup(String indent, TransformContext context, StructureMapPlan plan, Variables vars, StructureMapPlan.GroupPlan gp, boolean atRoot) throws FHIRException {
+    if (debug) {
+      log(indent + "Group : " + gp.group.getName() + "; vars = " + vars.summary());
+    }
+    // todo: check inputs
+    if (gp.group.hasExtends()) {
+      ResolvedGroup rg = gp.extendsGroup != null ? gp.extendsGroup : resolveGroupReference(plan, gp.map, gp.group, gp.group.getExtends());
+      executeGroup(indent + " ", context, plan, vars, getGroupPlan(plan, rg.getTargetMap(), rg.getTargetGroup()), false);
+    }
+
+    for (StructureMapPlan.RulePlan r : gp.rules) {
+      executeRule(indent + "  ", context, plan, vars, gp, r, atRoot);
+    }
+  }
+
+  private void executeRule(String indent, TransformContext context, StructureMapPlan plan, Variables vars, StructureMapPlan.GroupPlan gp, StructureMapPlan.RulePlan rp, boolean atRoot) throws FHIRException {
+    StructureMapGroupRuleComponent rule = rp.rule;
+    if (debug) {
+      log(indent + "rule : " + rule.getName() + "; vars = " + vars.summary());
+    }
     Variables srcVars = vars.copy();
     if (rule.getSource().size() != 1)
       throw new FHIRException("Rule \"" + rule.getName() + "\": not handled yet");
-    List<Variables> source = processSource(rule.getName(), context, srcVars, rule.getSource().get(0), map.getUrl(), indent);
+    List<Variables> source = processSource(rule.getName(), context, srcVars, rule.getSource().get(0), rp, gp.map.getUrl(), indent);
     if (source != null) {
       for (Variables v : source) {
-        for (StructureMapGroupRuleTargetComponent t : rule.getTarget()) {
-          processTarget(map.getName()+"|"+group.getName()+"|"+rule.getName(), context, v, map, group, t, rule.getSource().size() == 1 ? rule.getSourceFirstRep().getVariable() : null, atRoot, vars);
+        for (StructureMapPlan.TargetPlan t : rp.targets) {
+          processTarget(rp.path, context, plan, v, gp.map, gp.group, t, rp.sourceVariable, atRoot, vars);
         }
         if (rule.hasRule()) {
-          for (StructureMapGroupRuleComponent childrule : rule.getRule()) {
-            executeRule(indent + "  ", context, map, v, group, childrule, false);
+          for (StructureMapPlan.RulePlan childrule : rp.rules) {
+            executeRule(indent + "  ", context, plan, v, gp, childrule, false);
           }
           // matchbox pr https://github.com/hapifhir/org.hl7.fhir.core/issues/1777
-        } else if (rule.hasDependent() && !checkisSimple(rule)) {
-          for (StructureMapGroupRuleDependentComponent dependent : rule.getDependent()) {
-            executeDependency(indent + "  ", context, map, v, group, dependent);
+        } else if (rule.hasDependent() && !rp.simple) {
+          for (int i = 0; i < rule.getDependent().size(); i++) {
+            executeDependency(indent + "  ", context, plan, v, gp, rule.getDependent().get(i), rp.dependents.get(i));
           }
           // matchbox pr https://github.com/hapifhir/org.hl7.fhir.core/issues/1777
-        } else if (checkisSimple(rule)) {
+        } else if (rp.simple) {
           // simple inferred, map by type
           if (debug) {
             log(v.summary());
@@ -792,18 +920,20 @@ public class StructureMapUtilities {
           Base tgt = v.get(VariableMode.OUTPUT, rule.getTargetFirstRep().getVariable());
           String srcType = src.fhirType();
           String tgtType = tgt.fhirType();
-          ResolvedGroup defGroup = resolveGroupByTypes(map, rule.getName(), group, srcType, tgtType);
+          ResolvedGroup defGroup = resolveGroupByTypes(plan, gp.map, rule.getName(), gp.group, srcType, tgtType);
           Variables vdef = new Variables();
           vdef.add(VariableMode.INPUT, defGroup.getTargetGroup().getInput().get(0).getName(), src);
           vdef.add(VariableMode.OUTPUT, defGroup.getTargetGroup().getInput().get(1).getName(), tgt);
-          executeGroup(indent + "  ", context, defGroup.getTargetMap(), vdef, defGroup.getTargetGroup(), false);
+          executeGroup(indent + "  ", context, plan, vdef, getGroupPlan(plan, defGroup.getTargetMap(), defGroup.getTargetGroup()), false);
         }
       }
     }
   }
 
-  private void executeDependency(String indent, TransformContext context, StructureMap map, Variables vin, StructureMapGroupComponent group, StructureMapGroupRuleDependentComponent dependent) throws FHIRException {
-    ResolvedGroup rg = resolveGroupReference(map, group, dependent.getName());
+  private void executeDependency(String indent, TransformContext context, StructureMapPlan plan, Variables vin, StructureMapPlan.GroupPlan gp, StructureMapGroupRuleDependentComponent dependent, ResolvedGroup rg) throws FHIRException {
+    if (rg == null) {
+      rg = resolveGroupReference(plan, gp.map, gp.group, dependent.getName());
+    }
 
     if (rg.getTargetGroup().getInput().size() != dependent.getParameter().size()) {
       throw new FHIRException("Rule '" + dependent.getName() + "' has " + rg.getTargetGroup().getInput().size() + " but the invocation has " + dependent.getParameter().size() + " variables");
@@ -821,14 +951,16 @@ public class StructureMapUtilities {
         throw new FHIRException("Rule '" + dependent.getName() + "' " + mode.toString() + " variable '" + input.getName() + "' named as '" + var + "' has no value (vars = " + vin.summary() + ")");
       v.add(mode, input.getName(), vv);
     }
-    executeGroup(indent + "  ", context, rg.getTargetMap(), v, rg.getTargetGroup(), false);
+    executeGroup(indent + "  ", context, plan, v, getGroupPlan(plan, rg.getTargetMap(), rg.getTargetGroup()), false);
   }
 
-  private String determineTypeFromSourceType(StructureMap map, StructureMapGroupComponent source, Base base, String[] types) throws FHIRException {
+  private String determineTypeFromSourceType(StructureMapPlan plan, StructureMap map, StructureMapGroupComponent source, Base base, String[] types) throws FHIRException {
     String type = base.fhirType();
     String kn = "type^" + type;
-    if (source.hasUserData(kn))
-      return source.getUserString(kn);
+    // matchbox patch: resolutions are kept in the plan instead of the user data of the shared map
+    String known = (String) plan.getResolved(source, kn);
+    if (known != null)
+      return known;
 
     ResolvedGroup res = new ResolvedGroup(null, null);
     for (StructureMapGroupComponent grp : map.getGroup()) {
@@ -842,7 +974,7 @@ public class StructureMapUtilities {
     }
     if (res.getTargetMap() != null) {
       String result = getActualType(res.getTargetMap(), res.getTargetGroup().getInput().get(1).getType());
-      source.setUserData(kn, result);
+      plan.putResolved(source, kn, result);
       return result;
     }
 
@@ -867,7 +999,7 @@ public class StructureMapUtilities {
     if (res.getTargetGroup() == null)
       throw new FHIRException("No matches found for default rule for '" + type + "' from " + map.getUrl());
     String result = getActualType(res.getTargetMap(), res.getTargetGroup().getInput().get(1).getType()); // should be .getType, but R2...
-    source.setUserData(kn, result);
+    plan.putResolved(source, kn, result);
     return result;
   }
 
@@ -898,10 +1030,11 @@ public class StructureMapUtilities {
     return url.length() > mask.length() && url.startsWith(mask.substring(0, mask.indexOf("*"))) && url.endsWith(mask.substring(mask.indexOf("*") + 1));
   }
 
-  private ResolvedGroup resolveGroupByTypes(StructureMap map, String ruleid, StructureMapGroupComponent source, String srcType, String tgtType) throws FHIRException {
+  private ResolvedGroup resolveGroupByTypes(StructureMapPlan plan, StructureMap map, String ruleid, StructureMapGroupComponent source, String srcType, String tgtType) throws FHIRException {
     String kn = "types^" + srcType + ":" + tgtType;
-    if (source.hasUserData(kn))
-      return (ResolvedGroup) source.getUserData(kn);
+    ResolvedGroup known = (ResolvedGroup) plan.getResolved(source, kn);
+    if (known != null)
+      return known;
 
     ResolvedGroup res = new ResolvedGroup(null, null);
     for (StructureMapGroupComponent grp : map.getGroup()) {
@@ -914,7 +1047,7 @@ public class StructureMapUtilities {
       }
     }
     if (res.getTargetMap() != null) {
-      source.setUserData(kn, res);
+      plan.putResolved(source, kn, res);
       return res;
     }
 
@@ -938,7 +1071,7 @@ public class StructureMapUtilities {
     }
     if (res.getTargetGroup() == null)
       throw new FHIRException("No matches found for rule for '" + srcType + " to " + tgtType + "' from " + map.getUrl() + ", from rule '" + ruleid + "'");
-    source.setUserData(kn, res);
+    plan.putResolved(source, kn, res);
     return res;
   }
 
@@ -1009,10 +1142,11 @@ public class StructureMapUtilities {
   }
 
 
-  private ResolvedGroup resolveGroupReference(StructureMap map, StructureMapGroupComponent source, String name) throws FHIRException {
+  private ResolvedGroup resolveGroupReference(StructureMapPlan plan, StructureMap map, StructureMapGroupComponent source, String name) throws FHIRException {
     String kn = "ref^" + name;
-    if (source.hasUserData(kn))
-      return (ResolvedGroup) source.getUserData(kn);
+    ResolvedGroup known = (ResolvedGroup) plan.getResolved(source, kn);
+    if (known != null)
+      return known;
 
     ResolvedGroup res = new ResolvedGroup(null, null);
     for (StructureMapGroupComponent grp : map.getGroup()) {
@@ -1025,7 +1159,7 @@ public class StructureMapUtilities {
       }
     }
     if (res.getTargetMap() != null) {
-      source.setUserData(kn, res);
+      plan.putResolved(source, kn, res);
       return res;
     }
 
@@ -1051,18 +1185,14 @@ public class StructureMapUtilities {
     }
     if (res.getTargetGroup() == null)
       throw new FHIRException("No matches found for rule '" + name + "'. Reference found in " + map.getUrl());
-    source.setUserData(kn, res);
+    plan.putResolved(source, kn, res);
     return res;
   }
 
-  private List<Variables> processSource(String ruleId, TransformContext context, Variables vars, StructureMapGroupRuleSourceComponent src, String pathForErrors, String indent) throws FHIRException {
+  private List<Variables> processSource(String ruleId, TransformContext context, Variables vars, StructureMapGroupRuleSourceComponent src, StructureMapPlan.RulePlan rp, String pathForErrors, String indent) throws FHIRException {
     List<Base> items;
     if (src.getContext().equals("@search")) {
-      ExpressionNode expr = (ExpressionNode) src.getUserData(MAP_SEARCH_EXPRESSION);
-      if (expr == null) {
-        expr = fpe.parse(src.getElement());
-        src.setUserData(MAP_SEARCH_EXPRESSION, expr);
-      }
+      ExpressionNode expr = rp.search != null ? rp.search : fpe.parse(src.getElement());
       String search = fpe.evaluateToString(vars, null, null, new StringType(), expr); // string is a holder of nothing to ensure that variables are processed correctly 
       items = services.performSearch(context.getAppInfo(), search);
     } else {
@@ -1091,11 +1221,7 @@ public class StructureMapUtilities {
     }
     
     if (src.hasCondition()) {
-      ExpressionNode expr = (ExpressionNode) src.getUserData(MAP_WHERE_EXPRESSION);
-      if (expr == null) {
-        expr = fpe.parse(src.getCondition());
-        src.setUserData(MAP_WHERE_EXPRESSION, expr);
-      }
+      ExpressionNode expr = rp.condition != null ? rp.condition : fpe.parse(src.getCondition());
       List<Base> remove = new ArrayList<Base>();
       for (Base item : items) {
         Variables varsForSource = vars.copy();
@@ -1104,21 +1230,20 @@ public class StructureMapUtilities {
         }
         if (!fpe.evaluateToBoolean(varsForSource, null, null, item, expr)) {
             // matchbox pr https://github.com/hapifhir/org.hl7.fhir.core/issues/1777
-          log(indent + "  condition [" + src.getCondition() + "] for " + item.toString() + (src.hasVariable() ? " with variable "+ src.getVariable(): "" ) + " : false");
+          if (debug) {
+            log(indent + "  condition [" + src.getCondition() + "] for " + item.toString() + (src.hasVariable() ? " with variable "+ src.getVariable(): "" ) + " : false");
+          }
           remove.add(item);
-        } else
+        } else if (debug) {
             // matchbox pr https://github.com/hapifhir/org.hl7.fhir.core/issues/1777
           log(indent + "  condition [" + src.getCondition() + "] for " + item.toString() + (src.hasVariable() ? " with variable "+ src.getVariable(): "" ) + " : true");
+        }
       }
       items.removeAll(remove);
     }
 
     if (src.hasCheck()) {
-      ExpressionNode expr = (ExpressionNode) src.getUserData(MAP_WHERE_CHECK);
-      if (expr == null) {
-        expr = fpe.parse(src.getCheck());
-        src.setUserData(MAP_WHERE_CHECK, expr);
-      }
+      ExpressionNode expr = rp.check != null ? rp.check : fpe.parse(src.getCheck());
       for (Base item : items) {
         Variables varsForSource = vars.copy();
         if (src.hasVariable()) {
@@ -1130,11 +1255,7 @@ public class StructureMapUtilities {
     }
 
     if (src.hasLogMessage()) {
-      ExpressionNode expr = (ExpressionNode) src.getUserData(MAP_WHERE_LOG);
-      if (expr == null) {
-        expr = fpe.parse(src.getLogMessage());
-        src.setUserData(MAP_WHERE_LOG, expr);
-      }
+      ExpressionNode expr = rp.logMessage != null ? rp.logMessage : fpe.parse(src.getLogMessage());
       CommaSeparatedStringBuilder b = new CommaSeparatedStringBuilder();
       for (Base item : items) {
         Variables varsForSource = vars.copy();
@@ -1190,7 +1311,8 @@ public class StructureMapUtilities {
     return type.equals(item.fhirType());
   }
 
-  private void processTarget(String rulePath, TransformContext context, Variables vars, StructureMap map, StructureMapGroupComponent group, StructureMapGroupRuleTargetComponent tgt, String srcVar, boolean atRoot, Variables sharedVars) throws FHIRException {
+  private void processTarget(String rulePath, TransformContext context, StructureMapPlan plan, Variables vars, StructureMap map, StructureMapGroupComponent group, StructureMapPlan.TargetPlan tp, String srcVar, boolean atRoot, Variables sharedVars) throws FHIRException {
+    StructureMapGroupRuleTargetComponent tgt = tp.target;
     Base dest = null;
     if (tgt.hasContext()) {
       dest = vars.get(VariableMode.OUTPUT, tgt.getContext());
@@ -1200,7 +1322,7 @@ public class StructureMapUtilities {
     }
     Base v = null;
     if (tgt.hasTransform()) {
-      v = runTransform(rulePath, context, map, group, tgt, vars, dest, tgt.getElement(), srcVar, atRoot);
+      v = runTransform(rulePath, context, plan, map, group, tp, vars, dest, tgt.getElement(), srcVar, atRoot);
       if (v != null && dest != null) {
         try {
           v = dest.setProperty(tgt.getElement().hashCode(), tgt.getElement(), v); // reset v because some implementations may have to rewrite v when setting the value
@@ -1225,7 +1347,8 @@ public class StructureMapUtilities {
       vars.add(VariableMode.OUTPUT, tgt.getVariable(), v);
   }
   
-  private Base runTransform(String rulePath, TransformContext context, StructureMap map, StructureMapGroupComponent group, StructureMapGroupRuleTargetComponent tgt, Variables vars, Base dest, String element, String srcVar, boolean root) throws FHIRException {
+  private Base runTransform(String rulePath, TransformContext context, StructureMapPlan plan, StructureMap map, StructureMapGroupComponent group, StructureMapPlan.TargetPlan tp, Variables vars, Base dest, String element, String srcVar, boolean root) throws FHIRException {
+    StructureMapGroupRuleTargetComponent tgt = tp.target;
     try {
       switch (tgt.getTransform()) {
         case CREATE:
@@ -1236,7 +1359,7 @@ public class StructureMapUtilities {
             if (types.length == 1 && !"*".equals(types[0]) && !types[0].equals("Resource"))
               tn = types[0];
             else if (srcVar != null) {
-              tn = determineTypeFromSourceType(map, group, vars.get(VariableMode.INPUT, srcVar), types);
+              tn = determineTypeFromSourceType(plan, map, group, vars.get(VariableMode.INPUT, srcVar), types);
             } else
               throw new FHIRException("Cannot determine type implicitly because there is no single input variable");
           } else {
@@ -1262,10 +1385,10 @@ public class StructureMapUtilities {
         case COPY:
           return getParam(vars, tgt.getParameter().get(0));
         case EVALUATE:
-          ExpressionNode expr = (ExpressionNode) tgt.getUserData(MAP_EXPRESSION);
+          ExpressionNode expr = tp.expression != null ? tp.expression : (ExpressionNode) plan.getResolved(tgt, MAP_EXPRESSION);
           if (expr == null) {
             expr = fpe.parse(getParamStringNoNull(vars, tgt.getParameter().get(tgt.getParameter().size() - 1), tgt.toString()));
-            tgt.setUserData(MAP_EXPRESSION, expr);
+            plan.putResolved(tgt, MAP_EXPRESSION, expr);
           }
           List<Base> v = fpe.evaluate(vars, null, null, tgt.getParameter().size() == 2 ? getParam(vars, tgt.getParameter().get(0)) : new BooleanType(false), expr);
           if (v.size() == 0)
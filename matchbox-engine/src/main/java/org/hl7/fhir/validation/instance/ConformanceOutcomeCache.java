@@ -0,0 +1,199 @@
+package org.hl7.fhir.validation.instance;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+
+/**
+ * matchbox patch: bounded cache of the outcomes of validating a referenced or contained resource against a
+ * profile, shared across validation requests. The outcomes are keyed on a canonical hash of the content of the
+ * resource and the settings of the validator, the versioned profile url and the engine id.
+ * <p>
+ * Only self-contained resources are cached: resources with references or contained resources are validated in
+ * the context of the document they are in and are always validated again.
+ */
+public class ConformanceOutcomeCache {
+
+  private final int maxEntries;
+  private final Map<String, CachedOutcome> outcomes;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public ConformanceOutcomeCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.outcomes = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedOutcome> eldest) {
+        return size() > ConformanceOutcomeCache.this.maxEntries;
+      }
+    };
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public synchronized int size() {
+    return outcomes.size();
+  }
+
+  public synchronized void clear() {
+    outcomes.clear();
+  }
+
+  /**
+   * @return the key for the resource, profile and settings of the validator, or null if the outcome of the resource
+   * cannot be cached
+   */
+  String key(Element element, StructureDefinition profile, String engineId, String settings) {
+    StringBuilder b = new StringBuilder();
+    if (!canonical(element, b, true)) {
+      return null;
+    }
+    b.append(settings);
+    return sha256(b.toString()) + "|" + profile.getVersionedUrl() + "|" + engineId;
+  }
+
+  /**
+   * @return the outcome rebased on the path, line and column of the element, or null if not cached
+   */
+  List<ValidationMessage> get(String key, Element element, String path) {
+    CachedOutcome outcome;
+    synchronized (this) {
+      outcome = outcomes.get(key);
+    }
+    if (outcome == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    List<ValidationMessage> res = new ArrayList<>(outcome.messages.size());
+    for (ValidationMessage vm : outcome.messages) {
+      res.add(rebase(vm, outcome.path, path, element.line(), element.col()));
+    }
+    return res;
+  }
+
+  void put(String key, String path, List<ValidationMessage> messages) {
+    CachedOutcome outcome = new CachedOutcome(path, new ArrayList<>(messages));
+    synchronized (this) {
+      outcomes.put(key, outcome);
+    }
+  }
+
+  private static ValidationMessage rebase(ValidationMessage vm, String fromPath, String toPath, int line, int col) {
+    String location = vm.getLocation();
+    if (location != null && location.startsWith(fromPath)) {
+      location = toPath + location.substring(fromPath.length());
+    }
+    ValidationMessage res = new ValidationMessage(vm.getSource(), vm.getType(), line, col, location, vm.getMessage(), vm.getHtml(), vm.getLevel());
+    res.setMessageId(vm.getMessageId());
+    res.setRuleDate(vm.getRuleDate());
+    res.setSlicingHint(vm.isSlicingHint());
+    res.setSliceHtml(vm.getSliceHtml(), null);
+    res.setSignpost(vm.isSignpost());
+    res.setCriticalSignpost(vm.isCriticalSignpost());
+    res.setIgnorableError(vm.isIgnorableError());
+    res.setInvId(vm.getInvId());
+    res.setComment(vm.getComment());
+    res.setServer(vm.getServer());
+    res.setTxLink(vm.getTxLink());
+    res.setSliceInfo(vm.getSliceInfo());
+    return res;
+  }
+
+  /**
+   * canonical form of the content, independent of the format and the position of the resource. The root is
+   * named after where the resource is, e.g. contained, so its name is left out and it is not checked for
+   * references or contained resources.
+   */
+  private static boolean canonical(Element element, StringBuilder b, boolean root) {
+    String name = element.getName();
+    if (!root && ("reference".equals(name) || "contained".equals(name))) {
+      return false;
+    }
+    if (!root) {
+      b.append(name);
+    }
+    b.append('{');
+    if (element.fhirType() != null) {
+      b.append(element.fhirType()).append(':');
+    }
+    if (element.hasValue()) {
+      b.append(element.getValue().length()).append(':').append(element.getValue());
+    }
+    if (element.hasChildren()) {
+      for (Element child : element.getChildren()) {
+        if (!canonical(child, b, false)) {
+          return false;
+        }
+      }
+    }
+    b.append('}');
+    return true;
+  }
+
+  private static String sha256(String content) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+      StringBuilder b = new StringBuilder(hash.length * 2);
+      for (byte h : hash) {
+        b.append(Character.forDigit((h >> 4) & 0xF, 16)).append(Character.forDigit(h & 0xF, 16));
+      }
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new FHIRException(e);
+    }
+  }
+
+  private static class CachedOutcome {
+    private final String path;
+    private final List<ValidationMessage> messages;
+
+    private CachedOutcome(String path, List<ValidationMessage> messages) {
+      this.path = path;
+      this.messages = messages;
+    }
+  }
+}
@@ -40,6 +40,14 @@ import java.math.BigDecimal;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
 
@@ -244,6 +252,8 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
   private static final String EXECUTED_CONSTRAINT_LIST = "validator.executed.invariant.list";
   private static final String EXECUTION_ID = "validator.execution.id";
+  // matchbox patch: message id of the placeholders of Bundle entries validated in parallel
+  private static final String DEFERRED_BUNDLE_ENTRY = "matchbox.deferred.bundle.entry";
   private static final String HTML_FRAGMENT_REGEX = "[a-zA-Z]\\w*(((\\s+)(\\S)*)*)";
   private static final boolean STACK_TRACE = false;
   private static final boolean DEBUG_ELEMENT = false;
@@ -272,6 +282,84 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   private static final HashSet<String> HTML_BLOCK_LIST = new HashSet<>(Arrays.asList("div",  "blockquote", "table", "ol", "ul", "p"));
   private static final HashSet<String> RESOURCE_X_POINTS = new HashSet<>(Arrays.asList("Bundle.entry.resource", "Bundle.entry.response.outcome", "DomainResource.contained", "Parameters.parameter.resource", "Parameters.parameter.part.resource"));
   
+  /**
+   * Key of the per validation memo tables, the objects are compared by identity,
+   * the url (reference or profile) by value
+   */
+  private static class RunMemoKey {
+    private final Object first;
+    private final Object second;
+    private final Object third;
+    private final Object fourth;
+    private final String url;
+
+    private RunMemoKey(Object first, Object second, Object third, Object fourth, String url) {
+      this.first = first;
+      this.second = second;
+      this.third = third;
+      this.fourth = fourth;
+      this.url = url;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof RunMemoKey)) {
+        return false;
+      }
+      RunMemoKey other = (RunMemoKey) o;
+      return first == other.first && second == other.second && third == other.third && fourth == other.fourth && Objects.equals(url, other.url);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(first), System.identityHashCode(second), System.identityHashCode(third), System.identityHashCode(fourth), url);
+    }
+  }
+
+  private static class ConformsToOutcome {
+    private final boolean ok;
+    private final List<ValidationMessage> record;
+
+    private ConformsToOutcome(boolean ok, List<ValidationMessage> record) {
+      this.ok = ok;
+      this.record = record;
+    }
+  }
+
+  private static class DeferredBundleEntry {
+    private final ValidationContext valContext;
+    private final String path;
+    private final ElementDefinition child;
+    private final ElementDefinition context;
+    private final Element resource;
+    private final Element element;
+    private final NodeStack stack;
+    private final IdStatus idstatus;
+    private final StructureDefinition parentProfile;
+    private final ValidationMode mode;
+    // marks the position of the messages of the entry in the list the walk of the Bundle reported them to
+    private final List<ValidationMessage> errors;
+    private final ValidationMessage placeholder;
+    private boolean ok;
+
+    private DeferredBundleEntry(ValidationContext valContext, String path, ElementDefinition child, ElementDefinition context, Element resource,
+      Element element, NodeStack stack, IdStatus idstatus, StructureDefinition parentProfile, ValidationMode mode, List<ValidationMessage> errors) {
+      this.valContext = valContext;
+      this.path = path;
+      this.child = child;
+      this.context = context;
+      this.resource = resource;
+      this.element = element;
+      this.stack = stack;
+      this.idstatus = idstatus;
+      this.parentProfile = parentProfile;
+      this.mode = mode;
+      this.errors = errors;
+      this.placeholder = new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL, stack.getLiteralPath(), DEFERRED_BUNDLE_ENTRY, IssueSeverity.INFORMATION)
+        .setMessageId(DEFERRED_BUNDLE_ENTRY);
+    }
+  }
+
   private class ValidatorHostServices implements IEvaluationContext {
 
     @Override
@@ -432,6 +520,17 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       if (refContext != null && refContext.hasUserData("validator.bundle.resolution")) {
         return (Base) refContext.getUserData("validator.bundle.resolution");
       }
+      // matchbox patch: resolve() is memoized for the duration of one validate call
+      RunMemoKey key = new RunMemoKey(c.getAppContext(), c.getResource(), c.getRootResource(), refContext, url);
+      if (resolveMemo.containsKey(key)) {
+        return resolveMemo.get(key);
+      }
+      Base res = resolveReferenceUncached(engine, c, url, refContext);
+      resolveMemo.put(key, res);
+      return res;
+    }
+
+    private Base resolveReferenceUncached(FHIRPathEngine engine, ValidationContext c, String url, Base refContext) throws FHIRException {
 
       if (c.getAppContext() instanceof Element) {
         Element element = (Element) c.getAppContext();
@@ -473,6 +572,21 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     @Override
     public boolean conformsToProfile(FHIRPathEngine engine, Object appContext, Base item, String url) throws FHIRException {
       ValidationContext ctxt = (ValidationContext) appContext;
+      // matchbox patch: conformsTo() outcomes are memoized per (element instance, root and grouping resource, profile)
+      // for one validate call, a contained or entry resource is validated in the context of its container
+      RunMemoKey key = new RunMemoKey(item, ctxt.getRootResource(), ctxt.getGroupingResource(), null, url);
+      ConformsToOutcome outcome = conformsToMemo.get(key);
+      if (outcome == null) {
+        outcome = conformsToProfileUncached(ctxt, item, url);
+        conformsToMemo.put(key, outcome);
+      }
+      if (!outcome.ok && !outcome.record.isEmpty()) {
+        ctxt.sliceNotes(url, outcome.record);
+      }
+      return outcome.ok;
+    }
+
+    private ConformsToOutcome conformsToProfileUncached(ValidationContext ctxt, Base item, String url) throws FHIRException {
       StructureDefinition sd = context.fetchResource(StructureDefinition.class, url);
       if (sd == null) {
         throw new FHIRException(context.formatMessage(I18nConstants.UNABLE_TO_RESOLVE_, url));
@@ -508,10 +622,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
           record.add(v);
         }
       }
-      if (!ok && !record.isEmpty()) {
-        ctxt.sliceNotes(url, record);
-      }
-      return ok;
+      return new ConformsToOutcome(ok, record);
     }
 
     @Override
@@ -572,8 +683,25 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
   // time tracking
   private boolean noBindingMsgSuppressed;
-  private Map<String, Element> fetchCache = new HashMap<>();
-  private HashMap<Element, ResourceValidationTracker> resourceTracker = new HashMap<>();
+  // matchbox patch: the per run state is synchronized, it is shared with the workers validating Bundle entries in parallel
+  private Map<String, Element> fetchCache = Collections.synchronizedMap(new HashMap<>());
+  // matchbox patch: not shared, each Bundle entry validated in parallel gets its own tracker
+  private Map<Element, ResourceValidationTracker> resourceTracker = new HashMap<>();
+  // matchbox patch: per validate call memo tables for FHIRPath resolve() and conformsTo()
+  private Map<RunMemoKey, Base> resolveMemo = Collections.synchronizedMap(new HashMap<>());
+  private Map<RunMemoKey, ConformsToOutcome> conformsToMemo = Collections.synchronizedMap(new HashMap<>());
+  // matchbox patch: per validate call candidate slices of the elements looked up in a slice dispatch index
+  private Map<Element, Map<SliceMatcher.DispatchIndex, Set<ElementDefinition>>> sliceDispatchMemo = Collections.synchronizedMap(new IdentityHashMap<>());
+  // matchbox patch: opt-in parallel validation of the entries of the validated Bundle
+  private ExecutorService bundleEntryExecutor;
+  private Supplier<InstanceValidator> bundleEntryValidatorFactory;
+  private Element deferredEntriesOf;
+  private List<DeferredBundleEntry> deferredEntries;
+  // matchbox patch: optional outcomes of referenced and contained resources shared across validate calls
+  private ConformanceOutcomeCache conformanceOutcomeCache;
+  private String conformanceOutcomeCacheEngineId;
+  // matchbox patch: read JSON with the StreamingJsonParser
+  private boolean streamingJson;
   long time = 0;
   long start = 0;
   long lastlog = 0;
@@ -592,7 +720,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   private List<BundleValidationRule> bundleValidationRules = new ArrayList<>();
   private boolean validateValueSetCodesOnTxServer = true;
   private QuestionnaireMode questionnaireMode;
-  private Map<String, CanonicalResourceLookupResult> crLookups = new HashMap<>();
+  private Map<String, CanonicalResourceLookupResult> crLookups = new ConcurrentHashMap<>();
   private boolean logProgress;
   private CodingsObserver codingObserver;
   public List<ValidatedFragment> validatedContent;
@@ -758,7 +886,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
   @Override
   public org.hl7.fhir.r5.elementmodel.Element validate(Object appContext, List<ValidationMessage> errors, InputStream stream, FhirFormat format, List<StructureDefinition> profiles) throws FHIRException {
-    ParserBase parser = Manager.makeParser(context, format);
+    ParserBase parser = Manager.makeParser(context, format, streamingJson);
     List<StructureDefinition> logicals = new ArrayList<>();
     for (StructureDefinition sd : profiles) {
       if (sd.getKind() == StructureDefinitionKind.LOGICAL) {
@@ -963,6 +1091,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     fetchCache.clear();
     fetchCache.put(element.fhirType() + "/" + element.getIdBase(), element);
     resourceTracker.clear();
+    clearRunMemo();
     trackedMessages.clear();
     messagesToRemove.clear();
     executionId = UUID.randomUUID().toString();
@@ -971,6 +1100,12 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
     long t = System.nanoTime();
     NodeStack stack = new NodeStack(context, null, element, validationLanguage);
+    deferredEntriesOf = null;
+    deferredEntries = null;
+    if (bundleEntryExecutor != null && bundleEntryValidatorFactory != null && BUNDLE.equals(element.fhirType())) {
+      deferredEntriesOf = element;
+      deferredEntries = new ArrayList<>();
+    }
     if (profiles == null || profiles.isEmpty()) {
       validateResource(new ValidationContext(appContext, element), errors, element, element, null, resourceIdRule, stack.resetIds(), null, new ValidationMode(ValidationReason.Validation, ProfileSource.BaseDefinition), false, false);
     } else {
@@ -993,17 +1128,236 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         validateResource(new ValidationContext(appContext, element), errors, element, element, defn, resourceIdRule, stack.resetIds(), null, new ValidationMode(ValidationReason.Validation, ProfileSource.ConfigProfile), false, false);
       }
     }
+    deferredEntriesOf = null;
+    deferredEntries = null;
+    errors.removeIf(vm -> DEFERRED_BUNDLE_ENTRY.equals(vm.getMessageId()));
     if (hintAboutNonMustSupport && !profiles.isEmpty()) {
       checkElementUsage(errors, element, stack);
     }
     codingObserver.finish(errors, stack);
     errors.removeAll(messagesToRemove);
+    clearRunMemo();
     timeTracker.overall(t);
     if (DEBUG_ELEMENT) {
       element.printToOutput();
     }
   }
 
+  /**
+   * matchbox patch: validates the Bundle entries deferred by validateContains during one walk of the Bundle on the
+   * shared pool, with one worker per thread. The references between the entries have been indexed by the walk, the
+   * messages of each entry are merged in entry order at the position the walk reached the entry.
+   */
+  private boolean validateDeferredEntries(List<ValidationMessage> errors) {
+    List<DeferredBundleEntry> entries = deferredEntries;
+    deferredEntries = new ArrayList<>();
+    Map<Thread, InstanceValidator> workers = new ConcurrentHashMap<>();
+    boolean ok = true;
+    List<Future<List<ValidationMessage>>> results = new ArrayList<>();
+    try {
+      for (DeferredBundleEntry entry : entries) {
+        Callable<List<ValidationMessage>> task = () -> validateDeferredEntry(workers.computeIfAbsent(Thread.currentThread(), t -> newBundleEntryWorker()), entry);
+        try {
+          results.add(bundleEntryExecutor.submit(task));
+        } catch (RejectedExecutionException e) {
+          // the pool has been shut down since this validation started, the entry is validated by this thread
+          FutureTask<List<ValidationMessage>> inline = new FutureTask<>(task);
+          inline.run();
+          results.add(inline);
+        }
+      }
+      Set<String> seen = new HashSet<>();
+      for (ValidationMessage vm : errors) {
+        seen.add(messageKey(vm));
+      }
+      for (int i = 0; i < entries.size(); i++) {
+        DeferredBundleEntry entry = entries.get(i);
+        List<ValidationMessage> entryErrors = results.get(i).get();
+        ok = entry.ok && ok;
+        mergeDeferredEntryMessages(errors, entry, entryErrors, seen);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FHIRException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof FHIRException) {
+        throw (FHIRException) e.getCause();
+      }
+      throw new FHIRException(e.getCause());
+    } finally {
+      for (Future<List<ValidationMessage>> result : results) {
+        result.cancel(true);
+      }
+    }
+    return ok;
+  }
+
+  /**
+   * replaces the placeholder of the entry with its messages, skipping the messages the outcome already has as the
+   * sequential validation does for the outcomes of resources validated before
+   */
+  private void mergeDeferredEntryMessages(List<ValidationMessage> errors, DeferredBundleEntry entry, List<ValidationMessage> entryErrors, Set<String> seen) {
+    int index = indexOfIdentical(errors, entry.placeholder);
+    if (index >= 0) {
+      errors.remove(index);
+    } else {
+      // the walk reported the entry to a list that has been merged into the outcome in another way
+      int own = indexOfIdentical(entry.errors, entry.placeholder);
+      if (own >= 0) {
+        entry.errors.remove(own);
+      }
+      index = errors.size();
+    }
+    List<ValidationMessage> added = new ArrayList<>();
+    for (ValidationMessage vm : entryErrors) {
+      if (!seen.contains(messageKey(vm))) {
+        added.add(vm);
+      }
+    }
+    errors.addAll(index, added);
+    for (ValidationMessage vm : added) {
+      seen.add(messageKey(vm));
+    }
+  }
+
+  private static int indexOfIdentical(List<ValidationMessage> messages, ValidationMessage message) {
+    for (int i = 0; i < messages.size(); i++) {
+      if (messages.get(i) == message) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // ValidationMessage.equals compares the message and the location
+  private static String messageKey(ValidationMessage vm) {
+    return vm.getMessage() + "|" + vm.getLocation();
+  }
+
+  private InstanceValidator newBundleEntryWorker() {
+    InstanceValidator worker = bundleEntryValidatorFactory.get();
+    worker.shareRunState(this);
+    return worker;
+  }
+
+  /**
+   * validates the entry with a worker that may have validated other entries before: each entry gets its own resource
+   * tracker, so an entry never sees the partial outcome of a resource another worker is still validating
+   */
+  private List<ValidationMessage> validateDeferredEntry(InstanceValidator worker, DeferredBundleEntry entry) {
+    worker.resourceTracker = new HashMap<>();
+    boolean checkIPSCodes = worker.codingObserver.isCheckIPSCodes();
+    worker.codingObserver = new CodingsObserver(worker.context, worker.xverManager, worker.debug);
+    worker.codingObserver.setCheckIPSCodes(checkIPSCodes);
+    worker.messagesToRemove.clear();
+    worker.trackedMessages.clear();
+    List<ValidationMessage> entryErrors = new ArrayList<>();
+    PercentageTracker pct = new PercentageTracker(entry.element.countDescendents()+1, entry.element.fhirType(), entry.parentProfile.getVersionedUrl(), false);
+    entry.ok = worker.validateContains(entry.valContext, entryErrors, entry.path, entry.child, entry.context, entry.resource, entry.element, entry.stack, entry.idstatus, entry.parentProfile, pct, entry.mode);
+    worker.codingObserver.finish(entryErrors, entry.stack);
+    synchronized (messagesToRemove) {
+      messagesToRemove.addAll(worker.messagesToRemove);
+    }
+    return entryErrors;
+  }
+
+  private void shareRunState(InstanceValidator parent) {
+    this.fetchCache = parent.fetchCache;
+    this.crLookups = parent.crLookups;
+    this.resolveMemo = parent.resolveMemo;
+    this.conformsToMemo = parent.conformsToMemo;
+    this.sliceDispatchMemo = parent.sliceDispatchMemo;
+    this.executionId = parent.executionId;
+    this.conformanceOutcomeCache = parent.conformanceOutcomeCache;
+    this.conformanceOutcomeCacheEngineId = parent.conformanceOutcomeCacheEngineId;
+    this.baseOnly = parent.baseOnly;
+  }
+
+  private boolean isDeferredEntry(Element element) {
+    if (deferredEntries == null || element.getSpecial() != SpecialElement.BUNDLE_ENTRY) {
+      return false;
+    }
+    Element entry = element.getParentForValidator();
+    return entry != null && entry.getParentForValidator() == deferredEntriesOf;
+  }
+
+  /**
+   * matchbox patch: validates the entries of the validated Bundle in parallel on the executor, each entry is
+   * validated by its own worker (provided by the factory) which shares the per run state of this validator. Use a
+   * null executor to validate sequentially (default).
+   */
+  public void setParallelBundleEntries(ExecutorService executor, Supplier<InstanceValidator> factory) {
+    this.bundleEntryExecutor = executor;
+    this.bundleEntryValidatorFactory = factory;
+  }
+
+  public ExecutorService getBundleEntryExecutor() {
+    return bundleEntryExecutor;
+  }
+
+  /**
+   * matchbox patch: reads JSON input with the StreamingJsonParser, which converts the entries of a Bundle one by
+   * one instead of parsing the whole input into a JSON tree first
+   */
+  public void setStreamingJson(boolean streamingJson) {
+    this.streamingJson = streamingJson;
+  }
+
+  public boolean isStreamingJson() {
+    return streamingJson;
+  }
+
+  /**
+   * matchbox patch: reuses the outcomes of validating identical referenced or contained resources against the same
+   * profile across validate calls, engineId identifies the definitions the outcomes are valid for
+   */
+  public void setConformanceOutcomeCache(ConformanceOutcomeCache cache, String engineId) {
+    this.conformanceOutcomeCache = cache;
+    this.conformanceOutcomeCacheEngineId = engineId;
+  }
+
+  public ConformanceOutcomeCache getConformanceOutcomeCache() {
+    return conformanceOutcomeCache;
+  }
+
+  /**
+   * matchbox patch: the settings of the validator that change the outcome of validating a resource, part of the
+   * key of the cached outcomes
+   */
+  private String conformanceOutcomeSettings(NodeStack stack) {
+    CommaSeparatedStringBuilder b = new CommaSeparatedStringBuilder("|");
+    b.append(getValidationOptionsLanguage(stack));
+    b.append(String.valueOf(level));
+    b.append(String.valueOf(bpWarnings));
+    b.append(String.valueOf(checkDisplay));
+    b.append(String.valueOf(resourceIdRule));
+    b.append(String.valueOf(htmlInMarkdownCheck));
+    b.append(String.valueOf(questionnaireMode));
+    b.append(jurisdiction == null ? "" : jurisdiction.getSystem() + "#" + jurisdiction.getCode());
+    b.append(policyAdvisor == null ? "" : policyAdvisor.getClass().getName() + ":" + policyAdvisor.getReferencePolicy());
+    b.append(anyExtensionsAllowed + ":" + String.join(" ", extensionDomains));
+    StringBuilder flags = new StringBuilder();
+    for (boolean flag : new boolean[] { allowExamples, forPublication, warnOnDraftOrExperimental, errorForUnknownProfiles,
+        noInvariantChecks, wantInvariantInMessage, noTerminologyChecks, hintAboutNonMustSupport, showMessagesFromReferences,
+        baseOnly, noCheckAggregation, wantCheckSnapshotUnchanged, noUnicodeBiDiControlChars, allowComments,
+        allowDoubleQuotesInFHIRPath, allowXsiLocation, suppressLoincSnomedMessages, noBindingMsgSuppressed,
+        noExtensibleWarnings, assumeValidRestReferences, securityChecks, validateValueSetCodesOnTxServer,
+        unknownCodeSystemsCauseErrors, noExperimentalContent, isDisplayWarnings(), example }) {
+      flags.append(flag ? '1' : '0');
+    }
+    b.append(flags.toString());
+    return b.toString();
+  }
+
+  /**
+   * matchbox patch: the memoized resolve(), conformsTo() and slice dispatch outcomes are only valid for one validate call
+   */
+  private void clearRunMemo() {
+    resolveMemo.clear();
+    conformsToMemo.clear();
+    sliceDispatchMemo.clear();
+  }
+
 
   private void checkElementUsage(List<ValidationMessage> errors, Element element, NodeStack stack) {
     if (element.getPath()==null
@@ -5103,11 +5457,13 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (!slicer.getSlicing().hasDiscriminator())
       return false; // cannot validate in this case
 
-    ExpressionNode n = (ExpressionNode) ed.getUserData("slice.expression.cache");
+    ExpressionNode n = (ExpressionNode) getDefinitionCache(ed, "slice.expression.cache");
     if (n == null) {
       long t = System.nanoTime();
       // GG: this approach is flawed because it treats discriminators individually rather than collectively
       StringBuilder expression = new StringBuilder("true");
+      // matchbox patch: the discriminators are compiled into a matcher alongside the expression
+      SliceMatcher matcher = new SliceMatcher(context);
       boolean anyFound = false;
       Set<String> discriminators = new HashSet<>();
       for (ElementDefinitionSlicingDiscriminatorComponent s : slicer.getSlicing().getDiscriminator()) {
@@ -5120,6 +5476,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
           found = true;
           if ("0".equals(criteriaElement.getMax())) {
             expression.append(" and " + discriminator + ".empty()");            
+            matcher.addEmpty(discriminator);
           } else if (s.getType() == DiscriminatorType.TYPE) {
             String type = null;
             if (!criteriaElement.getPath().contains("[") && discriminator.contains("[")) {
@@ -5145,6 +5502,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
             } else {
               expression.append(" and " + discriminator + " is " + type);
             }
+            matcher.addType(discriminator, type);
           } else if (s.getType() == DiscriminatorType.PROFILE) {
             if (criteriaElement.getType().size() == 0) {
               throw new DefinitionException(context.formatMessage(I18nConstants.PROFILE_BASED_DISCRIMINATORS_MUST_HAVE_A_TYPE__IN_PROFILE_, criteriaElement.getId(), profile.getVersionedUrl()));
@@ -5157,19 +5515,23 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
               // we don't have to find something 
               // throw new DefinitionException(context.formatMessage(I18nConstants.PROFILE_BASED_DISCRIMINATORS_MUST_HAVE_A_TYPE_WITH_A_PROFILE__IN_PROFILE_, criteriaElement.getId(), profile.getVersionedUrl()));
             } else if (list.size() > 1) {
+              matcher.addProfile();
               CommaSeparatedStringBuilder b = new CommaSeparatedStringBuilder(" or ");
               for (CanonicalType c : list) {
                 b.append(discriminator + ".conformsTo('" + c.getValue() + "')");
               }
               expression.append(" and (" + b + ")");
             } else {
+              matcher.addProfile();
               expression.append(" and " + discriminator + ".conformsTo('" + list.get(0).getValue() + "')");
             }
           } else if (s.getType() == DiscriminatorType.EXISTS) {
             if (criteriaElement.hasMin() && criteriaElement.getMin() >= 1) {
               expression.append(" and (" + discriminator + ".exists())");
+              matcher.addExists(discriminator, true);
             } else if (criteriaElement.hasMax() && criteriaElement.getMax().equals("0")) {
               expression.append(" and (" + discriminator + ".exists().not())");
+              matcher.addExists(discriminator, false);
             } else {
               throw new FHIRException(context.formatMessage(I18nConstants.DISCRIMINATOR__IS_BASED_ON_ELEMENT_EXISTENCE_BUT_SLICE__NEITHER_SETS_MIN1_OR_MAX0, discriminator, ed.getId()));
             }
@@ -5194,8 +5556,10 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
             }                        
           } else if (criteriaElement.hasFixed()) {
             buildFixedExpression(ed, expression, discriminator, criteriaElement);
+            compileValueMatcher(matcher, discriminator, criteriaElement.getFixed());
           } else if (criteriaElement.hasPattern()) {
             buildPattternExpression(ed, expression, discriminator, criteriaElement);
+            compileValueMatcher(matcher, discriminator, criteriaElement.getPattern());
           } else if (criteriaElement.hasBinding() && criteriaElement.getBinding().hasStrength() && criteriaElement.getBinding().getStrength().equals(BindingStrength.REQUIRED) && criteriaElement.getBinding().hasValueSet()) {
             expression.append(" and (" + discriminator + " memberOf '" + criteriaElement.getBinding().getValueSet() + "')");
           } else {
@@ -5218,12 +5582,20 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         throw new FHIRException(context.formatMessage(I18nConstants.PROBLEM_PROCESSING_EXPRESSION__IN_PROFILE__PATH__, expression, profile.getVersionedUrl(), path, e.getMessage()));
       }
       timeTracker.fpe(t);
-      ed.setUserData("slice.expression.cache", n);
+      setDefinitionCache(ed, SliceMatcher.SLICE_MATCHER_CACHE, matcher);
+      setDefinitionCache(ed, "slice.expression.cache", n);
     } else {
     }
 
+    // matchbox patch: elements which certainly do not match are rejected without evaluating the expression, unless
+    // the slice has profile discriminators whose conformsTo() notes are reported with the mismatch
+    SliceMatcher matcher = (SliceMatcher) getDefinitionCache(ed, SliceMatcher.SLICE_MATCHER_CACHE);
+    boolean pass = (matcher != null && matcher.hasProfiles())
+        || (dispatchMayMatch(slicer, slicerSlices, ed, element) && (matcher == null || matcher.mayMatch(element)));
     ValidationContext shc = valContext.forSlicing();
-    boolean pass = evaluateSlicingExpression(shc, element, path, profile, n);
+    if (pass) {
+      pass = evaluateSlicingExpression(shc, element, path, profile, n);
+    }
     if (!pass) {
       slicingHint(sliceInfo, NO_RULE_DATE, IssueType.STRUCTURE, element.line(), element.col(), path, false, isProfile(slicer), (context.formatMessage(I18nConstants.DOES_NOT_MATCH_SLICE_, ed.getSliceName(), n.toString().substring(8).trim())), "discriminator = " + Utilities.escapeXml(n.toString()), null);
       for (String url : shc.getSliceRecords().keySet()) {
@@ -5238,6 +5610,95 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     return pass;
   }
 
+  /**
+   * matchbox patch: once all slices of a slicer have been compiled, slices discriminated by the value of the
+   * same path are dispatched by a hash lookup of the element's value
+   */
+  private boolean dispatchMayMatch(ElementDefinition slicer, List<ElementDefinition> slicerSlices, ElementDefinition ed, Element element) {
+    Object index = getDefinitionCache(slicer, SliceMatcher.SLICE_DISPATCH_CACHE);
+    if (index == null) {
+      if (slicerSlices == null) {
+        return true;
+      }
+      for (ElementDefinition ts : slicerSlices) {
+        if (getDefinitionCache(ts, SliceMatcher.SLICE_MATCHER_CACHE) == null) {
+          return true;
+        }
+      }
+      SliceMatcher.DispatchIndex built = SliceMatcher.DispatchIndex.build(slicerSlices);
+      index = built != null ? built : Boolean.FALSE;
+      setDefinitionCache(slicer, SliceMatcher.SLICE_DISPATCH_CACHE, index);
+    }
+    return !(index instanceof SliceMatcher.DispatchIndex) || ((SliceMatcher.DispatchIndex) index).mayMatch(element, ed, sliceDispatchMemo);
+  }
+
+  /**
+   * matchbox patch: the compiled slices are cached on the definitions, which are shared by the workers validating
+   * Bundle entries in parallel and by concurrent validate calls
+   */
+  private static Object getDefinitionCache(ElementDefinition ed, String name) {
+    synchronized (ed) {
+      return ed.getUserData(name);
+    }
+  }
+
+  private static void setDefinitionCache(ElementDefinition ed, String name, Object value) {
+    synchronized (ed) {
+      ed.setUserData(name, value);
+    }
+  }
+
+  /**
+   * matchbox patch: mirrors buildFixedExpression and buildPattternExpression for the value types which
+   * can be compared directly
+   */
+  private void compileValueMatcher(SliceMatcher matcher, String discriminator, DataType value) {
+    if (value.hasExtension()) {
+      return;
+    }
+    if (value instanceof CodeableConcept) {
+      for (Coding c : ((CodeableConcept) value).getCoding()) {
+        matcher.addProperties(discriminator + ".coding", codingProperties(c));
+      }
+    } else if (value instanceof Coding) {
+      matcher.addProperties(discriminator, codingProperties((Coding) value));
+    } else if (value instanceof Identifier) {
+      Identifier ii = (Identifier) value;
+      if (!ii.hasType()) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        if (ii.hasSystem()) {
+          properties.put("system", ii.getSystem());
+        }
+        if (ii.hasValue()) {
+          properties.put("value", ii.getValue());
+        }
+        if (ii.hasUse()) {
+          properties.put("use", ii.getUse().toCode());
+        }
+        matcher.addProperties(discriminator, properties);
+      }
+    } else if (value instanceof StringType || value instanceof UriType) {
+      matcher.addValue(discriminator, value.primitiveValue());
+    }
+  }
+
+  private Map<String, String> codingProperties(Coding c) {
+    Map<String, String> properties = new LinkedHashMap<>();
+    if (c.hasCode()) {
+      properties.put("code", c.getCode());
+    }
+    if (c.hasSystem()) {
+      properties.put("system", c.getSystem());
+    }
+    if (c.hasVersion()) {
+      properties.put("version", c.getVersion());
+    }
+    if (c.hasDisplay()) {
+      properties.put("display", c.getDisplay());
+    }
+    return properties;
+  }
+
   private String makeTypeForFHIRPath(String type) {
     if (Utilities.isAbsoluteUrl(type)) {
       if (type.startsWith("http://hl7.org/fhir/StructureDefinition/")) {
@@ -5855,10 +6316,32 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       return ok;
     }
     if (rule(errors, NO_RULE_DATE, IssueType.STRUCTURE, element.line(), element.col(), stack.getLiteralPath(), defn.hasSnapshot(), I18nConstants.VALIDATION_VAL_PROFILE_NOSNAPSHOT, defn.getVersionedUrl())) {
-      List<ValidationMessage> localErrors = new ArrayList<ValidationMessage>();
       resTracker.startValidating(defn);
       trackUsage(defn, valContext, element);
-      ok = validateElement(valContext, localErrors, defn, defn.getSnapshot().getElement().get(0), null, null, resource, element, element.getName(), stack, false, true, null, pct, mode) && ok;
+      List<ValidationMessage> localErrors = null;
+      String outcomeKey = null;
+      // matchbox patch: the codings seen are checked at the end of the validation, a cached outcome would skip them
+      if (conformanceOutcomeCache != null && !codingObserver.isCheckIPSCodes() && (element != valContext.getRootResource() || valContext.getGroupingResource() != null)) {
+        outcomeKey = conformanceOutcomeCache.key(element, defn, conformanceOutcomeCacheEngineId, conformanceOutcomeSettings(stack));
+        localErrors = outcomeKey == null ? null : conformanceOutcomeCache.get(outcomeKey, element, stack.getLiteralPath());
+      }
+      if (localErrors != null) {
+        for (ValidationMessage vm : localErrors) {
+          ok = vm.getLevel() != IssueSeverity.ERROR && vm.getLevel() != IssueSeverity.FATAL && ok;
+        }
+      } else {
+        localErrors = new ArrayList<ValidationMessage>();
+        int tracked = trackedMessages.size();
+        ok = validateElement(valContext, localErrors, defn, defn.getSnapshot().getElement().get(0), null, null, resource, element, element.getName(), stack, false, true, null, pct, mode) && ok;
+        if (element == deferredEntriesOf) {
+          // matchbox patch: the entries deferred by this walk of the Bundle are part of its outcome
+          ok = validateDeferredEntries(localErrors) && ok;
+        }
+        // messages tracked for later removal depend on what is validated after the resource, they are not replayed
+        if (outcomeKey != null && tracked == trackedMessages.size() && Collections.disjoint(localErrors, messagesToRemove)) {
+          conformanceOutcomeCache.put(outcomeKey, stack.getLiteralPath(), localErrors);
+        }
+      }
       resTracker.storeOutcomes(defn, localErrors);
       addMessagesReplaceExistingIfMoreSevere(errors, localErrors);
     } else {
@@ -6042,12 +6525,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   private ResourceValidationTracker getResourceTracker(Element element) {
-    ResourceValidationTracker res = resourceTracker.get(element);
-    if (res == null) {
-      res = new ResourceValidationTracker();
-      resourceTracker.put(element, res);
-    }
-    return res;
+    return resourceTracker.computeIfAbsent(element, k -> new ResourceValidationTracker());
   }
 
   private void checkLang(Element resource, NodeStack stack) {
@@ -6132,6 +6610,14 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
                                 Element element, NodeStack stack, IdStatus idstatus, StructureDefinition parentProfile, PercentageTracker pct, ValidationMode mode) throws FHIRException {
     boolean ok = true;
 
+    if (isDeferredEntry(element)) {
+      // matchbox patch: validated in parallel once the Bundle itself has been walked, the messages take the place of the placeholder
+      DeferredBundleEntry entry = new DeferredBundleEntry(valContext, path, child, context, resource, element, stack, idstatus, parentProfile, mode, errors);
+      errors.add(entry.placeholder);
+      deferredEntries.add(entry);
+      return ok;
+    }
+
     if (element.isNull()) {
       if (rule(errors, NO_RULE_DATE, IssueType.INVALID, element.line(), element.col(), stack.getLiteralPath(), ToolingExtensions.readBooleanExtension(child, ToolingExtensions.EXT_JSON_NULLABLE),
           I18nConstants.ELEMENT_CANNOT_BE_NULL)) {
@@ -6352,7 +6838,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
     
     // get the list of direct defined children, including slices
-    SourcedChildDefinitions childDefinitions = profileUtilities.getChildMap(profile, definition);
+    SourcedChildDefinitions childDefinitions = SnapshotChildIndex.getChildMap(profileUtilities, profile, definition);
     if (childDefinitions.getList().isEmpty()) {
       if (actualType == null) {
         vi.setValid(false);
@@ -6441,7 +6927,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       throw new DefinitionException(context.formatMessage(I18nConstants.UNABLE_TO_RESOLVE_ACTUAL_TYPE_, actualType));
     trackUsage(dt, valContext, element);
 
-    childDefinitions = profileUtilities.getChildMap(dt, dt.getSnapshot().getElement().get(0));
+    childDefinitions = SnapshotChildIndex.getChildMap(profileUtilities, dt, dt.getSnapshot().getElement().get(0));
     return childDefinitions;
   }
 
@@ -6982,7 +7468,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (ed.hasFixedCoding() && "http://loinc.org".equals(ed.getFixedCoding().getSystem())) {
       return ed.getFixedCoding().getCode();      
     }
-    SourcedChildDefinitions children = profileUtilities.getChildMap(profile, ed);
+    SourcedChildDefinitions children = SnapshotChildIndex.getChildMap(profileUtilities, profile, ed);
     if (children != null) {
       for (ElementDefinition t : children.getList()) {
         if (t.getPath().endsWith(".code") && t.hasFixed()) {
@@ -7011,6 +7497,18 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     List<String> problematicPaths = new ArrayList<String>();
     String slicingPath = null;
     int sliceOffset = 0;
+    // matchbox patch: the children are looked up by name and the slices by path instead of scanning both lists for every definition
+    Map<String, List<ElementInfo>> childrenByName = new HashMap<>();
+    for (ElementInfo ei : children) {
+      if (ei.sliceInfo == null && !childDefinitions.getList().isEmpty()) {
+        ei.sliceInfo = new ArrayList<>();
+      }
+      childrenByName.computeIfAbsent(ei.getName(), k -> new ArrayList<>()).add(ei);
+    }
+    Map<String, List<ElementDefinition>> definitionsByPath = new HashMap<>();
+    for (ElementDefinition ed : childDefinitions.getList()) {
+      definitionsByPath.computeIfAbsent(ed.getPath(), k -> new ArrayList<>()).add(ed);
+    }
     for (int i = 0; i < childDefinitions.getList().size(); i++) {
       ElementDefinition ed = childDefinitions.getList().get(i);
       boolean childUnsupportedSlicing = false;
@@ -7034,21 +7532,17 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         slicer = ed;
         process = false;
         sliceOffset = i;
-        slicerSlices = new ArrayList<>();
-        for (int j = i+1; j < childDefinitions.getList().size(); j++) {
-          if (ed.getPath().equals(childDefinitions.getList().get(j).getPath())) {
-            slicerSlices.add(childDefinitions.getList().get(j));
-          }
-        }
+        List<ElementDefinition> samePath = definitionsByPath.get(ed.getPath());
+        slicerSlices = new ArrayList<>(samePath.subList(indexOfIdentical(samePath, ed) + 1, samePath.size()));
       } else if (slicer != null && !slicer.getPath().equals(ed.getPath())) {
         slicer = null;
         slicerSlices = null;
       }
 
-      for (ElementInfo ei : children) {
-        if (ei.sliceInfo == null) {
-          ei.sliceInfo = new ArrayList<>();
-        }
+      // children with another name than the definition are never matched by matchSlice
+      String tail = tail(ed.getPath());
+      List<ElementInfo> candidates = tail.endsWith("[x]") ? children : childrenByName.getOrDefault(tail, Collections.emptyList());
+      for (ElementInfo ei : candidates) {
         unsupportedSlicing = matchSlice(valContext, errors, ei.sliceInfo, profile, stack, slicer, slicerSlices, unsupportedSlicing, problematicPaths, sliceOffset, i, ed, childUnsupportedSlicing, ei, bh);
       }
     }
@@ -7113,6 +7607,15 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
 
+  private static int indexOfIdentical(List<ElementDefinition> list, ElementDefinition ed) {
+    for (int i = 0; i < list.size(); i++) {
+      if (list.get(i) == ed) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   private boolean ignoreSlicingHint(ElementDefinition definition, StructureDefinition profile) {
     if (profile.getUrl().startsWith("http://hl7.org/fhir/StructureDefinition/") && "Observation.code.coding".equals(definition.getPath())) {
       return true;
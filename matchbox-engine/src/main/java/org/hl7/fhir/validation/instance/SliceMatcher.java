@@ -0,0 +1,419 @@
+package org.hl7.fhir.validation.instance;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+/**
+ * matchbox patch: precompiled form of the discriminators of a single slice, used by
+ * InstanceValidator.sliceMatches to reject elements without evaluating the generated FHIRPath
+ * expression.
+ * <p>
+ * The matcher is conservative: {@link #mayMatch(Element)} only returns false if the element
+ * certainly does not match the slice, otherwise the FHIRPath expression is evaluated as before.
+ * Discriminators which cannot be compiled (profile, binding, complex paths) are left to FHIRPath.
+ */
+class SliceMatcher {
+
+  public static final String SLICE_MATCHER_CACHE = "slice.matcher.cache";
+  public static final String SLICE_DISPATCH_CACHE = "slice.dispatch.cache";
+
+  private static final Pattern SIMPLE_SEGMENT = Pattern.compile("[A-Za-z][A-Za-z0-9_]*");
+
+  private final IWorkerContext context;
+  private final List<Condition> conditions = new ArrayList<>();
+  private boolean profiles;
+
+  SliceMatcher(IWorkerContext context) {
+    this.context = context;
+  }
+
+  /**
+   * @return false if the element certainly does not match the slice
+   */
+  public boolean mayMatch(Element element) {
+    for (Condition c : conditions) {
+      if (!c.mayMatch(element)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean hasConditions() {
+    return !conditions.isEmpty();
+  }
+
+  /**
+   * the slice has a profile discriminator, conformsTo() records why an element does not match the profile
+   */
+  public void addProfile() {
+    profiles = true;
+  }
+
+  /**
+   * @return true if the expression of the slice has to be evaluated for the notes of its profile discriminators
+   */
+  public boolean hasProfiles() {
+    return profiles;
+  }
+
+  /**
+   * discriminator.empty()
+   */
+  public void addEmpty(String discriminator) {
+    List<String> path = parsePath(discriminator);
+    if (path != null) {
+      conditions.add(new EmptyCondition(path, false));
+    }
+  }
+
+  /**
+   * discriminator.exists() (exists = true) or discriminator.exists().not() (exists = false)
+   */
+  public void addExists(String discriminator, boolean exists) {
+    List<String> path = parsePath(discriminator);
+    if (path != null) {
+      conditions.add(new EmptyCondition(path, exists));
+    }
+  }
+
+  /**
+   * discriminator is type
+   */
+  public void addType(String discriminator, String type) {
+    List<String> path = discriminator.isEmpty() ? Collections.emptyList() : parsePath(discriminator);
+    if (path != null && type != null && SIMPLE_SEGMENT.matcher(type).matches()) {
+      conditions.add(new TypeCondition(path, type));
+    }
+  }
+
+  /**
+   * 'value' in discriminator, or discriminator.where(value = 'value').exists()
+   */
+  public void addValue(String discriminator, String value) {
+    Map<String, String> properties = new LinkedHashMap<>();
+    properties.put("", value);
+    addProperties(discriminator, properties);
+  }
+
+  /**
+   * discriminator.where(p1 = 'v1' and p2 = 'v2' ...).exists()
+   */
+  public void addProperties(String discriminator, Map<String, String> properties) {
+    List<String> path = parsePath(discriminator);
+    if (path == null || properties.isEmpty()) {
+      return;
+    }
+    for (Map.Entry<String, String> p : properties.entrySet()) {
+      if (p.getValue() == null || !isPlainLiteral(p.getValue()) || (!p.getKey().isEmpty() && !SIMPLE_SEGMENT.matcher(p.getKey()).matches())) {
+        return;
+      }
+    }
+    conditions.add(new ValueCondition(path, properties));
+  }
+
+  /**
+   * values which are written into a FHIRPath string literal without escaping are only safe to compare
+   * directly if they do not contain characters which FHIRPath would interpret
+   */
+  private static boolean isPlainLiteral(String value) {
+    return value.indexOf('\'') < 0 && value.indexOf('\\') < 0;
+  }
+
+  private static List<String> parsePath(String discriminator) {
+    if (discriminator == null) {
+      return null;
+    }
+    if ("$this".equals(discriminator)) {
+      return Collections.emptyList();
+    }
+    List<String> path = Arrays.asList(discriminator.split("\\."));
+    for (String segment : path) {
+      if (!SIMPLE_SEGMENT.matcher(segment).matches()) {
+        return null;
+      }
+    }
+    return path;
+  }
+
+  /**
+   * walks the path from the element, returns null if the path cannot be followed reliably without FHIRPath
+   */
+  private static List<Element> walk(Element element, List<String> path) {
+    List<Element> focus = Collections.singletonList(element);
+    for (String segment : path) {
+      List<Element> next = new ArrayList<>();
+      for (Element e : focus) {
+        if ("value".equals(segment) && e.isPrimitive()) {
+          return null;
+        }
+        if (e.hasChildren()) {
+          for (Element child : e.getChildren()) {
+            if (nameMatches(child, segment)) {
+              next.add(child);
+            }
+          }
+        }
+      }
+      focus = next;
+    }
+    return focus;
+  }
+
+  private static boolean nameMatches(Element child, String segment) {
+    String name = child.getName();
+    if (name == null) {
+      return false;
+    }
+    if (name.equals(segment)) {
+      return true;
+    }
+    return name.length() > segment.length() && name.startsWith(segment) && Character.isUpperCase(name.charAt(segment.length()))
+        && child.getProperty() != null && child.getProperty().getDefinition() != null && child.getProperty().getDefinition().isChoice();
+  }
+
+  private static boolean hasProperties(Element node, Map<String, String> properties) {
+    for (Map.Entry<String, String> p : properties.entrySet()) {
+      if (p.getKey().isEmpty()) {
+        if (!p.getValue().equals(node.primitiveValue())) {
+          return false;
+        }
+      } else {
+        boolean found = false;
+        if (node.hasChildren()) {
+          for (Element child : node.getChildren()) {
+            if (nameMatches(child, p.getKey()) && p.getValue().equals(child.primitiveValue())) {
+              found = true;
+              break;
+            }
+          }
+        }
+        if (!found) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private interface Condition {
+    boolean mayMatch(Element element);
+  }
+
+  private static class EmptyCondition implements Condition {
+    private final List<String> path;
+    private final boolean exists;
+
+    private EmptyCondition(List<String> path, boolean exists) {
+      this.path = path;
+      this.exists = exists;
+    }
+
+    @Override
+    public boolean mayMatch(Element element) {
+      List<Element> nodes = walk(element, path);
+      if (nodes == null) {
+        return true;
+      }
+      return exists ? !nodes.isEmpty() : nodes.isEmpty();
+    }
+  }
+
+  private static class ValueCondition implements Condition {
+    private final List<String> path;
+    private final Map<String, String> properties;
+
+    private ValueCondition(List<String> path, Map<String, String> properties) {
+      this.path = path;
+      this.properties = properties;
+    }
+
+    @Override
+    public boolean mayMatch(Element element) {
+      List<Element> nodes = walk(element, path);
+      if (nodes == null) {
+        return true;
+      }
+      for (Element node : nodes) {
+        if (hasProperties(node, properties)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private class TypeCondition implements Condition {
+    private final List<String> path;
+    private final String type;
+
+    private TypeCondition(List<String> path, String type) {
+      this.path = path;
+      this.type = type;
+    }
+
+    @Override
+    public boolean mayMatch(Element element) {
+      List<Element> nodes = walk(element, path);
+      if (nodes == null || nodes.isEmpty()) {
+        return true;
+      }
+      for (Element node : nodes) {
+        if (isType(node.fhirType())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean isType(String fhirType) {
+      if (fhirType == null || type.equalsIgnoreCase(fhirType)) {
+        return true;
+      }
+      StructureDefinition sd = context.fetchTypeDefinition(fhirType);
+      if (sd == null) {
+        return true;
+      }
+      Set<StructureDefinition> seen = new HashSet<>();
+      while (sd != null && seen.add(sd)) {
+        if (type.equalsIgnoreCase(sd.getType()) || type.equalsIgnoreCase(sd.getName())) {
+          return true;
+        }
+        sd = sd.hasBaseDefinition() ? context.fetchResource(StructureDefinition.class, sd.getBaseDefinition()) : null;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Hash dispatch of the slices of one slicer: if the slices are discriminated by the value of the same
+   * path, the candidate slices of an element are looked up by the values found at that path instead
+   * of testing every slice.
+   */
+  static class DispatchIndex {
+    private final List<String> path;
+    private final String property;
+    private final Map<String, Set<ElementDefinition>> slicesByValue = new HashMap<>();
+    private final Set<ElementDefinition> indexed = new HashSet<>();
+
+    private DispatchIndex(List<String> path, String property) {
+      this.path = path;
+      this.property = property;
+    }
+
+    /**
+     * @return an index over the slices, or null if the slices do not share a value discriminator
+     */
+    static DispatchIndex build(List<ElementDefinition> slices) {
+      DispatchIndex index = null;
+      for (ElementDefinition slice : slices) {
+        SliceMatcher matcher = (SliceMatcher) slice.getUserData(SLICE_MATCHER_CACHE);
+        if (matcher == null) {
+          continue;
+        }
+        for (Condition c : matcher.conditions) {
+          if (c instanceof ValueCondition) {
+            ValueCondition vc = (ValueCondition) c;
+            if (index == null) {
+              index = new DispatchIndex(vc.path, vc.properties.keySet().iterator().next());
+            }
+            if (index.path.equals(vc.path) && vc.properties.containsKey(index.property)) {
+              index.slicesByValue.computeIfAbsent(vc.properties.get(index.property), k -> new HashSet<>()).add(slice);
+              index.indexed.add(slice);
+              break;
+            }
+          }
+        }
+      }
+      return index != null && index.indexed.size() > 1 ? index : null;
+    }
+
+    /**
+     * @return false if the slice is indexed and the element certainly does not carry its discriminating value
+     */
+    public boolean mayMatch(Element element, ElementDefinition slice, Map<Element, Map<DispatchIndex, Set<ElementDefinition>>> runMemo) {
+      if (!indexed.contains(slice)) {
+        return true;
+      }
+      Set<ElementDefinition> candidates = candidatesFor(element, runMemo);
+      return candidates == null || candidates.contains(slice);
+    }
+
+    /**
+     * the candidate slices are computed once per element and index in a validate call, the element is asked for
+     * every slice of the slicer
+     */
+    private Set<ElementDefinition> candidatesFor(Element element, Map<Element, Map<DispatchIndex, Set<ElementDefinition>>> runMemo) {
+      Map<DispatchIndex, Set<ElementDefinition>> memo = runMemo.computeIfAbsent(element, k -> Collections.synchronizedMap(new IdentityHashMap<>()));
+      if (memo.containsKey(this)) {
+        return memo.get(this);
+      }
+      Set<ElementDefinition> candidates = candidates(element);
+      memo.put(this, candidates);
+      return candidates;
+    }
+
+    private Set<ElementDefinition> candidates(Element element) {
+      List<Element> nodes = walk(element, path);
+      if (nodes == null) {
+        return null;
+      }
+      Set<ElementDefinition> res = new HashSet<>();
+      for (Element node : nodes) {
+        if (property.isEmpty()) {
+          addCandidates(res, node.primitiveValue());
+        } else if (node.hasChildren()) {
+          for (Element child : node.getChildren()) {
+            if (nameMatches(child, property)) {
+              addCandidates(res, child.primitiveValue());
+            }
+          }
+        }
+      }
+      return res;
+    }
+
+    private void addCandidates(Set<ElementDefinition> res, String value) {
+      if (value != null) {
+        Set<ElementDefinition> slices = slicesByValue.get(value);
+        if (slices != null) {
+          res.addAll(slices);
+        }
+      }
+    }
+  }
+}
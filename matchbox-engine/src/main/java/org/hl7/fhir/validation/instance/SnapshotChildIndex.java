@@ -0,0 +1,100 @@
+package org.hl7.fhir.validation.instance;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.conformance.profile.ProfileUtilities;
+import org.hl7.fhir.r5.conformance.profile.ProfileUtilities.SourcedChildDefinitions;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+/**
+ * matchbox patch: the direct children of every element of a snapshot, computed in a single pass over the snapshot
+ * and cached on the StructureDefinition. Replaces the scan of the snapshot done by ProfileUtilities.getChildMap,
+ * whose cache only lives as long as the ProfileUtilities of one validator.
+ * <p>
+ * The children are the same as the ones of ProfileUtilities.getChildMap: the elements one level deeper in the
+ * contiguous run following the element, slices have their own children. Elements with a content reference are
+ * left to ProfileUtilities.
+ */
+class SnapshotChildIndex {
+
+  public static final String SNAPSHOT_CHILD_INDEX = "matchbox.snapshot.child.index";
+
+  private final List<ElementDefinition> snapshot;
+  private final int size;
+  private final Map<ElementDefinition, SourcedChildDefinitions> children = new IdentityHashMap<>();
+
+  private SnapshotChildIndex(StructureDefinition profile) {
+    this.snapshot = profile.getSnapshot().getElement();
+    this.size = snapshot.size();
+    Map<ElementDefinition, List<ElementDefinition>> lists = new IdentityHashMap<>();
+    Deque<ElementDefinition> open = new ArrayDeque<>();
+    for (ElementDefinition ed : snapshot) {
+      String path = ed.getPath();
+      while (!open.isEmpty() && !isBelow(path, open.peek().getPath())) {
+        open.pop();
+      }
+      if (!open.isEmpty() && path.indexOf('.', open.peek().getPath().length() + 1) < 0) {
+        lists.get(open.peek()).add(ed);
+      }
+      if (!lists.containsKey(ed)) {
+        lists.put(ed, new ArrayList<>());
+        open.push(ed);
+      }
+    }
+    for (Map.Entry<ElementDefinition, List<ElementDefinition>> e : lists.entrySet()) {
+      children.put(e.getKey(), new SourcedChildDefinitions(profile, e.getValue()));
+    }
+  }
+
+  private static boolean isBelow(String path, String parent) {
+    return path.length() > parent.length() + 1 && path.charAt(parent.length()) == '.' && path.startsWith(parent);
+  }
+
+  /**
+   * @return the children of the element, from the index if possible
+   */
+  static SourcedChildDefinitions getChildMap(ProfileUtilities profileUtilities, StructureDefinition profile, ElementDefinition definition) {
+    if (definition.hasContentReference() || !profile.hasSnapshot()) {
+      return profileUtilities.getChildMap(profile, definition);
+    }
+    SourcedChildDefinitions res = forProfile(profile).children.get(definition);
+    return res != null ? res : profileUtilities.getChildMap(profile, definition);
+  }
+
+  private static SnapshotChildIndex forProfile(StructureDefinition profile) {
+    synchronized (profile) {
+      SnapshotChildIndex index = (SnapshotChildIndex) profile.getUserData(SNAPSHOT_CHILD_INDEX);
+      if (index == null || index.snapshot != profile.getSnapshot().getElement() || index.size != index.snapshot.size()) {
+        index = new SnapshotChildIndex(profile);
+        profile.setUserData(SNAPSHOT_CHILD_INDEX, index);
+      }
+      return index;
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package ch.ahdis.matchbox.engine;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupComponent;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupRuleComponent;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupRuleSourceComponent;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupRuleTargetComponent;
+import org.hl7.fhir.r5.utils.structuremap.BaselineStructureMapUtilities;
+import org.hl7.fhir.r5.utils.structuremap.StructureMapUtilities;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+import ch.ahdis.matchbox.mappinglanguage.TransformSupportServices;
+
+/**
+ * Runs every map and source of the mapping language tutorial with the compiled plan, once with a new plan and once
+ * with the plan of the previous run, and with the interpreting StructureMapUtilities the plan replaced. The outputs
+ * and the failures have to be the same, also when the transforms run concurrently on a map without a plan.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class StructureMapPlanComparisonTests {
+
+	private MatchboxEngine engine;
+	private Path tutorial;
+
+	@BeforeAll
+	void setUp() throws Exception {
+		this.engine = new MatchboxEngineBuilder().getEngineR4();
+		this.tutorial = Path.of(StructureMapPlanComparisonTests.class.getResource("/mapping-language/tutorial").toURI());
+	}
+
+	@Test
+	void testTutorialSameAsBaseline() throws IOException {
+		List<Path[]> cases = tutorialCases();
+		for (Path[] c : cases) {
+			compare(c[0], c[1], c[2]);
+		}
+		assertTrue(cases.size() > 20, "only " + cases.size() + " transforms compared");
+	}
+
+	@Test
+	void testConcurrentTransformsSameAsBaseline() throws Exception {
+		final int threads = 4;
+		final int runs = 5;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (Path[] c : tutorialCases()) {
+				MatchboxEngine engine = newEngine(c[0], c[1]);
+				String url = engine.parseMap(Files.readString(c[1])).getUrl();
+				StructureMap map = engine.getContext().fetchResource(StructureMap.class, url);
+				TransformSession session = engine.getTransformSession(url);
+				String source = Files.readString(c[2]);
+				String baseline = runBaseline(engine, session, map, source);
+
+				// the plan is compiled by the first transforms, all of them start together on the same map
+				CountDownLatch start = new CountDownLatch(1);
+				List<Future<String>> outputs = new ArrayList<>();
+				for (int i = 0; i < threads * runs; ++i) {
+					outputs.add(executor.submit(() -> {
+						start.await();
+						return run(session, () -> session.transform(parse(session, source)));
+					}));
+				}
+				start.countDown();
+				for (Future<String> output : outputs) {
+					assertEquals(baseline, output.get(), c[1].getFileName() + " " + c[2].getFileName());
+				}
+				// the resolutions and expressions are kept in the plan, not on the shared map
+				for (StructureMapGroupComponent group : map.getGroup()) {
+					assertNoExpressions(group.getRule());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void assertNoExpressions(List<StructureMapGroupRuleComponent> rules) {
+		for (StructureMapGroupRuleComponent rule : rules) {
+			for (StructureMapGroupRuleSourceComponent src : rule.getSource()) {
+				assertFalse(src.hasUserData(StructureMapUtilities.MAP_SEARCH_EXPRESSION));
+				assertFalse(src.hasUserData(StructureMapUtilities.MAP_WHERE_EXPRESSION));
+				assertFalse(src.hasUserData(StructureMapUtilities.MAP_WHERE_CHECK));
+			}
+			for (StructureMapGroupRuleTargetComponent tgt : rule.getTarget()) {
+				assertFalse(tgt.hasUserData(StructureMapUtilities.MAP_EXPRESSION));
+			}
+			assertNoExpressions(rule.getRule());
+		}
+	}
+
+	/**
+	 * @return step directory, map and source of each result of the tutorial
+	 */
+	private List<Path[]> tutorialCases() throws IOException {
+		List<Path[]> cases = new ArrayList<>();
+		try (Stream<Path> results = Files.walk(this.tutorial)) {
+			for (Path result : results.filter(p -> p.getParent().getFileName().toString().equals("result")
+					&& p.getFileName().toString().endsWith(".json")).sorted().toList()) {
+				// result files are named <map>.<source>.json
+				String[] names = result.getFileName().toString().split("\\.");
+				Path step = result.getParent().getParent();
+				Path map = step.resolve("map").resolve(names[0] + ".map");
+				Path source = step.resolve("source").resolve(names[1] + ".json");
+				// translate is overridden by matchbox, the baseline would not look up the same ConceptMaps
+				if (!Files.exists(map) || !Files.exists(source) || Files.readString(map).contains("translate(")) {
+					continue;
+				}
+				cases.add(new Path[] { step, map, source });
+			}
+		}
+		return cases;
+	}
+
+	private MatchboxEngine newEngine(Path step, Path mapFile) throws IOException {
+		MatchboxEngine engine = new MatchboxEngine(this.engine);
+		try (Stream<Path> logical = Files.list(step.resolve("logical"))) {
+			for (Path sd : logical.filter(p -> p.toString().endsWith(".json")).toList()) {
+				try (InputStream in = Files.newInputStream(sd)) {
+					engine.addCanonicalResource((CanonicalResource) new JsonParser().parse(in));
+				}
+			}
+		}
+		engine.addCanonicalResource(engine.parseMap(Files.readString(mapFile)));
+		return engine;
+	}
+
+	private void compare(Path step, Path mapFile, Path sourceFile) throws IOException {
+		String source = Files.readString(sourceFile);
+		MatchboxEngine engine = newEngine(step, mapFile);
+		org.hl7.fhir.r4.model.StructureMap sm = engine.parseMap(Files.readString(mapFile));
+		StructureMap map = engine.getContext().fetchResource(StructureMap.class, sm.getUrl());
+		TransformSession session = engine.getTransformSession(sm.getUrl());
+
+		String cold = run(session, () -> session.transform(parse(session, source)));
+		String warm = run(session, () -> session.transform(parse(session, source)));
+		String baseline = runBaseline(engine, session, map, source);
+		assertEquals(baseline, cold, mapFile.getFileName() + " " + sourceFile.getFileName());
+		assertEquals(baseline, warm, mapFile.getFileName() + " " + sourceFile.getFileName());
+	}
+
+	private static String runBaseline(MatchboxEngine engine, TransformSession session, StructureMap map, String source) {
+		return run(session, () -> {
+			Element target = Manager.build(session.getTargetContext(),
+					engine.getTargetStructureDefinition(map, session.getTargetContext()));
+			new BaselineStructureMapUtilities(engine.getContext(),
+					new TransformSupportServices(session.getTargetContext(), new ArrayList<>()))
+					.transform(null, parse(session, source), map.copy(), target);
+			engine.populatePaths(target);
+			return target;
+		});
+	}
+
+	private static Element parse(TransformSession session, String source) throws IOException {
+		return session.parse(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), FhirFormat.JSON);
+	}
+
+	private interface Transform {
+		Element run() throws Exception;
+	}
+
+	/**
+	 * @return the output as JSON, or the class of the exception if the transform failed
+	 */
+	private static String run(TransformSession session, Transform transform) {
+		try {
+			Element output = transform.run();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			Manager.compose(session.getTargetContext(), output, bytes, FhirFormat.JSON, OutputStyle.PRETTY, null);
+			return bytes.toString(StandardCharsets.UTF_8);
+		} catch (Exception e) {
+			return "failed: " + e.getClass().getName();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package ch.ahdis.matchbox.engine;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.junit.jupiter.api.Test;
+
+/**
+ * checks how a batch input is split into records
+ */
+class TransformRecordReaderTests {
+
+	private static List<String> records(String input, FhirFormat format) throws IOException {
+		TransformRecordReader reader = new TransformRecordReader(
+				new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), format);
+		List<String> records = new ArrayList<>();
+		String record;
+		while ((record = reader.next()) != null) {
+			records.add(record);
+		}
+		return records;
+	}
+
+	@Test
+	void testNdjson() throws IOException {
+		String first = "{\"resourceType\":\"Patient\",\"id\":\"a\"}";
+		String second = "{\"resourceType\":\"Patient\",\"id\":\"b\"}";
+		assertEquals(List.of(first, second), records(first + "\n" + second + "\n", FhirFormat.JSON));
+		assertEquals(List.of(first, second), records(first + "\r\n" + second, FhirFormat.JSON));
+	}
+
+	@Test
+	void testConcatenatedJson() throws IOException {
+		String first = "{\n  \"resourceType\": \"Patient\",\n  \"name\": [ { \"given\": [ \"a\" ] } ]\n}";
+		String second = "{\"resourceType\":\"Patient\",\"id\":\"b\"}";
+		assertEquals(List.of(first, second), records("\uFEFF" + first + second + "\n\n", FhirFormat.JSON));
+	}
+
+	@Test
+	void testJsonStrings() throws IOException {
+		// braces and escaped quotes in strings do not end a record
+		String first = "{\"resourceType\":\"Basic\",\"id\":\"a\",\"text\":\"} ] \\\" {\"}";
+		String second = "{\"resourceType\":\"Basic\",\"id\":\"b\"}";
+		assertEquals(List.of(first, second), records(first + second, FhirFormat.JSON));
+	}
+
+	@Test
+	void testMalformedJsonRecord() throws IOException {
+		// text which is not a record is returned up to the end of its line, the next record is read as usual
+		String first = "{\"resourceType\":\"Patient\",\"id\":\"a\"}";
+		String third = "{\"resourceType\":\"Patient\",\"id\":\"c\"}";
+		assertEquals(List.of(first, "not json", third), records(first + "\nnot json\n" + third + "\n", FhirFormat.JSON));
+	}
+
+	@Test
+	void testTruncatedJsonRecord() throws IOException {
+		String first = "{\"resourceType\":\"Patient\",\"id\":\"a\"}";
+		assertEquals(List.of(first, "{\"resourceType\":\"Patient\""),
+				records(first + "\n{\"resourceType\":\"Patient\"", FhirFormat.JSON));
+	}
+
+	@Test
+	void testConcatenatedXml() throws IOException {
+		String first = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- first <Patient> -->\n"
+				+ "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"a\"/><text><div xmlns=\"http://www.w3.org/1999/xhtml\">"
+				+ "<![CDATA[</Patient>]]> &gt; 'x'</div></text></Patient>";
+		String second = "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"b\"/></Patient>";
+		String third = "<Basic xmlns=\"http://hl7.org/fhir\"/>";
+		assertEquals(List.of(first, second, third), records(first + "\n" + second + third + "\n", FhirFormat.XML));
+	}
+
+	@Test
+	void testMalformedXmlRecord() throws IOException {
+		String first = "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"a\"/></Patient>";
+		String third = "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"c\"/></Patient>";
+		assertEquals(List.of(first, "no markup", third), records(first + "\nno markup\n" + third, FhirFormat.XML));
+	}
+}
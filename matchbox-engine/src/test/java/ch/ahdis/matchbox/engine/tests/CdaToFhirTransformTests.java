@@ -21,6 +21,7 @@ package ch.ahdis.matchbox.engine.tests;
  */
 
 import ch.ahdis.matchbox.engine.CdaMappingEngine;
+import ch.ahdis.matchbox.engine.TransformSession;
 import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
@@ -33,7 +34,9 @@ import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StructureMap;
+import org.hl7.fhir.r5.elementmodel.Manager;
 import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
 import org.hl7.fhir.r5.utils.EOperationOutcome;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -45,12 +48,20 @@ import ca.uhn.fhir.context.FhirVersionEnum;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.spi.CalendarNameProvider;
 
 class CdaToFhirTransformTests {
@@ -172,6 +183,25 @@ class CdaToFhirTransformTests {
 		assertEquals("2022-03-30T11:24:26+01:00", composition.getDateElement().getValueAsString());
 	}
 
+	@Test
+	void TestWithoutTrackLocations() throws FHIRException, IOException {
+		InputStream in = getResourceAsStream("cda-it-observation.xml");
+		String cdaObservation = IOUtils.toString(in, StandardCharsets.UTF_8);
+		String expected = getEngine().transform(cdaObservation,
+				false,
+				"http://salute.gov.it/ig/cda-fhir-maps/StructureMap/TestObservation",
+				true);
+
+		// the map has no uuid() or now(), the output of the source parsed without locations is the same
+		CdaMappingEngine untrackedEngine = new CdaMappingEngine(getEngine());
+		untrackedEngine.setTrackLocations(false);
+		String result = untrackedEngine.transform(cdaObservation,
+				false,
+				"http://salute.gov.it/ig/cda-fhir-maps/StructureMap/TestObservation",
+				true);
+		assertEquals(expected, result);
+	}
+
 	@Test
 	void TestObservation() throws FHIRException, IOException {
 		InputStream in = getResourceAsStream("cda-it-observation.xml");
@@ -274,6 +304,43 @@ class CdaToFhirTransformTests {
 				getEngine().evaluateFhirPath(result, false, "effectiveTime.value"));
 	}
 
+	/**
+	 * Test that engines derived from the shared CDA base engine transform concurrently with the same result, and
+	 * that the maps added to one of them are not visible in the others.
+	 */
+	@Test
+	void TestConcurrentDerivedEngines() throws Exception {
+		final String map = "http://salute.gov.it/ig/cda-fhir-maps/StructureMap/RefertodilaboratorioFULLBODY";
+		final String expected = getEngine().evaluateFhirPath(getEngine().transform(cdaLabItaly, false, map, false),
+																			  false, "entry.resource.ofType(Composition).title");
+		assertNotNull(expected);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					final CdaMappingEngine derived = new CdaMappingEngine.CdaMappingEngineBuilder().getCdaEngineR4();
+					assertNull(derived.getContext().fetchResource(org.hl7.fhir.r5.model.StructureMap.class, map));
+					for (final String file : List.of("datatypes.map", "FullHeader.map", "LabBody.map", "cda-it-observation.map",
+														 "cda-it-observation-condition.map", "fhir-to-cda.map")) {
+						derived.addCanonicalResource(derived.parseMap(getFileAsStringFromResources(file)));
+					}
+					final String bundle = derived.transform(cdaLabItaly, false, map, false);
+					return derived.evaluateFhirPath(bundle, false, "entry.resource.ofType(Composition).title");
+				}));
+			}
+			start.countDown();
+			for (final Future<String> result : results) {
+				assertEquals(expected, result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	void TestThird() throws FHIRException, IOException {
 		String result = getEngine().transform(cdaLabItaly,
@@ -303,6 +370,57 @@ class CdaToFhirTransformTests {
 
 	}
 
+	@Test
+	void TestStreamingComposeIsByteIdentical() throws FHIRException, IOException {
+		final String mapUri = "http://salute.gov.it/ig/cda-fhir-maps/StructureMap/RefertodilaboratorioFULLBODY";
+		final TransformSession session = getEngine().getTransformSession(mapUri);
+		final org.hl7.fhir.r5.elementmodel.Element transformed = getEngine().transform(
+				new ByteArrayInputStream(cdaLabItaly.getBytes(StandardCharsets.UTF_8)), FhirFormat.XML, mapUri,
+				session.getTargetContext());
+		for (OutputStyle style : new OutputStyle[] { OutputStyle.NORMAL, OutputStyle.PRETTY }) {
+			final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			Manager.compose(session.getTargetContext(), transformed, expected, FhirFormat.JSON, style, null);
+			final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			Manager.composeStreaming(session.getTargetContext(), transformed, actual, FhirFormat.JSON, style, null);
+			assertTrue(expected.size() > 0);
+			assertArrayEquals(expected.toByteArray(), actual.toByteArray(), "JSON output differs for " + style);
+		}
+	}
+
+	@Test
+	void TestComposeChangedCdaText() throws FHIRException, IOException {
+		final org.hl7.fhir.r5.elementmodel.Element cda = Manager.parseSingle(getEngine().getContext(),
+				new ByteArrayInputStream(cdaLabItaly.getBytes(StandardCharsets.UTF_8)), FhirFormat.XML);
+		final org.hl7.fhir.r5.elementmodel.Element text = findXhtml(cda);
+		assertNotNull(text);
+		assertNotNull(text.getXhtml());
+		assertTrue(text.getValue().contains(">Esame<"));
+
+		text.setValue(text.getValue().replace(">Esame<", ">Esame modificato<"));
+		assertNull(text.getXhtml());
+
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Manager.compose(getEngine().getContext(), cda, output, FhirFormat.XML, OutputStyle.NORMAL, null);
+		final String xml = output.toString(StandardCharsets.UTF_8);
+		assertTrue(xml.contains(">Esame modificato<"));
+		assertFalse(xml.contains(">Esame<"));
+	}
+
+	private static org.hl7.fhir.r5.elementmodel.Element findXhtml(final org.hl7.fhir.r5.elementmodel.Element element) {
+		if ("xhtml".equals(element.getType())) {
+			return element;
+		}
+		if (element.hasChildren()) {
+			for (org.hl7.fhir.r5.elementmodel.Element child : element.getChildren()) {
+				final org.hl7.fhir.r5.elementmodel.Element found = findXhtml(child);
+				if (found != null) {
+					return found;
+				}
+			}
+		}
+		return null;
+	}
+
 	private int errors(OperationOutcome op) {
 		int i = 0;
 		for (OperationOutcomeIssueComponent vm : op.getIssue()) {
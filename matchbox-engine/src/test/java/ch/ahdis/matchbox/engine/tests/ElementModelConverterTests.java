@@ -0,0 +1,137 @@
+package ch.ahdis.matchbox.engine.tests;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import ch.ahdis.matchbox.engine.ElementModelConverter;
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+import ch.ahdis.matchbox.engine.TransformSession;
+
+/**
+ * Compares the conversion of the element model to the R4 and R5 object models with the XML round trip it replaced,
+ * and the streaming transform with the String transform and the compose of the transformed element.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ElementModelConverterTests {
+
+	private static final String MAP_URI = "http://ahdis.ch/matchbox/fml/qr2patgender";
+
+	private MatchboxEngine engine;
+
+	@BeforeAll
+	void setUp() throws Exception {
+		this.engine = new MatchboxEngineBuilder().getEngineR4();
+		StructureMap sm = this.engine.parseMap(mappingLanguage("/qr2patgender.map"));
+		this.engine.addCanonicalResource(sm);
+	}
+
+	private static String mappingLanguage(String file) throws IOException {
+		try (InputStream in = ElementModelConverterTests.class.getResourceAsStream("/mapping-language" + file)) {
+			return IOUtils.toString(in, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * the conversion transformToFhir used before, the element composed as pretty XML and parsed again
+	 */
+	private static byte[] composeXml(IWorkerContext context, Element element) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Manager.compose(context, element, bytes, FhirFormat.XML, OutputStyle.PRETTY, null);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	void testSamplesSameAsXmlRoundTrip() throws Exception {
+		IWorkerContext context = this.engine.getContext();
+		List<String> samples = List.of("bundle-contained.json", "bundle-document.json", "careplan.xml", "code-correct.xml",
+				"measure.xml", "observation.xml", "profile-chunked-bundle.json", "profile-resolve-bundle.json");
+		for (String sample : samples) {
+			Element element;
+			try (InputStream in = ElementModelConverterTests.class.getResourceAsStream("/r4-samples/" + sample)) {
+				element = Manager.parseSingle(context, in, sample.endsWith(".json") ? FhirFormat.JSON : FhirFormat.XML);
+			}
+			org.hl7.fhir.r4.model.Resource expected = new org.hl7.fhir.r4.formats.XmlParser()
+					.parse(new ByteArrayInputStream(composeXml(context, element)));
+			assertTrue(expected.equalsDeep(ElementModelConverter.toR4(element)), sample);
+		}
+	}
+
+	@Test
+	void testTransformToFhirSameAsXmlRoundTrip() throws Exception {
+		String qr = mappingLanguage("/qr.json");
+		TransformSession session = this.engine.getTransformSession(MAP_URI);
+		Element transformed = this.engine.transform(new ByteArrayInputStream(qr.getBytes(StandardCharsets.UTF_8)),
+				FhirFormat.JSON, MAP_URI, session.getTargetContext());
+		byte[] xml = composeXml(session.getTargetContext(), transformed);
+
+		org.hl7.fhir.r4.model.Resource r4 = new org.hl7.fhir.r4.formats.XmlParser().parse(new ByteArrayInputStream(xml));
+		assertTrue(r4.equalsDeep(ElementModelConverter.toR4(transformed)));
+		assertTrue(r4.equalsDeep(this.engine.transformToFhir(qr, true, MAP_URI)));
+
+		org.hl7.fhir.r5.model.Resource r5 = new org.hl7.fhir.r5.formats.XmlParser().parse(new ByteArrayInputStream(xml));
+		assertTrue(r5.equalsDeep(ElementModelConverter.toR5(transformed)));
+		assertTrue(r5.equalsDeep(this.engine.transformToFhirR5(qr, true, MAP_URI)));
+	}
+
+	@Test
+	void testStreamingTransformSameAsCompose() throws Exception {
+		String qr = mappingLanguage("/qr.json");
+		TransformSession session = this.engine.getTransformSession(MAP_URI);
+		Element transformed = this.engine.transform(new ByteArrayInputStream(qr.getBytes(StandardCharsets.UTF_8)),
+				FhirFormat.JSON, MAP_URI, session.getTargetContext());
+		for (FhirFormat format : List.of(FhirFormat.JSON, FhirFormat.XML)) {
+			for (OutputStyle style : List.of(OutputStyle.NORMAL, OutputStyle.PRETTY)) {
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				Manager.compose(session.getTargetContext(), transformed, expected, format, style, null);
+
+				ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+				this.engine.transform(new ByteArrayInputStream(qr.getBytes(StandardCharsets.UTF_8)), FhirFormat.JSON, MAP_URI,
+						streamed, format, style);
+				String text = this.engine.transform(qr, true, MAP_URI, format == FhirFormat.JSON, style);
+
+				assertEquals(expected.toString(StandardCharsets.UTF_8), streamed.toString(StandardCharsets.UTF_8),
+						format + " " + style);
+				assertEquals(expected.toString(StandardCharsets.UTF_8), text, format + " " + style);
+			}
+		}
+	}
+}
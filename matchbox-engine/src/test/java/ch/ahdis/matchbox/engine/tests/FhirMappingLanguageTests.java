@@ -21,12 +21,20 @@ package ch.ahdis.matchbox.engine.tests;
  */
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
 import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -40,15 +48,26 @@ import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Questionnaire;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StructureMap;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.ConceptMap.ConceptMapGroupComponent;
+import org.hl7.fhir.r5.model.ConceptMap.SourceElementComponent;
+import org.hl7.fhir.r5.utils.structuremap.SourceElementComponentWrapper;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import ch.ahdis.matchbox.engine.ElementModelConverter;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
 import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+import ch.ahdis.matchbox.engine.TransformBatch;
+import ch.ahdis.matchbox.engine.TransformSession;
+import ch.ahdis.matchbox.engine.ValidateTransformResult;
+import ch.ahdis.matchbox.mappinglanguage.ConceptMapEngine;
+import ch.ahdis.matchbox.mappinglanguage.ConceptMapIndex;
 
 class FhirMappingLanguageTests {
 
@@ -94,6 +113,121 @@ class FhirMappingLanguageTests {
 		assertEquals("FEMALE", patient.getGender().name());
 	}
 
+	@Test
+	void testValidateAndTransform() throws FHIRException, IOException {
+		MatchboxEngine engine = new MatchboxEngine(FhirMappingLanguageTests.engine);
+		StructureMap sm = engine.parseMap(getFileAsStringFromResources("/qr2patgender.map"));
+		assertTrue(sm != null);
+		engine.addCanonicalResource(sm);
+		String qr = getFileAsStringFromResources("/qr.json");
+
+		ValidateTransformResult result = engine.validateAndTransform(
+				new ByteArrayInputStream(qr.getBytes(StandardCharsets.UTF_8)), FhirFormat.JSON,
+				"http://hl7.org/fhir/StructureDefinition/QuestionnaireResponse",
+				"http://ahdis.ch/matchbox/fml/qr2patgender", true, "http://hl7.org/fhir/StructureDefinition/Patient");
+		assertTrue(result.isTransformed());
+		assertTrue(result.isValid());
+		Resource expected = engine.transformToFhir(qr, true, "http://ahdis.ch/matchbox/fml/qr2patgender");
+		assertTrue(expected.equalsDeep(ElementModelConverter.toR4(result.getTransformed())));
+
+		// an invalid source is not transformed
+		result = engine.validateAndTransform(
+				new ByteArrayInputStream(qr.replace("in-progress", "not-a-status").getBytes(StandardCharsets.UTF_8)),
+				FhirFormat.JSON, "http://hl7.org/fhir/StructureDefinition/QuestionnaireResponse",
+				"http://ahdis.ch/matchbox/fml/qr2patgender", true, "http://hl7.org/fhir/StructureDefinition/Patient");
+		assertFalse(result.isTransformed());
+		assertFalse(result.isValid());
+		assertTrue(result.getTargetMessages().isEmpty());
+	}
+
+	@Test
+	void testTransformSessionInvalidated() throws FHIRException, IOException {
+		MatchboxEngine engine = new MatchboxEngine(FhirMappingLanguageTests.engine);
+		StructureMap sm = engine.parseMap(getFileAsStringFromResources("/qr2patgender.map"));
+		assertTrue(sm != null);
+		engine.addCanonicalResource(sm);
+		final String mapUri = "http://ahdis.ch/matchbox/fml/qr2patgender";
+		TransformSession session = engine.getTransformSession(mapUri);
+		assertSame(session, engine.getTransformSession(mapUri));
+
+		// a resource added to the context without the engine, e.g. by the IgLoader
+		org.hl7.fhir.r5.model.ValueSet vs = new org.hl7.fhir.r5.model.ValueSet();
+		vs.setId("session-test");
+		vs.setUrl("http://ahdis.ch/matchbox/ValueSet/session-test");
+		engine.getContext().cacheResource(vs);
+		TransformSession renewed = engine.getTransformSession(mapUri);
+		assertNotSame(session, renewed);
+		assertSame(renewed, engine.getTransformSession(mapUri));
+
+		// a resource dropped from the context
+		engine.getContext().dropResource(vs);
+		assertNotSame(renewed, engine.getTransformSession(mapUri));
+
+		Resource res = engine.transformToFhir(getFileAsStringFromResources("/qr.json"), true, mapUri);
+		assertEquals("FEMALE", ((Patient) res).getGender().name());
+	}
+
+	@Test
+	void testTransformBatch() throws FHIRException, IOException {
+		MatchboxEngine engine = new MatchboxEngine(FhirMappingLanguageTests.engine);
+		StructureMap sm = engine.parseMap(getFileAsStringFromResources("/qr2patgender.map"));
+		assertTrue(sm != null);
+		engine.addCanonicalResource(sm);
+		String qr = getFileAsStringFromResources("/qr.json");
+		final int records = 20;
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < records; ++i) {
+			input.append(i == 5 ? "not json" : qr).append('\n');
+		}
+
+		// the input is handed out in small chunks, the lines written when the end is reached show that the output is
+		// written while the input is read
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int[] linesAtEnd = { -1 };
+		InputStream in = new FilterInputStream(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8))) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, Math.min(len, 64));
+				if (n < 0 && linesAtEnd[0] < 0) {
+					linesAtEnd[0] = lines(output);
+				}
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return 0;
+			}
+		};
+		TransformBatch.Summary summary = engine.transformBatch(in, FhirFormat.JSON,
+				"http://ahdis.ch/matchbox/fml/qr2patgender", output, 1);
+		assertEquals(records, summary.getRecords());
+		assertEquals(1, summary.getFailed());
+		assertTrue(linesAtEnd[0] >= records - 2, "only " + linesAtEnd[0] + " lines written before the end of the input");
+
+		String[] lines = output.toString(StandardCharsets.UTF_8).split("\n");
+		assertEquals(records, lines.length);
+		Resource expected = engine.transformToFhir(qr, true, "http://ahdis.ch/matchbox/fml/qr2patgender");
+		for (int i = 0; i < records; ++i) {
+			if (i == 5) {
+				assertTrue(lines[i].startsWith("{\"resourceType\":\"OperationOutcome\""));
+				assertTrue(lines[i].contains("Record 5: "));
+			} else {
+				assertTrue(expected.equalsDeep((Resource) new org.hl7.fhir.r4.formats.JsonParser().parse(lines[i])));
+			}
+		}
+	}
+
+	private static int lines(ByteArrayOutputStream output) {
+		int lines = 0;
+		for (byte b : output.toByteArray()) {
+			if (b == '\n') {
+				++lines;
+			}
+		}
+		return lines;
+	}
+
 	@Test
 	void testMemberOf() throws FHIRException, IOException {
 		MatchboxEngine engine = new MatchboxEngine(FhirMappingLanguageTests.engine);
@@ -1302,4 +1436,94 @@ class FhirMappingLanguageTests {
 
 	}
 
+	@Test
+	void testConceptMapTranslate() throws FHIRException, IOException {
+		org.hl7.fhir.r5.model.ConceptMap cm = new org.hl7.fhir.r5.model.ConceptMap();
+		cm.setUrl("http://test.ch/ConceptMap/translate-index");
+		cm.setStatus(org.hl7.fhir.r5.model.Enumerations.PublicationStatus.ACTIVE);
+		addTarget(cm.addGroup().setSource("http://test.ch/cs-a|1").setTarget("http://test.ch/cs-x"), "1", "one-a-v1");
+		addTarget(cm.addGroup().setSource("http://test.ch/cs-a|2").setTarget("http://test.ch/cs-x"), "1", "one-a-v2");
+		addTarget(cm.addGroup().setSource("http://test.ch/cs-b").setTarget("http://test.ch/cs-y"), "1", "one-b");
+		MatchboxEngine engine = new MatchboxEngine(FhirMappingLanguageTests.engine);
+		engine.addCanonicalResource(cm);
+		ConceptMapEngine cme = new ConceptMapEngine(engine.getContext());
+
+		Coding res = cme.translate(new Coding("http://test.ch/cs-b", "1", null), cm.getUrl());
+		assertEquals("http://test.ch/cs-y", res.getSystem());
+		assertEquals("one-b", res.getCode());
+		res = cme.translate(new Coding("http://test.ch/cs-a", "1", null).setVersion("2"), cm.getUrl());
+		assertEquals("http://test.ch/cs-x", res.getSystem());
+		assertEquals("one-a-v2", res.getCode());
+		assertEquals(null, cme.translate(new Coding("http://test.ch/cs-c", "1", null), cm.getUrl()));
+		assertEquals(null, cme.translate(new Coding("http://test.ch/cs-b", "2", null), cm.getUrl()));
+		// without a version both groups of cs-a match
+		assertThrows(FHIRException.class, () -> cme.translate(new Coding("http://test.ch/cs-a", "1", null), cm.getUrl()));
+		assertEquals(3, cme.translate(new Coding().setCode("1"), cm.getUrl(), null).size());
+
+		ConceptMapIndex index = ConceptMapIndex.forConceptMap(cm);
+		assertTrue(index == ConceptMapIndex.forConceptMap(cm));
+		assertEquals("one-a-v1", index.lookup("http://test.ch/cs-a|1", "1").getComp().getTargetFirstRep().getCode());
+		assertEquals("one-a-v1", index.lookup("1").getComp().getTargetFirstRep().getCode());
+		assertEquals(2, index.candidates("http://test.ch/cs-a", null, "1").size());
+		assertEquals(0, index.candidates("http://test.ch/cs-a", "3", "1").size());
+	}
+
+	@Test
+	void testConceptMapIndexSameAsScan() {
+		// groups with and without versioned sources, codes repeated within and across groups, elements without code
+		Random random = new Random(4711);
+		String[] sources = { "http://test.ch/cs-a", "http://test.ch/cs-a|1", "http://test.ch/cs-a|2", "http://test.ch/cs-b", null };
+		org.hl7.fhir.r5.model.ConceptMap cm = new org.hl7.fhir.r5.model.ConceptMap();
+		for (int g = 0; g < 12; ++g) {
+			ConceptMapGroupComponent group = cm.addGroup().setSource(sources[random.nextInt(sources.length)]);
+			for (int e = 0; e < 40; ++e) {
+				if (random.nextInt(20) == 0) {
+					group.addElement().addTarget().setCode("no-source-code");
+				} else {
+					addTarget(group, "c" + random.nextInt(60), "g" + g + "e" + e);
+				}
+			}
+		}
+		ConceptMapIndex index = ConceptMapIndex.forConceptMap(cm);
+		for (String system : sources) {
+			for (int c = 0; c < 70; ++c) {
+				Coding src = new Coding(system, "c" + c, null);
+				SourceElementComponentWrapper expected = scan(cm, src);
+				SourceElementComponentWrapper actual = src.hasSystem() ? index.lookup(src.getSystem(), src.getCode())
+						: index.lookup(src.getCode());
+				if (expected == null) {
+					assertEquals(null, actual, system + "#" + src.getCode());
+				} else {
+					assertTrue(actual != null && expected.getGroup() == actual.getGroup() && expected.getComp() == actual.getComp(),
+							system + "#" + src.getCode());
+				}
+			}
+		}
+	}
+
+	/**
+	 * the lookup of MatchboxStructureMapUtilities.translate before the index: the first element with the code, in a
+	 * group with the system of the coding if it has one
+	 */
+	private static SourceElementComponentWrapper scan(org.hl7.fhir.r5.model.ConceptMap cmap, Coding src) {
+		for (ConceptMapGroupComponent g : cmap.getGroup()) {
+			for (SourceElementComponent e : g.getElement()) {
+				String srccode = src.getCode();
+				String srcsys = src.getSystem();
+				String ecode = e.getCode();
+				String gsys = g.getSource();
+				if (!src.hasSystem() && srccode.equals(ecode))
+					return new SourceElementComponentWrapper(g, e);
+				else if (src.hasSystem() && srcsys.equals(gsys) && srccode.equals(ecode))
+					return new SourceElementComponentWrapper(g, e);
+			}
+		}
+		return null;
+	}
+
+	private void addTarget(ConceptMapGroupComponent group, String code, String target) {
+		group.addElement().setCode(code).addTarget().setCode(target)
+				.setRelationship(org.hl7.fhir.r5.model.Enumerations.ConceptMapRelationship.EQUIVALENT);
+	}
+
 }
@@ -22,10 +22,21 @@ package ch.ahdis.matchbox.engine.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -209,4 +220,42 @@ class FhirXVersTests {
 				result, false);
 	}
 
+	/**
+	 * Test that engines asking concurrently for the context of a FHIR version that is not loaded yet wait for a
+	 * single build, and that each engine registers its own copies of the versioned StructureDefinitions.
+	 */
+	@Test
+	void testConcurrentContextForFhirVersion() throws Exception {
+		final String url = "http://hl7.org/fhir/4.3/StructureDefinition/Patient";
+		final List<MatchboxEngine> engines = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			engines.add(new MatchboxEngine(FhirXVersTests.engineR4));
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(engines.size());
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Future<SimpleWorkerContext>> contexts = new ArrayList<>();
+			for (final MatchboxEngine engine : engines) {
+				contexts.add(executor.submit(() -> {
+					start.await();
+					return engine.getContextForFhirVersion("4.3.0");
+				}));
+			}
+			start.countDown();
+			final SimpleWorkerContext context = contexts.get(0).get();
+			assertNotNull(context);
+			for (final Future<SimpleWorkerContext> other : contexts) {
+				assertSame(context, other.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		final Set<org.hl7.fhir.r5.model.StructureDefinition> registered = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (final MatchboxEngine engine : engines) {
+			final var sd = engine.getContext().fetchResource(org.hl7.fhir.r5.model.StructureDefinition.class, url);
+			assertNotNull(sd);
+			assertTrue(registered.add(sd));
+		}
+	}
+
 }
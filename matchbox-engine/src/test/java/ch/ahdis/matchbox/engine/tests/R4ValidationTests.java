@@ -1,10 +1,20 @@
 package ch.ahdis.matchbox.engine.tests;
 
 import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.SniffedInput;
 import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.ParserBase;
+import org.hl7.fhir.r5.elementmodel.ValidatedFragment;
+import org.hl7.fhir.r5.elementmodel.XmlParser;
+import org.hl7.fhir.r5.formats.IParser;
 import org.hl7.fhir.r5.utils.EOperationOutcome;
+import org.hl7.fhir.r5.utils.validation.constants.BestPracticeWarningLevel;
 import org.hl7.fhir.utilities.FhirPublication;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.xml.XMLUtil;
+import org.hl7.fhir.validation.instance.InstanceValidator;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
@@ -12,9 +22,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -132,6 +144,249 @@ class R4ValidationTests {
 	 * Todo: test the validation of a code from a value set defined with 'canonical =' filter from UCUM.
 	 */
 
+	/**
+	 * Test that the resolve() outcomes memoized during a validation are not reused by the next validation of the
+	 * same element tree, after the resolved entry has been replaced.
+	 */
+	@Test
+	void testRunMemoClearedBetweenValidations() throws Exception {
+		final String profile = "http://matchbox.health/fhir/StructureDefinition/resolve-bundle";
+		final MatchboxEngine profiledEngine = new MatchboxEngine(this.engine);
+		profiledEngine.addCanonicalResource(this.loadProfile("profile-resolve-bundle.json"));
+		final InstanceValidator validator = profiledEngine.getValidator(Manager.FhirFormat.JSON);
+		final Element bundle = Manager.parseSingle(profiledEngine.getContext(),
+																 new ByteArrayInputStream(this.loadSample("bundle-contained.json").getBytes(StandardCharsets.UTF_8)),
+																 Manager.FhirFormat.JSON);
+
+		final List<ValidationMessage> first = new ArrayList<>();
+		validator.validate(null, first, "Bundle", bundle, profile);
+		assertTrue(first.stream().noneMatch(vm -> vm.getInvId() != null && vm.getInvId().endsWith("#mb-resolve")));
+
+		// the Patient entry is replaced by a copy with another gender, the memo would still resolve the original
+		final Element entry = bundle.getChildren("entry").get(0);
+		final Element patient = (Element) entry.getNamedChild("resource").copy();
+		patient.getNamedChild("gender").setValue("female");
+		entry.removeChild("resource");
+		entry.getChildren().add(patient);
+
+		final List<ValidationMessage> second = new ArrayList<>();
+		validator.validate(null, second, "Bundle", bundle, profile);
+		assertTrue(second.stream().anyMatch(vm -> vm.getInvId() != null && vm.getInvId().endsWith("#mb-resolve")
+			&& vm.getLevel() == ValidationMessage.IssueSeverity.ERROR));
+	}
+
+	/**
+	 * Test that the outcomes of a contained and a referenced resource are cached across validations and give the
+	 * same issues as a validation without the cache.
+	 */
+	@Test
+	void testConformanceOutcomeCache() throws Exception {
+		final String bundle = this.loadSample("bundle-contained.json");
+		final var expected = summarize(this.validate(this.engine, bundle, Manager.FhirFormat.JSON,
+																	"http://hl7.org/fhir/StructureDefinition/Bundle"));
+
+		final MatchboxEngine cachingEngine = new MatchboxEngine(this.engine);
+		cachingEngine.setConformanceOutcomeCacheSize(100);
+		final var cache = cachingEngine.getConformanceOutcomeCache();
+
+		final var first = this.validate(cachingEngine, bundle, Manager.FhirFormat.JSON,
+												  "http://hl7.org/fhir/StructureDefinition/Bundle");
+		assertEquals(expected, summarize(first));
+		assertEquals(0, cache.getHits());
+		// the Patient entry and the contained Practitioner, the Observation has references and is not cached
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.size());
+
+		final var second = this.validate(cachingEngine, bundle, Manager.FhirFormat.JSON,
+													"http://hl7.org/fhir/StructureDefinition/Bundle");
+		assertEquals(expected, summarize(second));
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		// the settings of the validator are part of the key
+		cachingEngine.setBestPracticeLevel(BestPracticeWarningLevel.Error);
+		this.validate(cachingEngine, bundle, Manager.FhirFormat.JSON, "http://hl7.org/fhir/StructureDefinition/Bundle");
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		cachingEngine.setBestPracticeLevel(BestPracticeWarningLevel.Warning);
+
+		// the codings are checked at the end of the validation, the cache is not used
+		cachingEngine.setCheckIPSCodes(true);
+		this.validate(cachingEngine, bundle, Manager.FhirFormat.JSON, "http://hl7.org/fhir/StructureDefinition/Bundle");
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		cachingEngine.setCheckIPSCodes(false);
+
+		// a copy shares the cache but not the outcomes of the original
+		final MatchboxEngine copy = new MatchboxEngine(cachingEngine);
+		assertSame(cache, copy.getConformanceOutcomeCache());
+		assertEquals(expected, summarize(this.validate(copy, bundle, Manager.FhirFormat.JSON,
+																	  "http://hl7.org/fhir/StructureDefinition/Bundle")));
+		assertEquals(2, cache.getHits());
+		assertEquals(6, cache.getMisses());
+	}
+
+	/**
+	 * Test that validating the entries of a Bundle in parallel gives the same issues in the same order as the
+	 * sequential validation, with the errors of an invalid entry reported once.
+	 */
+	@Test
+	void testParallelBundleEntries() throws Exception {
+		final MatchboxEngine parallelEngine = new MatchboxEngine(this.engine);
+		parallelEngine.setBundleEntryThreads(4);
+
+		final String validBundle = this.loadSample("bundle-contained.json");
+		final String invalidBundle = validBundle.replace("\"final\"", "\"non-existent-code\"");
+		// the entries of the document reference each other
+		final String document = this.loadSample("bundle-document.json");
+		for (final String bundle : List.of(validBundle, invalidBundle, document)) {
+			final var expected = issues(this.validate(this.engine, bundle, Manager.FhirFormat.JSON,
+																	"http://hl7.org/fhir/StructureDefinition/Bundle"));
+			// the issues are in the order of the sequential validation, in every run
+			for (int run = 0; run < 5; run++) {
+				assertEquals(expected, issues(this.validate(parallelEngine, bundle, Manager.FhirFormat.JSON,
+																		 "http://hl7.org/fhir/StructureDefinition/Bundle")));
+			}
+		}
+		final var errors = getValidationFailures(this.validate(parallelEngine, invalidBundle, Manager.FhirFormat.JSON,
+																				 "http://hl7.org/fhir/StructureDefinition/Bundle"));
+		assertEquals(1, errors.size());
+		assertEquals(OperationOutcome.IssueType.CODEINVALID, errors.get(0).getCode());
+
+		// a copy keeps the pool it shares after the engine has replaced it, and validates on the calling thread
+		final MatchboxEngine copy = new MatchboxEngine(parallelEngine);
+		parallelEngine.setBundleEntryThreads(2);
+		assertEquals(issues(this.validate(this.engine, document, Manager.FhirFormat.JSON,
+													 "http://hl7.org/fhir/StructureDefinition/Bundle")),
+						 issues(this.validate(copy, document, Manager.FhirFormat.JSON,
+													 "http://hl7.org/fhir/StructureDefinition/Bundle")));
+	}
+
+	/**
+	 * Test that input with a byte order mark or in UTF-16 is sniffed and validated as its UTF-8 form.
+	 */
+	@Test
+	void testSniffedInput() throws Exception {
+		final String measure = this.measureRaw.replace("{{STATUS}}", "active");
+		final var expectedMeasure = summarize(this.validate(this.engine, measure, Manager.FhirFormat.XML,
+																			 "http://hl7.org/fhir/StructureDefinition/Measure"));
+		final byte[] utf8Bom = new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+
+		SniffedInput input = SniffedInput.of(new ByteArrayInputStream(concat(utf8Bom, measure.getBytes(StandardCharsets.UTF_8))));
+		assertEquals(Manager.FhirFormat.XML, input.getFormat());
+		assertEquals(StandardCharsets.UTF_8, input.getCharset());
+		assertTrue(input.hasByteOrderMark());
+		assertEquals(expectedMeasure, summarize(this.engine.validate(input.getStream(), input.getFormat(),
+																						  "http://hl7.org/fhir/StructureDefinition/Measure")));
+
+		// UTF-16 with a big endian byte order mark, which is left to the XML parser
+		input = SniffedInput.of(new ByteArrayInputStream(measure.getBytes(StandardCharsets.UTF_16)));
+		assertEquals(Manager.FhirFormat.XML, input.getFormat());
+		assertEquals(StandardCharsets.UTF_16BE, input.getCharset());
+		assertTrue(input.hasByteOrderMark());
+		assertEquals(expectedMeasure, summarize(this.engine.validate(input.getStream(), input.getFormat(),
+																						  "http://hl7.org/fhir/StructureDefinition/Measure")));
+
+		final String bundle = this.loadSample("bundle-contained.json");
+		final var expectedBundle = summarize(this.validate(this.engine, bundle, Manager.FhirFormat.JSON,
+																			"http://hl7.org/fhir/StructureDefinition/Bundle"));
+
+		input = SniffedInput.of(new ByteArrayInputStream(concat(utf8Bom, bundle.getBytes(StandardCharsets.UTF_8))));
+		assertEquals(Manager.FhirFormat.JSON, input.getFormat());
+		assertTrue(input.hasByteOrderMark());
+		assertEquals(expectedBundle, summarize(this.engine.validate(input.getStream(), input.getFormat(),
+																						 "http://hl7.org/fhir/StructureDefinition/Bundle")));
+
+		// UTF-16 without a byte order mark, JSON is transcoded to UTF-8
+		input = SniffedInput.of(new ByteArrayInputStream(bundle.getBytes(StandardCharsets.UTF_16LE)));
+		assertEquals(Manager.FhirFormat.JSON, input.getFormat());
+		assertEquals(StandardCharsets.UTF_16LE, input.getCharset());
+		assertFalse(input.hasByteOrderMark());
+		assertEquals(expectedBundle, summarize(this.engine.validate(input.getStream(), input.getFormat(),
+																						 "http://hl7.org/fhir/StructureDefinition/Bundle")));
+	}
+
+	/**
+	 * Test that the StAX reader of the XML parser gives the same elements and messages as the parse of a DOM, for a
+	 * resource with an unknown element, an unknown attribute and a narrative.
+	 */
+	@Test
+	void testXmlParserStaxMatchesDom() throws Exception {
+		final byte[] content = this.loadSample("observation.xml")
+			.replace("{{UNIT}}", "min")
+			.replace("<status value=\"final\"/>", "<text><status value=\"generated\"/><div xmlns=\"http://www.w3.org/1999/xhtml\"><p>Glucose</p></div></text>"
+				+ "<status value=\"final\" unknownAttribute=\"1\"/><unknownElement value=\"x\"/>")
+			.getBytes(StandardCharsets.UTF_8);
+
+		final XmlParser staxParser = new XmlParser(this.engine.getContext());
+		staxParser.setupValidation(ParserBase.ValidationPolicy.EVERYTHING);
+		final ValidatedFragment fragment = staxParser.parse(new ByteArrayInputStream(content)).get(0);
+
+		final XmlParser domParser = new XmlParser(this.engine.getContext());
+		domParser.setupValidation(ParserBase.ValidationPolicy.EVERYTHING);
+		final List<ValidationMessage> domErrors = new ArrayList<>();
+		final Element domElement = domParser.parse(domErrors, XMLUtil.parseToDom(content, true));
+
+		assertEquals(2, fragment.getErrors().size());
+		assertEquals(summarizeMessages(domErrors), summarizeMessages(fragment.getErrors()));
+		assertEquals(this.compose(domElement), this.compose(fragment.getElement()));
+	}
+
+	/**
+	 * Test that reading JSON with the streaming parser gives the same issues as the JSON parser, for a Bundle with a
+	 * contained resource and for an invalid resource.
+	 */
+	@Test
+	void testStreamingJson() throws Exception {
+		final MatchboxEngine streamingEngine = new MatchboxEngine(this.engine);
+		streamingEngine.setStreamingJson(true);
+
+		final String bundle = this.loadSample("bundle-contained.json");
+		this.expectSameOutcome(this.engine, streamingEngine, bundle);
+		final var errors = getValidationFailures(this.expectSameOutcome(this.engine, streamingEngine,
+																							  bundle.replace("\"final\"", "\"non-existent-code\"")));
+		assertEquals(1, errors.size());
+		// a JSON syntax error is reported as an error by both parsers
+		final String truncated = bundle.substring(0, bundle.length() / 2);
+		assertFalse(getValidationFailures(this.validate(this.engine, truncated, Manager.FhirFormat.JSON,
+																		"http://hl7.org/fhir/StructureDefinition/Bundle")).isEmpty());
+		assertFalse(getValidationFailures(this.validate(streamingEngine, truncated, Manager.FhirFormat.JSON,
+																		"http://hl7.org/fhir/StructureDefinition/Bundle")).isEmpty());
+	}
+
+	/**
+	 * Test that the entry by entry validation of a document Bundle, whose entries are linked and whose Composition
+	 * constrains the target profile of its subject, gives the same issues as the validation of the whole Bundle, also
+	 * for an entry that is not linked.
+	 */
+	@Test
+	void testChunkedValidation() throws Exception {
+		final MatchboxEngine profiledEngine = new MatchboxEngine(this.engine);
+		profiledEngine.addCanonicalResource(this.loadProfile("profile-chunked-patient.json"));
+		profiledEngine.addCanonicalResource(this.loadProfile("profile-chunked-composition.json"));
+		final MatchboxEngine chunkedEngine = new MatchboxEngine(profiledEngine);
+		chunkedEngine.setChunkedValidation(true);
+
+		final String document = this.loadSample("bundle-document.json");
+		// the Composition is authored by the Patient, the Practitioner is not linked
+		final String orphan = document.replace("\"reference\": \"urn:uuid:6e2b9a4c-1d3f-4b8e-a5c7-0f9d8e7c6b5a\"",
+															"\"reference\": \"urn:uuid:9b4c4e2a-6f0d-4c3e-8d1a-2f5e7a1b3c4d\"");
+		assertEquals(0, getValidationFailures(this.expectSameOutcome(profiledEngine, chunkedEngine, document)).size());
+		assertEquals(1, getValidationFailures(this.expectSameOutcome(profiledEngine, chunkedEngine, orphan)).size());
+
+		// a profile that slices the entries is checked against the whole Bundle, the missing Composition is reported
+		profiledEngine.addCanonicalResource(this.loadProfile("profile-chunked-bundle.json"));
+		final MatchboxEngine slicedEngine = new MatchboxEngine(profiledEngine);
+		slicedEngine.setChunkedValidation(true);
+		final String collection = this.loadSample("bundle-contained.json");
+		final var expected = this.validate(profiledEngine, collection, Manager.FhirFormat.JSON,
+													  "http://matchbox.health/fhir/StructureDefinition/chunked-bundle");
+		final var actual = this.validate(slicedEngine, collection, Manager.FhirFormat.JSON,
+												  "http://matchbox.health/fhir/StructureDefinition/chunked-bundle");
+		assertFalse(getValidationFailures(expected).isEmpty());
+		assertEquals(issues(expected), issues(actual));
+	}
+
 	List<OperationOutcome.OperationOutcomeIssueComponent> getValidationFailures(final OperationOutcome outcome) {
 		return outcome.getIssue().stream()
 			.filter(issue -> OperationOutcome.IssueSeverity.FATAL == issue.getSeverity() || OperationOutcome.IssueSeverity.ERROR == issue.getSeverity())
@@ -174,6 +429,71 @@ class R4ValidationTests {
 		return errors;
 	}
 
+	/**
+	 * validates the Bundle with both engines and returns the outcome of the second one
+	 */
+	private OperationOutcome expectSameOutcome(final MatchboxEngine expectedEngine,
+															 final MatchboxEngine actualEngine,
+															 final String bundle) throws EOperationOutcome, IOException {
+		final var expected = this.validate(expectedEngine, bundle, Manager.FhirFormat.JSON,
+													  "http://hl7.org/fhir/StructureDefinition/Bundle");
+		final var actual = this.validate(actualEngine, bundle, Manager.FhirFormat.JSON,
+													"http://hl7.org/fhir/StructureDefinition/Bundle");
+		assertEquals(summarize(expected), summarize(actual));
+		return actual;
+	}
+
+	private OperationOutcome validate(final MatchboxEngine engine,
+												 final String resource,
+												 final Manager.FhirFormat format,
+												 final String profile) throws EOperationOutcome, IOException {
+		return engine.validate(new ByteArrayInputStream(resource.getBytes(StandardCharsets.UTF_8)), format, profile);
+	}
+
+	/**
+	 * The issues of the outcome without their line and column, to compare the outcomes of the validation modes
+	 */
+	private static List<String> summarize(final OperationOutcome outcome) {
+		return issues(outcome).stream().sorted().collect(Collectors.toList());
+	}
+
+	/**
+	 * The issues of the outcome in their order
+	 */
+	private static List<String> issues(final OperationOutcome outcome) {
+		return outcome.getIssue().stream()
+			.map(issue -> String.format("[%s][%s] %s %s",
+												 issue.getSeverity().name(),
+												 issue.getCode().name(),
+												 issue.getExpression().stream().map(e -> e.getValue()).collect(Collectors.joining(",")),
+												 issue.getDetails().getText()))
+			.collect(Collectors.toList());
+	}
+
+	private static byte[] concat(final byte[] first, final byte[] second) {
+		final byte[] res = new byte[first.length + second.length];
+		System.arraycopy(first, 0, res, 0, first.length);
+		System.arraycopy(second, 0, res, first.length, second.length);
+		return res;
+	}
+
+	private static List<String> summarizeMessages(final List<ValidationMessage> messages) {
+		return messages.stream()
+			.map(message -> String.format("[%s] %s %s", message.getLevel().name(), message.getLocation(), message.getMessage()))
+			.sorted()
+			.collect(Collectors.toList());
+	}
+
+	private String compose(final Element element) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Manager.compose(this.engine.getContext(), element, out, Manager.FhirFormat.JSON, IParser.OutputStyle.PRETTY, null);
+		return out.toString(StandardCharsets.UTF_8);
+	}
+
+	private org.hl7.fhir.r4.model.StructureDefinition loadProfile(final String filename) throws IOException {
+		return (org.hl7.fhir.r4.model.StructureDefinition) new org.hl7.fhir.r4.formats.JsonParser().parse(this.loadSample(filename));
+	}
+
 	private String loadSample(final String filename) throws IOException {
 		return new String(
 			R4ValidationTests.class.getResourceAsStream("/r4-samples/" + filename).readAllBytes()
@@ -0,0 +1,259 @@
+package org.hl7.fhir.r5.elementmodel;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+
+/**
+ * Checks that the fields kept aside in the extras of an Element read, write and copy as the inline fields did before,
+ * that the extras are only allocated for the elements which set one of them, and that names and types are interned.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ElementExtrasTests {
+
+	private static final List<String> SAMPLES = List.of("careplan.xml", "code-correct.xml", "measure.xml",
+			"observation.xml", "binary.xml");
+
+	private IWorkerContext context;
+	private Field extras;
+	private Field type;
+
+	@BeforeAll
+	void setUp() throws Exception {
+		this.context = new MatchboxEngineBuilder().getEngineR4().getContext();
+		this.extras = Element.class.getDeclaredField("extras");
+		this.extras.setAccessible(true);
+		this.type = Element.class.getDeclaredField("type");
+		this.type.setAccessible(true);
+	}
+
+	private boolean hasExtras(final Element e) throws IllegalAccessException {
+		return this.extras.get(e) != null;
+	}
+
+	@Test
+	void testDefaultValuesDoNotAllocate() throws Exception {
+		final Element e = new Element("name");
+		e.setNull(false);
+		e.setXhtml(null);
+		e.setExplicitType(null);
+		e.setProhibited(false);
+		e.setRequired(false);
+		e.setSource(null);
+		e.setIgnorePropertyOrder(false);
+		e.setElided(false);
+
+		assertFalse(e.isNull());
+		assertNull(e.getXhtml());
+		assertNull(e.getExplicitType());
+		assertFalse(e.isProhibited());
+		assertFalse(e.isRequired());
+		assertFalse(e.hasSource());
+		assertNull(e.getSource());
+		assertFalse(e.isIgnorePropertyOrder());
+		assertFalse(e.isElided());
+		assertFalse(e.hasComments());
+		assertFalse(e.hasMessages());
+		assertNull(e.getMessages());
+		assertTrue(e.isEmpty());
+		assertTrue(e.getChildren("any").isEmpty());
+		assertFalse(this.hasExtras(e));
+	}
+
+	@Test
+	void testFieldsReadAsBefore() throws Exception {
+		final Element e = new Element("name");
+		final XhtmlNode xhtml = new XhtmlNode();
+		final StringType source = new StringType("source");
+		final ValidationMessage message = new ValidationMessage(Source.InstanceValidator, IssueType.INVALID, "path",
+				"message", IssueSeverity.ERROR);
+
+		e.getComments().add("comment");
+		e.setXhtml(xhtml);
+		e.setExplicitType("CD");
+		e.setNull(true);
+		e.setProhibited(true);
+		e.setRequired(true);
+		e.setSource(source);
+		e.setIgnorePropertyOrder(true);
+		e.setElided(true);
+		e.addMessage(message);
+
+		assertEquals(List.of("comment"), e.getComments());
+		assertTrue(e.hasComments());
+		assertSame(xhtml, e.getXhtml());
+		assertEquals("CD", e.getExplicitType());
+		assertTrue(e.isNull());
+		assertTrue(e.isProhibited());
+		assertTrue(e.isRequired());
+		assertSame(source, e.getSource());
+		assertTrue(e.isIgnorePropertyOrder());
+		assertTrue(e.isElided());
+		assertEquals(List.of(message), e.getMessages());
+
+		// the fields go back to their defaults, as the inline fields did
+		e.getComments().clear();
+		e.setXhtml(null);
+		e.setExplicitType(null);
+		e.setNull(false);
+		e.setProhibited(false);
+		e.setRequired(false);
+		e.setSource(null);
+		e.setIgnorePropertyOrder(false);
+		e.setElided(false);
+
+		assertFalse(e.hasComments());
+		assertNull(e.getXhtml());
+		assertNull(e.getExplicitType());
+		assertFalse(e.isNull());
+		assertFalse(e.isProhibited());
+		assertFalse(e.isRequired());
+		assertNull(e.getSource());
+		assertFalse(e.isIgnorePropertyOrder());
+		assertFalse(e.isElided());
+	}
+
+	@Test
+	void testCopySameAsBefore() throws Exception {
+		final Element e = new Element("name");
+		final XhtmlNode xhtml = new XhtmlNode();
+		final StringType source = new StringType("source");
+		e.getComments().add("comment");
+		e.setXhtml(xhtml);
+		e.setExplicitType("CD");
+		e.setNull(true);
+		e.setProhibited(true);
+		e.setRequired(true);
+		e.setSource(source);
+		e.setIgnorePropertyOrder(true);
+		e.setElided(true);
+		e.addMessage(new ValidationMessage(Source.InstanceValidator, IssueType.INVALID, "path", "message",
+				IssueSeverity.ERROR));
+
+		final Element copy = (Element) e.copy();
+		// copyValues copied the comments into a new list and kept xhtml, explicit type, null flag, prohibited,
+		// required and source, it dropped the messages and did not copy the property order flag
+		assertEquals(List.of("comment"), copy.getComments());
+		assertNotSame(e.getComments(), copy.getComments());
+		assertSame(xhtml, copy.getXhtml());
+		assertEquals("CD", copy.getExplicitType());
+		assertTrue(copy.isNull());
+		assertTrue(copy.isProhibited());
+		assertTrue(copy.isRequired());
+		assertSame(source, copy.getSource());
+		assertNull(copy.getMessages());
+		assertFalse(copy.isIgnorePropertyOrder());
+		// copy sets the elided flag itself
+		assertTrue(copy.isElided());
+
+		// the copy does not share the fields with the original
+		copy.getComments().add("other");
+		copy.setExplicitType("ST");
+		copy.setRequired(false);
+		assertEquals(List.of("comment"), e.getComments());
+		assertEquals("CD", e.getExplicitType());
+		assertTrue(e.isRequired());
+
+		final Element plain = (Element) new Element("name").copy();
+		assertFalse(this.hasExtras(plain));
+	}
+
+	@Test
+	void testParsedSamples() throws Exception {
+		int elements = 0;
+		int withExtras = 0;
+		for (final String sample : SAMPLES) {
+			final Element resource;
+			try (InputStream in = ElementExtrasTests.class.getResourceAsStream("/r4-samples/" + sample)) {
+				resource = Manager.parseSingle(this.context, in, Manager.FhirFormat.XML);
+			}
+			final int[] counts = this.check(resource);
+			elements += counts[0];
+			withExtras += counts[1];
+
+			// the comments and narratives of the extras are written as before, composing the output again gives the
+			// same document
+			final String composed = compose(this.context, resource);
+			final Element reparsed = Manager.parseSingle(this.context,
+					new ByteArrayInputStream(composed.getBytes(StandardCharsets.UTF_8)), Manager.FhirFormat.XML);
+			assertEquals(composed, compose(this.context, reparsed), sample);
+		}
+		assertTrue(elements > 500, "only " + elements + " elements checked");
+		assertTrue(withExtras < elements / 2, withExtras + " of " + elements + " elements have extras");
+	}
+
+	private static String compose(final IWorkerContext context, final Element resource) throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Manager.compose(context, resource, bytes, Manager.FhirFormat.XML, OutputStyle.PRETTY, null);
+		return bytes.toString(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the number of elements and the number of elements with extras
+	 */
+	private int[] check(final Element e) throws IllegalAccessException {
+		final boolean set = e.hasComments() || e.getXhtml() != null || e.getExplicitType() != null || e.isNull()
+				|| e.isProhibited() || e.isRequired() || e.hasSource() || e.isIgnorePropertyOrder() || e.isElided()
+				|| e.hasMessages();
+		assertEquals(set, this.hasExtras(e), e.getPath());
+		assertSame(e.getName().intern(), e.getName(), e.getPath());
+		// the type which is not set falls back to the one of the property
+		final String type = (String) this.type.get(e);
+		if (type != null) {
+			assertSame(type.intern(), type, e.getPath());
+		}
+		final int[] counts = { 1, set ? 1 : 0 };
+		if (e.hasChildren()) {
+			for (final Element child : e.getChildren()) {
+				final int[] c = this.check(child);
+				counts[0] += c[0];
+				counts[1] += c[1];
+			}
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,142 @@
+package org.hl7.fhir.r5.elementmodel;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiConsumer;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+
+/**
+ * Shuffles the children of every element of sample resources and compares the cached sort order with the comparators
+ * it replaced, which searched the snapshot of the StructureDefinition for each comparison.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ElementSortOrderTests {
+
+	private IWorkerContext context;
+
+	@BeforeAll
+	void setUp() throws Exception {
+		this.context = new MatchboxEngineBuilder().getEngineR4().getContext();
+	}
+
+	@Test
+	void testSortByDefinitionSameAsSnapshotSearch() throws Exception {
+		final int compared = this.compare((children, order) -> ElementSortOrder.sortByDefinition(children, order),
+				(parent, children) -> {
+					final List<ElementDefinition> snapshot = this.structure(parent).getSnapshot().getElement();
+					children.sort(Comparator.comparingInt(e -> snapshot.indexOf(property(e).getDefinition())));
+				});
+		assertTrue(compared > 50, "only " + compared + " elements compared");
+	}
+
+	@Test
+	void testSortByPathSameAsSnapshotSearch() throws Exception {
+		final int compared = this.compare((children, order) -> ElementSortOrder.sortByPath(children, order),
+				(parent, children) -> {
+					final List<String> paths = new ArrayList<>();
+					for (final ElementDefinition ed : this.structure(parent).getSnapshot().getElement()) {
+						paths.add(ed.getPath());
+					}
+					children.sort(Comparator.comparingInt(e -> paths.indexOf(property(e).getDefinition().getPath())));
+				});
+		assertTrue(compared > 50, "only " + compared + " elements compared");
+	}
+
+	private interface Sort {
+		void sort(org.hl7.fhir.utilities.NamedItemList<Element> children, ElementSortOrder order);
+	}
+
+	private int compare(final Sort sort, final BiConsumer<Element, List<Element>> reference) throws Exception {
+		int compared = 0;
+		for (final String sample : List.of("bundle-document.json", "bundle-contained.json", "careplan.xml", "measure.xml")) {
+			try (InputStream in = ElementSortOrderTests.class.getResourceAsStream("/r4-samples/" + sample)) {
+				final Element resource = Manager.parseSingle(this.context, in,
+						sample.endsWith(".json") ? Manager.FhirFormat.JSON : Manager.FhirFormat.XML);
+				compared += this.compare(resource, sort, reference, new Random(sample.hashCode()));
+			}
+		}
+		return compared;
+	}
+
+	private int compare(final Element element, final Sort sort, final BiConsumer<Element, List<Element>> reference,
+							  final Random random) {
+		if (!element.hasChildren()) {
+			return 0;
+		}
+		int compared = 0;
+		for (final Element child : element.getChildren()) {
+			compared += this.compare(child, sort, reference, random);
+		}
+		final List<Element> shuffled = new ArrayList<>();
+		for (final Element child : element.getChildren()) {
+			shuffled.add(child);
+		}
+		Collections.shuffle(shuffled, random);
+
+		final List<Element> expected = new ArrayList<>(shuffled);
+		reference.accept(element, expected);
+
+		element.getChildren().clear();
+		element.getChildren().addAll(shuffled);
+		sort.sort(element.getChildren(), this.order(element));
+
+		assertEquals(expected.size(), element.getChildren().size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertSame(expected.get(i), element.getChildren().get(i), element.getPath() + " child " + i);
+		}
+		return compared + 1;
+	}
+
+	private static Property property(final Element e) {
+		return e.getElementProperty() != null ? e.getElementProperty() : e.getProperty();
+	}
+
+	/**
+	 * the StructureDefinition the children are sorted by, chosen as in Element.sort and ElementModelSorter
+	 */
+	private StructureDefinition structure(final Element e) {
+		final StructureDefinition sd = this.context.fetchResource(StructureDefinition.class,
+				"http://hl7.org/fhir/StructureDefinition/" + e.getType());
+		return sd != null && !sd.getAbstract() ? sd : e.getProperty().getStructure();
+	}
+
+	private ElementSortOrder order(final Element e) {
+		return ElementSortOrder.forStructure(this.structure(e));
+	}
+}
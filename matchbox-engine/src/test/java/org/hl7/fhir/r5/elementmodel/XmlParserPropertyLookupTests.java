@@ -0,0 +1,156 @@
+package org.hl7.fhir.r5.elementmodel;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import ch.ahdis.matchbox.engine.CdaMappingEngine;
+
+/**
+ * Parses the CDA samples and compares the child properties and xsi:type constraints the XML parser resolved once with
+ * the ones the uncached lookups find for the same names. A parser which already resolved them gives the same element
+ * tree and messages as a new one.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class XmlParserPropertyLookupTests {
+
+	private static final List<String> SAMPLES = List.of("cda-it.xml", "cda-it-observation.xml",
+			"cda-it-observation-st.xml", "cda-it-observation-cs.xml", "cda-it-observation-condition.xml");
+
+	private IWorkerContext context;
+
+	@BeforeAll
+	void setUp() throws Exception {
+		this.context = new CdaMappingEngine.CdaMappingEngineBuilder().getCdaEngineR4().getContext();
+	}
+
+	private static List<ValidatedFragment> parse(final XmlParser parser, final String sample) throws Exception {
+		try (InputStream in = XmlParserPropertyLookupTests.class.getResourceAsStream("/cda/" + sample)) {
+			return parser.parse(in);
+		}
+	}
+
+	private static Method method(final String name, final Class<?>... parameterTypes) throws NoSuchMethodException {
+		final Method method = XmlParser.class.getDeclaredMethod(name, parameterTypes);
+		method.setAccessible(true);
+		return method;
+	}
+
+	private static Object field(final Object o, final String name) throws ReflectiveOperationException {
+		final Field field = o.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(o);
+	}
+
+	@Test
+	void testLookupsSameAsUncached() throws Exception {
+		final Method findElementProp = method("findElementProp", List.class, String.class, String.class);
+		final Method findAttrProp = method("findAttrProp", List.class, String.class, String.class);
+		final Method findChoiceGroupProp = method("findChoiceGroupProp", List.class);
+		final Method findTextProp = method("findTextProp", List.class);
+		final Method resolveLegalConstraint = method("resolveLegalConstraint", String.class, String.class);
+
+		int compared = 0;
+		for (final String sample : SAMPLES) {
+			final XmlParser parser = new XmlParser(this.context);
+			parse(parser, sample);
+
+			final Map<?, ?> lookups = (Map<?, ?>) field(parser, "propertyLookups");
+			for (final Map.Entry<?, ?> entry : lookups.entrySet()) {
+				final List<?> properties = (List<?>) entry.getKey();
+				final Object lookup = entry.getValue();
+				for (final String kind : List.of("elements", "attributes")) {
+					final Method find = kind.equals("elements") ? findElementProp : findAttrProp;
+					for (final Map.Entry<?, ?> resolved : ((Map<?, ?>) field(lookup, kind)).entrySet()) {
+						// the keys are namespace|name, as built by the lookup
+						final String key = (String) resolved.getKey();
+						final String namespace = key.substring(0, key.lastIndexOf('|'));
+						final String name = key.substring(key.lastIndexOf('|') + 1);
+						assertSame(find.invoke(parser, properties, name, "null".equals(namespace) ? null : namespace),
+								resolved.getValue(), sample + " " + kind + " " + key);
+						++compared;
+					}
+				}
+				if ((Boolean) field(lookup, "resolved")) {
+					assertSame(findChoiceGroupProp.invoke(parser, properties), field(lookup, "choiceGroup"), sample);
+					assertSame(findTextProp.invoke(parser, properties), field(lookup, "text"), sample);
+				}
+			}
+
+			final Map<?, ?> constraints = (Map<?, ?>) field(parser, "legalConstraints");
+			for (final Map.Entry<?, ?> entry : constraints.entrySet()) {
+				final String[] types = ((String) entry.getKey()).split("\\|");
+				assertSame(resolveLegalConstraint.invoke(parser, types[0], types[1]), entry.getValue(),
+						sample + " " + entry.getKey());
+			}
+		}
+		assertTrue(compared > 100, "only " + compared + " lookups compared");
+	}
+
+	@Test
+	void testResolvedParserSameAsNew() throws Exception {
+		final XmlParser warm = new XmlParser(this.context);
+		for (final String sample : SAMPLES) {
+			parse(warm, sample);
+		}
+		for (final String sample : SAMPLES) {
+			final List<ValidatedFragment> expected = parse(new XmlParser(this.context), sample);
+			final List<ValidatedFragment> actual = parse(warm, sample);
+			assertEquals(expected.size(), actual.size(), sample);
+			for (int i = 0; i < expected.size(); ++i) {
+				assertEquals(compose(expected.get(i).getElement()), compose(actual.get(i).getElement()), sample);
+				assertEquals(messages(expected.get(i).getErrors()), messages(actual.get(i).getErrors()), sample);
+			}
+		}
+	}
+
+	private String compose(final Element element) throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Manager.compose(this.context, element, bytes, Manager.FhirFormat.JSON, OutputStyle.PRETTY, null);
+		return bytes.toString(StandardCharsets.UTF_8);
+	}
+
+	private static List<String> messages(final List<ValidationMessage> errors) {
+		final List<String> messages = new ArrayList<>();
+		for (final ValidationMessage vm : errors) {
+			messages.add(vm.getLevel() + " " + vm.getLocation() + " " + vm.getMessage());
+		}
+		return messages;
+	}
+}
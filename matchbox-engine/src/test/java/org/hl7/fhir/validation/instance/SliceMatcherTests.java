@@ -0,0 +1,130 @@
+package org.hl7.fhir.validation.instance;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.fhirpath.FHIRPathEngine;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+
+/**
+ * Compares the outcome of the compiled slice discriminators with the FHIRPath expression that InstanceValidator
+ * generates for them, on elements that match and elements that do not.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class SliceMatcherTests {
+
+	private static final String OBSERVATION = """
+		{
+		  "resourceType": "Observation",
+		  "status": "final",
+		  "category": [ { "coding": [ { "system": "http://terminology.hl7.org/CodeSystem/observation-category", "code": "laboratory" } ] } ],
+		  "code": { "coding": [ { "system": "http://loinc.org", "code": "15074-8" } ] },
+		  "valueQuantity": { "value": 6.3, "unit": "mmol/L", "system": "http://unitsofmeasure.org", "code": "mmol/L" }
+		}""";
+
+	private IWorkerContext context;
+	private FHIRPathEngine fpe;
+	private Element observation;
+
+	@BeforeAll
+	void setUp() throws Exception {
+		this.context = new MatchboxEngineBuilder().getEngineR4().getContext();
+		this.fpe = new FHIRPathEngine(this.context);
+		this.observation = Manager.parseSingle(this.context,
+															new ByteArrayInputStream(OBSERVATION.getBytes(StandardCharsets.UTF_8)),
+															Manager.FhirFormat.JSON);
+	}
+
+	@Test
+	void testValue() {
+		this.assertSame(this.observation, m -> m.addValue("code.coding.system", "http://loinc.org"),
+							 "'http://loinc.org' in code.coding.system", true);
+		this.assertSame(this.observation, m -> m.addValue("code.coding.system", "http://snomed.info/sct"),
+							 "'http://snomed.info/sct' in code.coding.system", false);
+		final Map<String, String> properties = new LinkedHashMap<>();
+		properties.put("system", "http://terminology.hl7.org/CodeSystem/observation-category");
+		properties.put("code", "laboratory");
+		this.assertSame(this.observation, m -> m.addProperties("category.coding", properties),
+							 "category.coding.where(system = 'http://terminology.hl7.org/CodeSystem/observation-category' and code = 'laboratory').exists()", true);
+		properties.put("code", "vital-signs");
+		this.assertSame(this.observation, m -> m.addProperties("category.coding", properties),
+							 "category.coding.where(system = 'http://terminology.hl7.org/CodeSystem/observation-category' and code = 'vital-signs').exists()", false);
+	}
+
+	@Test
+	void testEmptyAndExists() {
+		this.assertSame(this.observation, m -> m.addEmpty("subject"), "subject.empty()", true);
+		this.assertSame(this.observation, m -> m.addEmpty("status"), "status.empty()", false);
+		this.assertSame(this.observation, m -> m.addExists("category", true), "category.exists()", true);
+		this.assertSame(this.observation, m -> m.addExists("category", false), "category.exists().not()", false);
+	}
+
+	@Test
+	void testType() {
+		this.assertSame(this.observation, m -> m.addType("value", "Quantity"), "value is Quantity", true);
+		this.assertSame(this.observation, m -> m.addType("value", "CodeableConcept"), "value is CodeableConcept", false);
+	}
+
+	/**
+	 * The name of a choice element (valueQuantity) matches the path segment of the choice (value).
+	 */
+	@Test
+	void testChoiceNameMatches() {
+		this.assertSame(this.observation, m -> m.addValue("value.unit", "mmol/L"), "'mmol/L' in value.unit", true);
+		this.assertSame(this.observation, m -> m.addValue("value.unit", "mg/dL"), "'mg/dL' in value.unit", false);
+		// the segment is only a prefix of the name of the choice, not of other elements
+		this.assertSame(this.observation, m -> m.addExists("cat", true), "cat.exists()", false);
+	}
+
+	@Test
+	void testThis() {
+		final Element status = this.observation.getNamedChild("status");
+		this.assertSame(status, m -> m.addValue("$this", "final"), "'final' in $this", true);
+		this.assertSame(status, m -> m.addValue("$this", "amended"), "'amended' in $this", false);
+		final Element quantity = this.observation.getNamedChild("valueQuantity");
+		this.assertSame(quantity, m -> m.addType("$this", "Quantity"), "$this is Quantity", true);
+		this.assertSame(quantity, m -> m.addType("$this", "Coding"), "$this is Coding", false);
+	}
+
+	private void assertSame(final Element element, final Consumer<SliceMatcher> discriminator, final String expression,
+									final boolean expected) {
+		final SliceMatcher matcher = new SliceMatcher(this.context);
+		discriminator.accept(matcher);
+		final boolean fhirPath = this.fpe.evaluateToBoolean(null, this.observation, this.observation, element,
+																			 this.fpe.parse(expression));
+		assertEquals(expected, fhirPath, expression);
+		assertEquals(fhirPath, matcher.mayMatch(element), expression);
+	}
+}
@@ -0,0 +1,88 @@
+package org.hl7.fhir.validation.instance;
+
+/*
+ * #%L
+ * Matchbox Engine
+ * %%
+ * Copyright (C) 2022 ahdis
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.hl7.fhir.r5.conformance.profile.ProfileUtilities;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+
+/**
+ * Compares the children of the snapshot index with the ones of ProfileUtilities.getChildMap for every element of
+ * the StructureDefinitions of the core package, which include profiles with slices and choice elements.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class SnapshotChildIndexTests {
+
+	private IWorkerContext context;
+
+	@BeforeAll
+	void setUp() throws Exception {
+		this.context = new MatchboxEngineBuilder().getEngineR4().getContext();
+	}
+
+	@Test
+	void testSameChildrenAsProfileUtilities() {
+		final ProfileUtilities profileUtilities = new ProfileUtilities(this.context, null, null);
+		int compared = 0;
+		for (final StructureDefinition sd : this.context.fetchResourcesByType(StructureDefinition.class)) {
+			if (!sd.hasSnapshot()) {
+				continue;
+			}
+			for (final ElementDefinition ed : sd.getSnapshot().getElement()) {
+				final List<ElementDefinition> expected = profileUtilities.getChildMap(sd, ed).getList();
+				final List<ElementDefinition> actual = SnapshotChildIndex.getChildMap(profileUtilities, sd, ed).getList();
+				assertEquals(expected.size(), actual.size(), sd.getUrl() + " " + ed.getId());
+				for (int i = 0; i < expected.size(); ++i) {
+					assertSame(expected.get(i), actual.get(i), sd.getUrl() + " " + ed.getId() + " child " + i);
+				}
+				++compared;
+			}
+		}
+		assertTrue(compared > 10000, "only " + compared + " elements compared");
+	}
+
+	@Test
+	void testIndexFollowsSnapshotChanges() {
+		final ProfileUtilities profileUtilities = new ProfileUtilities(this.context, null, null);
+		final StructureDefinition sd = this.context.fetchResource(StructureDefinition.class,
+				"http://hl7.org/fhir/StructureDefinition/Patient").copy();
+		final ElementDefinition root = sd.getSnapshot().getElementFirstRep();
+		final int children = SnapshotChildIndex.getChildMap(profileUtilities, sd, root).getList().size();
+
+		final ElementDefinition added = new ElementDefinition("Patient.matchboxTest");
+		sd.getSnapshot().addElement(added);
+		final List<ElementDefinition> actual = SnapshotChildIndex.getChildMap(profileUtilities, sd, root).getList();
+		assertEquals(children + 1, actual.size());
+		assertSame(added, actual.get(actual.size() - 1));
+	}
+}
@@ -23,15 +23,16 @@ package ch.ahdis.fhir.hapi.jpa.validation;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
-import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.util.StopWatch;
 import ca.uhn.fhir.validation.SingleValidationMessage;
 import ch.ahdis.matchbox.CliContext;
 import ch.ahdis.matchbox.MatchboxEngineSupport;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.SniffedInput;
 import ch.ahdis.matchbox.engine.cli.VersionUtil;
 import ch.ahdis.matchbox.engine.exception.MatchboxUnsupportedFhirVersionException;
 import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
@@ -51,11 +52,13 @@ import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import jakarta.servlet.http.HttpServletRequest;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -147,17 +150,19 @@ public class ValidationProvider {
 			reload = theRequest.getParameter("reload").equals("true");
 		}
 
-		String contentString = "";
+		// the id of the outcome is the digest of the content as it is read by the validation
+		final MessageDigest digest = DigestUtils.getDigest("SHA3-256");
+		SniffedInput input = null;
 		try {
-			contentString = new String(theRequest.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+			input = SniffedInput.of(new DigestInputStream(theRequest.getInputStream(), digest));
 		} catch (final Exception e) {
 			log.error(e.getMessage(), e);
 		}
 
-		if (contentString.isEmpty()) {
+		if (input == null || input.isEmpty()) {
 			return this.getOoForError("No content provided in HTTP body");
 		} else {
-			log.trace(contentString);
+			log.trace("Content in {} ({})", input.getFormat(), input.getCharset());
 		}
 
 		final MatchboxEngine engine;
@@ -185,16 +190,15 @@ public class ValidationProvider {
 			return this.getOoForError("Validation engine not initialized, please try again");
 		}
 
-		final String sha3Hex = new DigestUtils("SHA3-256").digestAsHex(contentString + profile);
-
-		EncodingEnum encoding = EncodingEnum.forContentType(theRequest.getContentType());
-		if (encoding == null) {
-			encoding = EncodingEnum.detectEncoding(contentString);
-		}
+		final FhirFormat format = input.getFormat(theRequest.getContentType(), FhirFormat.JSON);
 
 		final List<ValidationMessage> messages;
+		final String sha3Hex;
 		try {
-			messages = doValidate(engine, contentString, encoding, profile);
+			messages = doValidate(engine, input, format, profile);
+			input.getStream().transferTo(OutputStream.nullOutputStream());
+			digest.update(profile.getBytes(StandardCharsets.UTF_8));
+			sha3Hex = Hex.encodeHexString(digest.digest());
 		} catch (final Exception e) {
 			sw.endCurrentTask();
 			log.debug("Validation time: {}", sw);
@@ -318,13 +322,12 @@ public class ValidationProvider {
 	}
 
 	public static List<ValidationMessage> doValidate(final MatchboxEngine engine,
-									 String content,
-									 final EncodingEnum encoding,
+									 final SniffedInput input,
+									 final FhirFormat format,
 									 final String profile) throws EOperationOutcome, IOException {
 		final List<ValidationMessage> messages = new ArrayList<>();
 
-		if (content.startsWith("\uFEFF")) {
-			content = content.replace("\uFEFF", "");
+		if (input.hasByteOrderMark() && input.getCharset() == StandardCharsets.UTF_8) {
 			final var m = new ValidationMessage();
 			m.setLevel(ValidationMessage.IssueSeverity.WARNING);
 			m.setMessage(
@@ -334,10 +337,8 @@ public class ValidationProvider {
 			messages.add(m);
 		}
 
-		final var format = encoding == EncodingEnum.XML ? FhirFormat.XML : FhirFormat.JSON;
-		final var stream = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
 		try {
-			messages.addAll(engine.validate(format, stream, profile));
+			messages.addAll(engine.validate(format, input.getStream(), profile));
 		} catch (IOException e) {
 			log.error("Internal validation error", e);
 			final var m = new ValidationMessage();
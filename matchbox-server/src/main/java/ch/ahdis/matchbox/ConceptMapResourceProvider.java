@@ -1,6 +1,27 @@
 package ch.ahdis.matchbox;
 
+import java.util.List;
+
+import org.hl7.fhir.convertors.conv40_50.resources40_50.ConceptMap40_50;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_43_50;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.ConceptMap;
+import org.hl7.fhir.r5.model.CodeType;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.UriType;
+import org.hl7.fhir.r5.model.ConceptMap.OtherElementComponent;
+import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.r5.model.Parameters.ParametersParameterComponent;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.mappinglanguage.ConceptMapEngine;
+import ch.ahdis.matchbox.mappinglanguage.ConceptMapEngine.TranslationMatch;
 
 
 public class ConceptMapResourceProvider extends ConformancePackageResourceProvider<ConceptMap, org.hl7.fhir.r4b.model.ConceptMap, org.hl7.fhir.r5.model.ConceptMap> {
@@ -9,4 +30,79 @@ public class ConceptMapResourceProvider extends ConformancePackageResourceProvid
 		super(ConceptMap.class, org.hl7.fhir.r4b.model.ConceptMap.class, org.hl7.fhir.r5.model.ConceptMap.class);
 	}
 
-}
\ No newline at end of file
+	/**
+	 * translates a code with a ConceptMap loaded in the engine, the source elements are looked up in the index of
+	 * the map which is shared with the transforms
+	 */
+	@Operation(name = "$translate", type = ConceptMap.class, idempotent = true)
+	public IBaseResource translate(@OperationParam(name = "url", min = 1, max = 1) final String url,
+			@OperationParam(name = "sourceCode", min = 1, max = 1) final String sourceCode,
+			@OperationParam(name = "system", min = 0, max = 1) final String system) {
+		MatchboxEngine matchboxEngine = matchboxEngineSupport.getMatchboxEngine(url, cliContext, true, false);
+		if (matchboxEngine == null) {
+			throw new ResourceNotFoundException("matchbox engine not found for url " + url + " and fhir version " + cliContext.getFhirVersion());
+		}
+		List<TranslationMatch> matches;
+		try {
+			matches = new ConceptMapEngine(matchboxEngine.getContext()).translate(new Coding(system, sourceCode, null), url, null);
+		} catch (FHIRException e) {
+			throw new UnprocessableEntityException(e.getMessage());
+		}
+
+		// R4 and R4B name the parts of a match as in their $translate, the parameters are converted afterwards
+		String fhirVersion = getFhirVersion(this.cliContext.getFhirVersion());
+		boolean r4 = "4.0.1".equals(fhirVersion) || "4.3.0".equals(fhirVersion);
+		Parameters parameters = new Parameters();
+		boolean result = matches.stream().anyMatch(TranslationMatch::isOk);
+		parameters.addParameter("result", result);
+		if (!result) {
+			parameters.addParameter("message", "No mapping found for " + (system != null ? system + "#" : "") + sourceCode + " in ConceptMap " + url);
+		}
+		for (TranslationMatch match : matches) {
+			ParametersParameterComponent part = parameters.addParameter().setName("match");
+			if (match.getRelationship() != null) {
+				if (r4) {
+					part.addPart().setName("equivalence").setValue(new CodeType(toEquivalence(match)));
+				} else {
+					part.addPart().setName("relationship").setValue(new CodeType(match.getRelationship().toCode()));
+				}
+			}
+			if (match.getConcept() != null) {
+				part.addPart().setName("concept").setValue(match.getConcept());
+			}
+			for (OtherElementComponent product : match.getProducts()) {
+				ParametersParameterComponent productPart = part.addPart().setName("product");
+				if (r4) {
+					productPart.addPart().setName("element").setValue(new UriType(product.getAttribute()));
+				} else {
+					productPart.addPart().setName("attribute").setValue(new CodeType(product.getAttribute()));
+				}
+				productPart.addPart().setName("concept").setValue(product.getValue());
+			}
+			if (r4) {
+				part.addPart().setName("source").setValue(new UriType(match.getSource()));
+			} else {
+				part.addPart().setName("originMap").setValue(new org.hl7.fhir.r5.model.CanonicalType(match.getSource()));
+			}
+		}
+
+		return switch (fhirVersion) {
+			case "4.0.1" -> VersionConvertorFactory_40_50.convertResource(parameters);
+			case "4.3.0" -> VersionConvertorFactory_43_50.convertResource(parameters);
+			default -> parameters;
+		};
+	}
+
+	/**
+	 * the R4 ConceptMap equivalence of a match, as the version converter maps the relationship of the target (which
+	 * keeps the equivalence of a converted R4 map), unmatched if the source element is not mapped
+	 */
+	static String toEquivalence(final TranslationMatch match) {
+		if (match.getTarget() == null) {
+			return "unmatched";
+		}
+		return ConceptMap40_50.convertConceptMapEquivalence(match.getTarget().getRelationshipElement(), match.getTarget())
+			.getValueAsString();
+	}
+
+}
@@ -1,19 +1,20 @@
 package ch.ahdis.matchbox.gazelle;
 
 import ca.uhn.fhir.jpa.model.entity.NpmPackageVersionResourceEntity;
-import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.util.StopWatch;
 import ch.ahdis.fhir.hapi.jpa.validation.ValidationProvider;
 import ch.ahdis.matchbox.CliContext;
 import ch.ahdis.matchbox.MatchboxEngineSupport;
 import ch.ahdis.matchbox.StructureDefinitionResourceProvider;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.SniffedInput;
 import ch.ahdis.matchbox.engine.cli.VersionUtil;
 import ch.ahdis.matchbox.engine.exception.MatchboxEngineCreationException;
 import ch.ahdis.matchbox.gazelle.models.metadata.Interface;
 import ch.ahdis.matchbox.gazelle.models.metadata.RestBinding;
 import ch.ahdis.matchbox.gazelle.models.metadata.Service;
 import ch.ahdis.matchbox.gazelle.models.validation.*;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.slf4j.Logger;
@@ -22,8 +23,8 @@ import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 
 import jakarta.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
 import java.lang.reflect.Field;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -249,13 +250,11 @@ public class GazelleValidationWs {
 	ValidationSubReport validateItem(final MatchboxEngine engine,
 									         final ValidationItem item,
 												final String profile) {
-		final String content = new String(item.getContent(), StandardCharsets.UTF_8);
-		final var encoding = EncodingEnum.detectEncoding(content);
-
 		final var subReport = new ValidationSubReport();
 		subReport.setName("Validation of item #%s".formatted(item.getItemId()));
 		try {
-			final var messages = ValidationProvider.doValidate(engine, content, encoding, profile);
+			final var input = SniffedInput.of(new ByteArrayInputStream(item.getContent()));
+			final var messages = ValidationProvider.doValidate(engine, input, input.getFormat(null, FhirFormat.JSON), profile);
 			messages.stream()
 				.map(message -> this.convertMessageToReport(message, engine))
 				.forEach(subReport::addAssertionReport);
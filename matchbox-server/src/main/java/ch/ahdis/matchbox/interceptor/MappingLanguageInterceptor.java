@@ -25,8 +25,12 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -38,6 +42,7 @@ import org.hl7.fhir.convertors.factory.VersionConvertorFactory_30_50;
 import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
 import org.hl7.fhir.convertors.factory.VersionConvertorFactory_43_50;
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r4.formats.IParser;
@@ -57,6 +62,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
 import ch.ahdis.matchbox.MatchboxEngineSupport;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
@@ -76,8 +83,21 @@ import ch.ahdis.matchbox.spring.boot.autoconfigure.MutableHttpServletRequest;
  */
 public class MappingLanguageInterceptor extends InterceptorAdapter {
 
+	public static final String PARSED_STRUCTUREMAP = "matchbox.parsed.structuremap";
+	private static final int MAX_PARSED_MAPS = 64;
+
 	protected MatchboxEngineSupport matchboxEngineSupport;
 
+	// parsed maps by SHA-256 digest of the FML content
+	private final Map<String, StructureMap> parsedMaps = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, StructureMap> eldest) {
+			return size() > MAX_PARSED_MAPS;
+		}
+	};
+
 	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MappingLanguageInterceptor.class);
 
 	public MappingLanguageInterceptor(MatchboxEngineSupport matchboxEngineSupport) {
@@ -104,6 +124,57 @@ public class MappingLanguageInterceptor extends InterceptorAdapter {
 		return FHIRVersion.fromCode(matchboxEngineSupport.getClientContext().getFhirVersion());
 	}
 
+	/**
+	 * the map parsed from the FML content, unchanged content is only parsed once
+	 * 
+	 * @throws UnprocessableEntityException if the content is not a valid map
+	 */
+	private StructureMap getParsedMap(byte[] content) {
+		String digest = digest(content);
+		StructureMap parsed;
+		synchronized (parsedMaps) {
+			parsed = parsedMaps.get(digest);
+		}
+		if (parsed == null) {
+			try {
+				parsed = parseMap(new String(content, StandardCharsets.UTF_8));
+			} catch (FHIRException e) {
+				log.error("FML could not be parsed", e);
+				throw new UnprocessableEntityException("FML could not be parsed: " + e.getMessage());
+			}
+			if (parsed == null) {
+				log.error("FML could not be parsed");
+				throw new UnprocessableEntityException("FML could not be parsed");
+			}
+			synchronized (parsedMaps) {
+				parsedMaps.put(digest, parsed);
+			}
+		}
+		// the map is changed by the request (id, meta, narrative), the cached map is kept as parsed
+		return parsed.copy();
+	}
+
+	private static String digest(byte[] content) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+			StringBuilder b = new StringBuilder(hash.length * 2);
+			for (byte h : hash) {
+				b.append(Character.forDigit((h >> 4) & 0xF, 16)).append(Character.forDigit(h & 0xF, 16));
+			}
+			return b.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new FHIRException(e);
+		}
+	}
+
+	/**
+	 * @return the StructureMap parsed from the FML body of the request, or the resource parsed by HAPI
+	 */
+	public static <T extends IBaseResource> T getParsedResource(RequestDetails theRequestDetails, T theResource, Class<T> type) {
+		Object parsed = theRequestDetails != null ? theRequestDetails.getUserData().get(PARSED_STRUCTUREMAP) : null;
+		return type.isInstance(parsed) ? type.cast(parsed) : theResource;
+	}
+
 	public StructureMap parseMap(String content) throws FHIRException {
 		MatchboxEngine matchboxEngine = matchboxEngineSupport.getMatchboxEngine("default", null, true, false);
 		return matchboxEngine.parseMapR5(content);
@@ -115,12 +186,11 @@ public class MappingLanguageInterceptor extends InterceptorAdapter {
 
 		String contentType = defaultString(theRequest.getHeader(Constants.HEADER_CONTENT_TYPE));
 		if (contentType.startsWith("text/fhir-mapping")) {
-			log.debug("processing text/fhir mapping - converting to json");
+			log.debug("processing text/fhir mapping - converting to StructureMap");
 			FHIRVersion fhirVersion = this.extractFhirVersion(contentType);
-			((MutableHttpServletRequest) theRequest).putHeader(Constants.HEADER_CONTENT_TYPE, "application/fhir+json;fhirVersion="+fhirVersion.getDisplay());
 
-			
-			StructureMap structureMap = parseMap(new String(theRequestDetails.loadRequestContents()));
+			byte[] content = theRequestDetails.loadRequestContents();
+			StructureMap structureMap = getParsedMap(content);
 			if ("PUT".equals(theRequest.getMethod())) {
 				IIdType id = theRequestDetails.getId();
 				if (id != null) {
@@ -128,27 +198,42 @@ public class MappingLanguageInterceptor extends InterceptorAdapter {
 				}
 			}
 
-			String json = null;
-			try {
-				switch(fhirVersion) {
-					case _4_0_1:
-						org.hl7.fhir.r4.model.StructureMap sm4 =  (org.hl7.fhir.r4.model.StructureMap) VersionConvertorFactory_40_50.convertResource(structureMap);
-						json = new org.hl7.fhir.r4.formats.JsonParser().composeString(sm4);				
-						break;
-					case _4_3_0:
-						org.hl7.fhir.r4b.model.StructureMap sm4b =  (org.hl7.fhir.r4b.model.StructureMap) VersionConvertorFactory_43_50.convertResource(structureMap);
-						json = new org.hl7.fhir.r4b.formats.JsonParser().composeString(sm4b);				
-						break;
-					case _5_0_0:
-						json = new org.hl7.fhir.r5.formats.JsonParser().composeString(structureMap);				
-						break;
-					default:
-						log.error("FHIR Version not supported "+fhirVersion.getDisplay());
+			IBaseResource resource = null;
+			switch(fhirVersion) {
+				case _4_0_1:
+					resource = VersionConvertorFactory_40_50.convertResource(structureMap);
+					break;
+				case _4_3_0:
+					resource = VersionConvertorFactory_43_50.convertResource(structureMap);
+					break;
+				case _5_0_0:
+					resource = structureMap;
+					break;
+				default:
+					log.error("FHIR Version not supported "+fhirVersion.getDisplay());
+					throw new UnprocessableEntityException("FHIR Version not supported for FML: "+fhirVersion.getDisplay());
+			}
+			if (theRequestDetails.getOperation() == null) {
+				// create and update take the parsed map from the request, the body only carries what HAPI checks
+				theRequestDetails.getUserData().put(PARSED_STRUCTUREMAP, resource);
+				String placeholder = "{\"resourceType\":\"StructureMap\"" + (structureMap.hasId() ? ",\"id\":\"" + structureMap.getIdPart() + "\"" : "") + "}";
+				theRequestDetails.setRequestContents(placeholder.getBytes(StandardCharsets.UTF_8));
+			} else {
+				// operations read the map from the body
+				try {
+					String json = switch(fhirVersion) {
+						case _4_0_1 -> new org.hl7.fhir.r4.formats.JsonParser().composeString((org.hl7.fhir.r4.model.Resource) resource);
+						case _4_3_0 -> new org.hl7.fhir.r4b.formats.JsonParser().composeString((org.hl7.fhir.r4b.model.Resource) resource);
+						default -> new org.hl7.fhir.r5.formats.JsonParser().composeString(structureMap);
+					};
+					theRequestDetails.setRequestContents(json.getBytes(StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					log.error("Exception while conversion to json", e);
+					throw new InternalErrorException("StructureMap could not be converted to JSON", e);
 				}
-				theRequestDetails.setRequestContents(json.getBytes());
-			} catch (IOException e) {
-				log.error("Exception while conversion to json", e);
 			}
+			// the body is only declared as JSON once it has been replaced by the converted map
+			((MutableHttpServletRequest) theRequest).putHeader(Constants.HEADER_CONTENT_TYPE, "application/fhir+json;fhirVersion="+fhirVersion.getDisplay());
 		}
 		return true;
 	}
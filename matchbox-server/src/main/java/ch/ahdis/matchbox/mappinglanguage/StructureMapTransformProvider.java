@@ -1,8 +1,15 @@
 package ch.ahdis.matchbox.mappinglanguage;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jakarta.servlet.ServletOutputStream;
 /*
@@ -27,17 +34,22 @@ import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IDomainResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Narrative.NarrativeStatus;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.StructureMap;
+import org.hl7.fhir.r5.elementmodel.Manager;
 import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r5.formats.IParser.OutputStyle;
 import org.hl7.fhir.r5.model.StructureMap.StructureMapStructureComponent;
+import org.hl7.fhir.r5.utils.EOperationOutcome;
 import org.hl7.fhir.r5.utils.structuremap.StructureMapUtilities;
 import org.hl7.fhir.utilities.ByteProvider;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.hl7.fhir.utilities.xhtml.NodeType;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -55,6 +67,10 @@ import ch.ahdis.matchbox.CliContext;
 import ch.ahdis.matchbox.MatchboxEngineSupport;
 import ch.ahdis.matchbox.StructureMapResourceProvider;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.SniffedInput;
+import ch.ahdis.matchbox.engine.ValidateTransformResult;
+import ch.ahdis.matchbox.interceptor.MappingLanguageInterceptor;
+import ch.ahdis.matchbox.util.MatchboxServerUtils;
 
 /**
  * StructureMapTransformProvider
@@ -94,6 +110,7 @@ public class StructureMapTransformProvider extends StructureMapResourceProvider
   
   @Override
 	public MethodOutcome create(HttpServletRequest theRequest, @ResourceParam IBaseResource theResource, @ConditionalUrlParam String theConditional, RequestDetails theRequestDetails) {
+    theResource = MappingLanguageInterceptor.getParsedResource(theRequestDetails, theResource, IBaseResource.class);
     createNarrative(theResource);
     return super.create(theRequest, theResource, theConditional, theRequestDetails);
   }
@@ -101,12 +118,30 @@ public class StructureMapTransformProvider extends StructureMapResourceProvider
   @Override
   public MethodOutcome update(HttpServletRequest theRequest, IDomainResource theResource, IIdType theId,
     String theConditional, RequestDetails theRequestDetails) {
+    theResource = MappingLanguageInterceptor.getParsedResource(theRequestDetails, theResource, IDomainResource.class);
     createNarrative(theResource);
     return super.update(theRequest, theResource, theId, theConditional, theRequestDetails);
   }
 
   protected static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(StructureMapTransformProvider.class);
 
+  // the workers of the batch transforms, shared by all requests so that the server runs at most one worker per
+  // processor for them
+  private static final ExecutorService batchExecutor = newBatchExecutor();
+
+  private static ExecutorService newBatchExecutor() {
+    final int processors = Runtime.getRuntime().availableProcessors();
+    final AtomicInteger count = new AtomicInteger();
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(processors, processors, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          final Thread thread = new Thread(runnable, "matchbox-transform-batch-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   @Operation(name = "$transform", type = StructureMap.class, manualResponse = true, manualRequest = true)
   public void manualInputAndOutput(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
       throws IOException {
@@ -131,6 +166,10 @@ public class StructureMapTransformProvider extends StructureMapResourceProvider
   public void transform(org.hl7.fhir.r5.model.StructureMap map, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse, MatchboxEngine matchboxEngine) throws IOException {
 
     String contentType = theServletRequest.getContentType();
+    if (isBatch(theServletRequest, contentType)) {
+      transformBatch(map, theServletRequest, theServletResponse, matchboxEngine, contentType);
+      return;
+    }
 
     Set<String> highestRankedAcceptValues = RestfulServerUtils
         .parseAcceptHeaderAndReturnHighestRankedOptions(theServletRequest);
@@ -142,14 +181,118 @@ public class StructureMapTransformProvider extends StructureMapResourceProvider
     if (highestRankedAcceptValues.contains(Constants.CT_FHIR_JSON)) {
       responseContentType = Constants.CT_FHIR_JSON_NEW;
     }
-    String result = matchboxEngine.transform(new String(theServletRequest.getInputStream().readAllBytes()), contentType.contains("json"), map.getUrl(), responseContentType.contains("json"));
+    // the output is compact unless the client asks for pretty printing
+    OutputStyle outputStyle = MatchboxServerUtils.getOutputStyle(theServletRequest);
 
     theServletResponse.setContentType(responseContentType);
     theServletResponse.setCharacterEncoding("UTF-8");
     
+    SniffedInput input = SniffedInput.of(theServletRequest.getInputStream());
+    ServletOutputStream output = theServletResponse.getOutputStream();
+    matchboxEngine.transform(input.getStream(), input.getFormat(contentType, FhirFormat.XML),
+        map.getUrl(), output, responseContentType.contains("json") ? FhirFormat.JSON : FhirFormat.XML, outputStyle);
+    output.close();
+  }
+
+  /**
+   * $validate-transform validates the source (against sourceProfile, or the logical model the map reads), transforms
+   * the parsed source and validates the result against targetProfile if given or if validateTarget=true. The
+   * transformed resource is returned if both validations pass, otherwise an OperationOutcome with status 422.
+   */
+  @Operation(name = "$validate-transform", type = StructureMap.class, manualResponse = true, manualRequest = true)
+  public void validateAndTransform(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+      throws IOException {
+    String source = theServletRequest.getParameter("source");
+    if (source == null) {
+      throw new UnprocessableEntityException("No source parameter provided");
+    }
+    CliContext cliContext = new CliContext(this.cliContext);
+    MatchboxEngine matchboxEngine = matchboxEngineSupport.getMatchboxEngine(source, cliContext, true, false);
+    if (matchboxEngine == null) {
+      throw new UnprocessableEntityException("matchbox engine could not be initialized with canonical url "+source);
+    }
+    org.hl7.fhir.r5.model.StructureMap map  = matchboxEngine.getContext().fetchResource(org.hl7.fhir.r5.model.StructureMap.class, source);
+    if (map == null) {
+      throw new UnprocessableEntityException("Map not available with canonical url "+source);
+    }
+    String targetProfile = theServletRequest.getParameter("targetProfile");
+    boolean validateTarget = targetProfile != null || "true".equals(theServletRequest.getParameter("validateTarget"));
+
+    String contentType = theServletRequest.getContentType();
+    Set<String> highestRankedAcceptValues = RestfulServerUtils
+        .parseAcceptHeaderAndReturnHighestRankedOptions(theServletRequest);
+    String responseContentType = Constants.CT_FHIR_XML_NEW;
+    if (highestRankedAcceptValues.contains(Constants.CT_FHIR_JSON_NEW) || highestRankedAcceptValues.contains(Constants.CT_FHIR_JSON)) {
+      responseContentType = Constants.CT_FHIR_JSON_NEW;
+    }
+    FhirFormat outputFormat = responseContentType.contains("json") ? FhirFormat.JSON : FhirFormat.XML;
+    OutputStyle outputStyle = MatchboxServerUtils.getOutputStyle(theServletRequest);
+
+    ValidateTransformResult result;
+    OperationOutcome outcome = null;
+    try {
+      SniffedInput input = SniffedInput.of(theServletRequest.getInputStream());
+      result = matchboxEngine.validateAndTransform(input.getStream(), input.getFormat(contentType, FhirFormat.XML),
+          theServletRequest.getParameter("sourceProfile"), map.getUrl(), validateTarget, targetProfile);
+      if (!result.isValid()) {
+        List<ValidationMessage> messages = new ArrayList<>(result.getSourceMessages());
+        messages.addAll(result.getTargetMessages());
+        outcome = matchboxEngine.messagesToOutcome(messages);
+      }
+    } catch (FHIRException | EOperationOutcome e) {
+      throw new UnprocessableEntityException(e.getMessage());
+    }
+
+    theServletResponse.setContentType(responseContentType);
+    theServletResponse.setCharacterEncoding("UTF-8");
+    ServletOutputStream output = theServletResponse.getOutputStream();
+    if (outcome != null) {
+      theServletResponse.setStatus(Constants.STATUS_HTTP_422_UNPROCESSABLE_ENTITY);
+      org.hl7.fhir.r4.formats.IParser parser = outputFormat == FhirFormat.JSON ? new org.hl7.fhir.r4.formats.JsonParser()
+          : new org.hl7.fhir.r4.formats.XmlParser();
+      parser.setOutputStyle(outputStyle == OutputStyle.PRETTY ? org.hl7.fhir.r4.formats.IParser.OutputStyle.PRETTY
+          : org.hl7.fhir.r4.formats.IParser.OutputStyle.NORMAL);
+      parser.compose(output, outcome);
+    } else {
+      Manager.composeStreaming(matchboxEngine.getTransformSession(map.getUrl()).getTargetContext(), result.getTransformed(),
+          output, outputFormat, outputStyle, null);
+    }
+    output.close();
+  }
+
+  /**
+   * NDJSON input, or concatenated documents with batch=true, are transformed record by record and the outputs are
+   * streamed back as NDJSON
+   */
+  private boolean isBatch(HttpServletRequest theServletRequest, String contentType) {
+    return (contentType != null && contentType.contains(Constants.FORMAT_NDJSON))
+        || "true".equals(theServletRequest.getParameter("batch"));
+  }
+
+  private void transformBatch(org.hl7.fhir.r5.model.StructureMap map, HttpServletRequest theServletRequest,
+      HttpServletResponse theServletResponse, MatchboxEngine matchboxEngine, String contentType) throws IOException {
+    SniffedInput input = SniffedInput.of(theServletRequest.getInputStream());
+    FhirFormat format = input.getFormat(contentType, FhirFormat.JSON);
+    // the client may ask for fewer workers than processors, not for more
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    int threads = maxThreads;
+    String threadsParam = theServletRequest.getParameter("threads");
+    if (threadsParam != null) {
+      try {
+        threads = Integer.parseInt(threadsParam);
+      } catch (NumberFormatException e) {
+        throw new UnprocessableEntityException("Invalid threads parameter " + threadsParam);
+      }
+      if (threads <= 0) {
+        throw new UnprocessableEntityException("Invalid threads parameter " + threadsParam + ", must be at least 1");
+      }
+      threads = Math.min(threads, maxThreads);
+    }
+    theServletResponse.setContentType(Constants.CT_FHIR_NDJSON);
+    theServletResponse.setCharacterEncoding("UTF-8");
     ServletOutputStream output = theServletResponse.getOutputStream();
-    output.write(result.getBytes("UTF-8"));
-    theServletResponse.getOutputStream().close();
+    matchboxEngine.transformBatch(input.getStream(), format, map.getUrl(), output, threads, batchExecutor);
+    output.close();
   }
   
   @Operation(name = "$convert", type = StructureMap.class, idempotent = true, returnParameters = {
@@ -7,8 +7,9 @@ import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r5.model.Extension;
-import org.hl7.fhir.r5.formats.IParser.OutputStyle;
 import org.hl7.fhir.r5.model.Questionnaire;
 import org.springframework.beans.factory.annotation.Autowired;
 
@@ -18,6 +19,7 @@ import ca.uhn.fhir.rest.server.RestfulServerUtils;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ch.ahdis.matchbox.MatchboxEngineSupport;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.util.MatchboxServerUtils;
 
 /**
  * $extract Operation for QuestionnaireResponse Resource
@@ -86,10 +88,9 @@ public class QuestionnaireResponseExtractProvider  {
     ServletOutputStream output = theServletResponse.getOutputStream();
     try {
       if (output != null) {
-        if (responseContentType.equals(Constants.CT_FHIR_JSON_NEW))
-          new org.hl7.fhir.r5.elementmodel.JsonParser(matchboxEngine.getContext()).compose(r, output, OutputStyle.PRETTY, null);
-        else
-          new org.hl7.fhir.r5.elementmodel.XmlParser(matchboxEngine.getContext()).compose(r, output, OutputStyle.PRETTY, null);
+        Manager.compose(matchboxEngine.getContext(), r, output,
+            responseContentType.equals(Constants.CT_FHIR_JSON_NEW) ? FhirFormat.JSON : FhirFormat.XML,
+            MatchboxServerUtils.getOutputStyle(theServletRequest), null);
       }
     } catch(org.hl7.fhir.exceptions.FHIRException e) {
       log.error("Transform exception", e);
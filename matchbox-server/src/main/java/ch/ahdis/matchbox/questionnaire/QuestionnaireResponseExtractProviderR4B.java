@@ -10,6 +10,7 @@ import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 
 import ca.uhn.fhir.rest.annotation.Operation;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.SniffedInput;
 
 /**
  * $extract Operation for QuestionnaireResponse Resource
@@ -22,8 +23,9 @@ public class QuestionnaireResponseExtractProviderR4B extends QuestionnaireRespon
   public void extract(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
     String contentType = theServletRequest.getContentType();   
     MatchboxEngine matchboxEngine = matchboxEngineSupport.getMatchboxEngine("default", null, true, false);
-    org.hl7.fhir.r5.elementmodel.Element src = Manager.parseSingle(matchboxEngine.getContext(), theServletRequest.getInputStream(),
-        contentType.contains("xml") ? FhirFormat.XML : FhirFormat.JSON);
+    SniffedInput input = SniffedInput.of(theServletRequest.getInputStream());
+    org.hl7.fhir.r5.elementmodel.Element src = Manager.parseSingle(matchboxEngine.getContext(), input.getStream(),
+        input.getFormat(contentType, FhirFormat.JSON));
      extract(src, theServletRequest, theServletResponse); 
   }
 
@@ -6,15 +6,19 @@ import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
 import ca.uhn.fhir.jpa.binary.svc.NullBinaryStorageSvcImpl;
 import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.util.BinaryUtil;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import jakarta.servlet.http.HttpServletRequest;
 import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
 import org.hl7.fhir.r5.model.Element;
 import org.hl7.fhir.r5.model.Extension;
 import org.hl7.fhir.r5.model.PrimitiveType;
 
 import java.io.IOException;
+import java.util.Enumeration;
 
 /**
  * A utility class for Matchbox Server.
@@ -66,6 +70,27 @@ public class MatchboxServerUtils {
 		}
 	}
 
+	/**
+	 * Returns the output style of a response written by an operation: pretty printed if the client asks for it with
+	 * _pretty=true or an Accept header with pretty=true, compact otherwise.
+	 *
+	 * @param request the servlet request of the operation
+	 * @return PRETTY or NORMAL
+	 */
+	public static OutputStyle getOutputStyle(final HttpServletRequest request) {
+		final String pretty = request.getParameter(Constants.PARAM_PRETTY);
+		if (pretty != null) {
+			return Constants.PARAM_PRETTY_VALUE_TRUE.equals(pretty) ? OutputStyle.PRETTY : OutputStyle.NORMAL;
+		}
+		final Enumeration<String> accept = request.getHeaders(Constants.HEADER_ACCEPT);
+		while (accept != null && accept.hasMoreElements()) {
+			if (accept.nextElement().contains("pretty=true")) {
+				return OutputStyle.PRETTY;
+			}
+		}
+		return OutputStyle.NORMAL;
+	}
+
 	/**
 	 * A helper to add an R5 extension to an element only if its value is non-null.
 	 */
@@ -0,0 +1,48 @@
+package ch.ahdis.matchbox;
+
+import ch.ahdis.matchbox.mappinglanguage.ConceptMapEngine;
+import ch.ahdis.matchbox.mappinglanguage.ConceptMapEngine.TranslationMatch;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.r4.model.ConceptMap;
+import org.hl7.fhir.r4.model.Enumerations.ConceptMapEquivalence;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.Coding;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the R4 equivalences reported by ConceptMap/$translate for the relationships of the translated targets.
+ */
+class ConceptMapResourceProviderTest {
+
+	private static final String URL = "http://matchbox.health/ConceptMap/equivalence";
+
+	@Test
+	void testToEquivalence() {
+		final ConceptMap r4 = new ConceptMap();
+		r4.setUrl(URL);
+		final var group = r4.addGroup().setSource("http://source").setTarget("http://target");
+		final var element = group.addElement().setCode("a");
+		element.addTarget().setCode("equal").setEquivalence(ConceptMapEquivalence.EQUAL);
+		element.addTarget().setCode("wider").setEquivalence(ConceptMapEquivalence.WIDER);
+		element.addTarget().setCode("narrower").setEquivalence(ConceptMapEquivalence.NARROWER);
+		element.addTarget().setCode("inexact").setEquivalence(ConceptMapEquivalence.INEXACT);
+		group.addElement().setCode("b").addTarget().setEquivalence(ConceptMapEquivalence.UNMATCHED);
+
+		final IWorkerContext context = mock(IWorkerContext.class);
+		when(context.fetchResource(org.hl7.fhir.r5.model.ConceptMap.class, URL))
+			.thenReturn((org.hl7.fhir.r5.model.ConceptMap) VersionConvertorFactory_40_50.convertResource(r4));
+		final ConceptMapEngine engine = new ConceptMapEngine(context);
+
+		final List<TranslationMatch> matches = engine.translate(new Coding("http://source", "a", null), URL, null);
+		assertEquals(List.of("equal", "wider", "narrower", "inexact"),
+						 matches.stream().map(ConceptMapResourceProvider::toEquivalence).toList());
+		final List<TranslationMatch> unmatched = engine.translate(new Coding("http://source", "b", null), URL, null);
+		assertEquals(List.of("unmatched"), unmatched.stream().map(ConceptMapResourceProvider::toEquivalence).toList());
+	}
+}
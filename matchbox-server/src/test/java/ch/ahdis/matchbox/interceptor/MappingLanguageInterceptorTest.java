@@ -0,0 +1,107 @@
+package ch.ahdis.matchbox.interceptor;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ch.ahdis.matchbox.spring.boot.autoconfigure.MutableHttpServletRequest;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the conversion of FML request bodies by the {@link MappingLanguageInterceptor}, without a server.
+ */
+class MappingLanguageInterceptorTest {
+
+	private static final String CONTENT_TYPE = "text/fhir-mapping;fhirVersion=5.0.0";
+	private static final String FML = "map \"http://matchbox.health/StructureMap/test\" = \"test\"";
+
+	/**
+	 * Test that unchanged FML content is parsed once and that each request gets its own copy of the map.
+	 */
+	@Test
+	void testParsedMapsByDigest() {
+		final CountingInterceptor interceptor = new CountingInterceptor();
+
+		final RequestDetails create = request(FML, null);
+		assertTrue(interceptor.incomingRequestPostProcessed(create, servletRequest("POST"), new MockHttpServletResponse()));
+		final RequestDetails update = request(FML, "updated");
+		final MutableHttpServletRequest updateRequest = servletRequest("PUT");
+		assertTrue(interceptor.incomingRequestPostProcessed(update, updateRequest, new MockHttpServletResponse()));
+		assertEquals(1, interceptor.parsed);
+		assertEquals("application/fhir+json;fhirVersion=5.0.0", updateRequest.getHeader(Constants.HEADER_CONTENT_TYPE));
+
+		final StructureMap created = MappingLanguageInterceptor.getParsedResource(create, null, StructureMap.class);
+		final StructureMap updated = MappingLanguageInterceptor.getParsedResource(update, null, StructureMap.class);
+		assertNotSame(created, updated);
+		assertFalse(created.hasId());
+		assertEquals("updated", updated.getIdPart());
+
+		interceptor.incomingRequestPostProcessed(request(FML + " ", null), servletRequest("POST"), new MockHttpServletResponse());
+		assertEquals(2, interceptor.parsed);
+	}
+
+	/**
+	 * Test that FML that cannot be parsed is rejected before the request is declared as JSON, also for an update.
+	 */
+	@Test
+	void testUnparsableMap() {
+		final CountingInterceptor interceptor = new CountingInterceptor();
+		final MutableHttpServletRequest servletRequest = servletRequest("PUT");
+		final RequestDetails update = request("map broken", "broken");
+
+		final UnprocessableEntityException e = assertThrows(UnprocessableEntityException.class,
+			() -> interceptor.incomingRequestPostProcessed(update, servletRequest, new MockHttpServletResponse()));
+		assertTrue(e.getMessage().contains("unexpected token"));
+		assertEquals(CONTENT_TYPE, servletRequest.getHeader(Constants.HEADER_CONTENT_TYPE));
+		assertNull(update.getUserData().get(MappingLanguageInterceptor.PARSED_STRUCTUREMAP));
+	}
+
+	private static MutableHttpServletRequest servletRequest(final String method) {
+		final MockHttpServletRequest request = new MockHttpServletRequest(method, "/fhir/StructureMap");
+		request.addHeader(Constants.HEADER_CONTENT_TYPE, CONTENT_TYPE);
+		return new MutableHttpServletRequest(request);
+	}
+
+	private static RequestDetails request(final String fml, final String id) {
+		final RequestDetails requestDetails = mock(RequestDetails.class);
+		final Map<Object, Object> userData = new HashMap<>();
+		when(requestDetails.getUserData()).thenReturn(userData);
+		when(requestDetails.loadRequestContents()).thenReturn(fml.getBytes(StandardCharsets.UTF_8));
+		when(requestDetails.getId()).thenReturn(id != null ? new IdType("StructureMap", id) : null);
+		return requestDetails;
+	}
+
+	/**
+	 * Parses only the header of a map, without an engine, and counts the maps parsed.
+	 */
+	private static class CountingInterceptor extends MappingLanguageInterceptor {
+		private int parsed;
+
+		CountingInterceptor() {
+			super(null);
+		}
+
+		@Override
+		public StructureMap parseMap(final String content) throws FHIRException {
+			this.parsed++;
+			if (!content.startsWith("map \"")) {
+				throw new FHIRException("unexpected token " + content.substring(4));
+			}
+			final StructureMap map = new StructureMap();
+			map.setUrl(content.substring(5, content.indexOf('"', 5)));
+			return map;
+		}
+	}
+}